@@ -4,7 +4,18 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import ru.phystech.java2.students.belousova.database.table.api.*;
+import ru.phystech.java2.students.belousova.database.table.impl.BulkLoader;
+import ru.phystech.java2.students.belousova.database.table.impl.TableImpl;
+import ru.phystech.java2.students.belousova.database.table.impl.TableProviderImpl;
+import ru.phystech.java2.students.belousova.database.table.utils.BinaryRowCodec;
+import ru.phystech.java2.students.belousova.database.table.utils.RowFormat;
+import ru.phystech.java2.students.belousova.database.table.utils.RowScanner;
+import ru.phystech.java2.students.belousova.database.table.utils.ShardLayout;
+import ru.phystech.java2.students.belousova.database.table.utils.StorageEngine;
+import ru.phystech.java2.students.belousova.database.table.utils.TableDumpFile;
+import ru.phystech.java2.students.belousova.database.table.utils.TableUtils;
 
+import java.io.File;
 import java.io.IOException;
 import java.text.ParseException;
 import java.util.ArrayList;
@@ -12,14 +23,24 @@ import java.util.List;
 
 @Service
 public class DatabaseState {
+    public static final int IMPORT_BATCH_SIZE = 10000;
     @Value("${db.path}")
     private String path;
+    @Value("${db.tables.loaded:0}")
+    private int loadedTablesLimit;
     private TableProvider tableProvider;
     private Table currentTable;
 
     @Autowired
     public void setTableProvider(TableProviderFactory tableProviderFactory) throws IOException {
-        tableProvider = tableProviderFactory.create(path);
+        setTableProvider(tableProviderFactory.create(path));
+    }
+
+    public void setTableProvider(TableProvider tableProvider) {
+        this.tableProvider = tableProvider;
+        if (tableProvider instanceof TableProviderImpl) {
+            ((TableProviderImpl) tableProvider).setLoadedTablesLimit(loadedTablesLimit);
+        }
     }
 
     public boolean getTable(String name) {
@@ -119,4 +140,117 @@ public class DatabaseState {
     public int getChangesCountOfCurrentTable() {
         return currentTable.getChangesCount();
     }
+
+    /**
+     * Выгружает зафиксированные строки таблицы в файл, не загружая таблицу в память целиком.
+     *
+     * @return Число выгруженных строк или -1, если таблицы нет.
+     */
+    public int exportTable(String name, String fileName) throws IOException {
+        Table table = tableProvider.getTable(name);
+        if (table == null) {
+            return -1;
+        }
+        if (!(table instanceof TableImpl)) {
+            throw new IllegalArgumentException("table doesn't support export");
+        }
+        final TableDumpFile.Writer writer = new TableDumpFile.Writer(new File(fileName),
+                TableUtils.getColumnTypes(table));
+        try {
+            ((TableImpl) table).scanRows(RowFormat.BINARY, new RowScanner() {
+                @Override
+                public void scan(String key, byte[] row) throws IOException {
+                    writer.add(key, row);
+                }
+            });
+            writer.finish();
+        } finally {
+            writer.close();
+        }
+        return writer.getCount();
+    }
+
+    /**
+     * Загружает строки из файла выгрузки. Новая таблица на сегментах собирается загрузчиком {@link BulkLoader},
+     * а в остальные таблицы строки добавляются отдельной транзакцией, которая фиксируется каждые
+     * {@link #IMPORT_BATCH_SIZE} строк, чтобы не держать весь файл в памяти. Незафиксированные изменения
+     * текущего потока в ней не участвуют. Если файл прочитать не удалось, откатывается только
+     * последняя порция: уже зафиксированные порции остаются в таблице.
+     *
+     * @return Число загруженных строк.
+     */
+    public int importTable(String name, String fileName) throws IOException {
+        TableDumpFile.Reader reader = new TableDumpFile.Reader(new File(fileName));
+        try {
+            List<Class<?>> columnTypes = reader.getColumnTypes();
+            Table table = tableProvider.getTable(name);
+            if (table == null) {
+                if (tableProvider instanceof TableProviderImpl
+                        && ((TableProviderImpl) tableProvider).getStorageEngine() == StorageEngine.SHARDS) {
+                    return importNewTable(name, reader);
+                }
+                table = tableProvider.createTable(name, columnTypes);
+            } else if (!TableUtils.getColumnTypes(table).equals(columnTypes)) {
+                throw new IllegalArgumentException("table signature doesn't match");
+            }
+            BinaryRowCodec codec = (BinaryRowCodec) RowFormat.BINARY.getCodec();
+            Transaction transaction = table.beginTransaction();
+            boolean isFinished = false;
+            try {
+                int count = 0;
+                while (reader.next()) {
+                    TableRow row = tableProvider.createFor(table);
+                    codec.decode(reader.getRow(), row, columnTypes.size());
+                    transaction.put(reader.getKey(), row);
+                    count++;
+                    if (count % IMPORT_BATCH_SIZE == 0) {
+                        transaction.commit();
+                    }
+                }
+                transaction.commit();
+                isFinished = true;
+                return count;
+            } finally {
+                if (!isFinished) {
+                    transaction.rollback();
+                }
+            }
+        } catch (ParseException e) {
+            throw new IOException(e.getMessage(), e);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private int importNewTable(String name, TableDumpFile.Reader reader) throws IOException, ParseException {
+        List<Class<?>> columnTypes = reader.getColumnTypes();
+        BinaryRowCodec codec = (BinaryRowCodec) RowFormat.BINARY.getCodec();
+        BulkLoader loader;
+        try {
+            loader = ((TableProviderImpl) tableProvider).createBulkLoader(name, columnTypes);
+        } catch (IllegalStateException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+        try {
+            while (reader.next()) {
+                TableRow row = loader.createRow();
+                codec.decode(reader.getRow(), row, columnTypes.size());
+                loader.put(reader.getKey(), row);
+            }
+            int count = loader.getRowsCount();
+            loader.finish();
+            return count;
+        } finally {
+            loader.close();
+        }
+    }
+
+    public void reshardCurrentTable(int directoriesCount, int filesCount) throws IOException {
+        if (!(currentTable instanceof TableImpl)
+                || ((TableImpl) currentTable).getStorageEngine() != StorageEngine.SHARDS) {
+            throw new IllegalArgumentException("table doesn't support resharding");
+        }
+        ShardLayout layout = new ShardLayout(ShardLayout.ShardFunction.HASH, directoriesCount, filesCount);
+        ((TableImpl) currentTable).reshard(layout);
+    }
 }
@@ -0,0 +1,169 @@
+package ru.phystech.java2.students.belousova.database.state.test;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import ru.phystech.java2.students.belousova.database.state.DatabaseState;
+import ru.phystech.java2.students.belousova.database.table.api.Table;
+import ru.phystech.java2.students.belousova.database.table.api.TableProvider;
+import ru.phystech.java2.students.belousova.database.table.impl.LsmTableProviderFactory;
+import ru.phystech.java2.students.belousova.database.table.impl.TableImpl;
+import ru.phystech.java2.students.belousova.database.table.impl.TableProviderFactoryImpl;
+import ru.phystech.java2.students.belousova.database.table.utils.ShardLayout;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+public class DatabaseStateTest {
+    private static final String DIRECTORY = "javatest-state";
+    private static final String[] SIGNATURE = {"int", "String", "boolean"};
+    private TableProvider tableProvider;
+    private DatabaseState state;
+    private File dumpFile;
+
+    @Before
+    public void setUp() throws Exception {
+        Assert.assertTrue(new File(DIRECTORY).mkdir());
+        tableProvider = new TableProviderFactoryImpl().create(DIRECTORY);
+        state = new DatabaseState();
+        state.setTableProvider(tableProvider);
+        dumpFile = new File(DIRECTORY, "dump.bin");
+
+        Assert.assertTrue(state.createTableWithSignature("source", SIGNATURE));
+        state.setCurrentTable("source");
+        for (int i = 0; i < 300; i++) {
+            state.putToCurrentTable("key" + i, row(i));
+        }
+        state.commitCurrentTable();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(new File(DIRECTORY));
+    }
+
+    @Test
+    public void testDumpRoundTrip() throws Exception {
+        Assert.assertEquals(300, state.exportTable("source", dumpFile.getPath()));
+        Assert.assertEquals(-1, state.exportTable("missing", dumpFile.getPath()));
+
+        Assert.assertEquals(300, state.importTable("target", dumpFile.getPath()));
+        state.setCurrentTable("target");
+        Assert.assertEquals(300, state.sizeOfCurrentTable());
+        Assert.assertEquals(row(123), state.getFromCurrentTable("key123"));
+        Assert.assertEquals(row(299), state.getFromCurrentTable("key299"));
+    }
+
+    @Test
+    public void testImportKeepsUncommittedChanges() throws Exception {
+        Assert.assertEquals(300, state.exportTable("source", dumpFile.getPath()));
+        Assert.assertTrue(state.createTableWithSignature("target", SIGNATURE));
+        state.setCurrentTable("target");
+        state.putToCurrentTable("own", row(-1));
+
+        Assert.assertEquals(300, state.importTable("target", dumpFile.getPath()));
+        Assert.assertEquals(1, state.getChangesCountOfCurrentTable());
+        Assert.assertEquals(1, state.sizeOfCurrentTable());
+        Assert.assertEquals(1, state.rollbackCurrentTable());
+        Assert.assertNull(state.getFromCurrentTable("own"));
+        Assert.assertEquals(300, state.sizeOfCurrentTable());
+        Assert.assertEquals(row(42), state.getFromCurrentTable("key42"));
+    }
+
+    @Test
+    public void testFailedImportIsRolledBack() throws Exception {
+        Assert.assertEquals(300, state.exportTable("source", dumpFile.getPath()));
+        RandomAccessFile file = new RandomAccessFile(dumpFile, "rw");
+        try {
+            file.setLength(dumpFile.length() / 2);
+        } finally {
+            file.close();
+        }
+        Assert.assertTrue(state.createTableWithSignature("target", SIGNATURE));
+        try {
+            state.importTable("target", dumpFile.getPath());
+            Assert.fail();
+        } catch (IOException e) {
+            //the dump is cut in the middle
+        }
+        state.setCurrentTable("target");
+        Assert.assertEquals(0, state.sizeOfCurrentTable());
+        Assert.assertEquals(0, state.getChangesCountOfCurrentTable());
+    }
+
+    @Test
+    public void testFailedImportKeepsCommittedBatches() throws Exception {
+        state.setCurrentTable("source");
+        for (int i = 300; i < DatabaseState.IMPORT_BATCH_SIZE * 5 / 2; i++) {
+            state.putToCurrentTable("key" + i, row(i));
+        }
+        state.commitCurrentTable();
+        Assert.assertEquals(DatabaseState.IMPORT_BATCH_SIZE * 5 / 2, state.exportTable("source", dumpFile.getPath()));
+        RandomAccessFile file = new RandomAccessFile(dumpFile, "rw");
+        try {
+            file.setLength(dumpFile.length() * 3 / 5);
+        } finally {
+            file.close();
+        }
+        Assert.assertTrue(state.createTableWithSignature("target", SIGNATURE));
+        try {
+            state.importTable("target", dumpFile.getPath());
+            Assert.fail();
+        } catch (IOException e) {
+            //the dump is cut after the first batch
+        }
+        state.setCurrentTable("target");
+        Assert.assertEquals(DatabaseState.IMPORT_BATCH_SIZE, state.sizeOfCurrentTable());
+        Assert.assertEquals(0, state.getChangesCountOfCurrentTable());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testImportWrongSignature() throws Exception {
+        Assert.assertEquals(300, state.exportTable("source", dumpFile.getPath()));
+        Assert.assertTrue(state.createTableWithSignature("target", new String[]{"int"}));
+        state.importTable("target", dumpFile.getPath());
+    }
+
+    @Test
+    public void testReshard() throws Exception {
+        state.putToCurrentTable("uncommitted", row(-1));
+        state.reshardCurrentTable(4, 4);
+        Table table = tableProvider.getTable("source");
+        Assert.assertEquals(new ShardLayout(ShardLayout.ShardFunction.HASH, 4, 4),
+                ((TableImpl) table).getShardLayout());
+        Assert.assertEquals(301, state.sizeOfCurrentTable());
+        Assert.assertEquals(row(7), state.getFromCurrentTable("key7"));
+        Assert.assertEquals(1, state.commitCurrentTable());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReshardLsmTable() throws Exception {
+        DatabaseState lsmState = new DatabaseState();
+        lsmState.setTableProvider(new LsmTableProviderFactory().create(new File(DIRECTORY, "lsm").getPath()));
+        Assert.assertTrue(lsmState.createTableWithSignature("lsmTable", SIGNATURE));
+        lsmState.setCurrentTable("lsmTable");
+        lsmState.reshardCurrentTable(4, 4);
+    }
+
+    @Test
+    public void testLsmDumpRoundTrip() throws Exception {
+        DatabaseState lsmState = new DatabaseState();
+        lsmState.setTableProvider(new LsmTableProviderFactory().create(new File(DIRECTORY, "lsm").getPath()));
+        Assert.assertEquals(300, state.exportTable("source", dumpFile.getPath()));
+        Assert.assertEquals(300, lsmState.importTable("lsmTable", dumpFile.getPath()));
+
+        File lsmDumpFile = new File(DIRECTORY, "lsm-dump.bin");
+        Assert.assertEquals(300, lsmState.exportTable("lsmTable", lsmDumpFile.getPath()));
+        Assert.assertEquals(300, state.importTable("target", lsmDumpFile.getPath()));
+        state.setCurrentTable("target");
+        Assert.assertEquals(300, state.sizeOfCurrentTable());
+        Assert.assertEquals(row(77), state.getFromCurrentTable("key77"));
+    }
+
+    private static String row(int number) {
+        return "<row><col>" + number + "</col><col>value" + number + "</col><col>true</col></row>";
+    }
+}
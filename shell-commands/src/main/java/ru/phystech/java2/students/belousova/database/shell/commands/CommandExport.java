@@ -0,0 +1,37 @@
+package ru.phystech.java2.students.belousova.database.shell.commands;
+
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.PrintStream;
+
+@Service
+public class CommandExport extends DatabaseCommand {
+
+    @Override
+    public String getName() {
+        return "export";
+    }
+
+    @Override
+    public void execute(String[] args, PrintStream outputStream, PrintStream errorStream) throws IOException {
+        String name = args[1];
+        String fileName = args[2];
+        int count;
+        try {
+            count = state.exportTable(name, fileName);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        if (count < 0) {
+            outputStream.println(name + " not exists");
+        } else {
+            outputStream.println("exported " + count);
+        }
+    }
+
+    @Override
+    public int getArgCount() {
+        return 2;
+    }
+}
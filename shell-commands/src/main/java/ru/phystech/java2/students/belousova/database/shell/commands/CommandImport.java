@@ -0,0 +1,33 @@
+package ru.phystech.java2.students.belousova.database.shell.commands;
+
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.PrintStream;
+
+@Service
+public class CommandImport extends DatabaseCommand {
+
+    @Override
+    public String getName() {
+        return "import";
+    }
+
+    @Override
+    public void execute(String[] args, PrintStream outputStream, PrintStream errorStream) throws IOException {
+        String name = args[1];
+        String fileName = args[2];
+        int count;
+        try {
+            count = state.importTable(name, fileName);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        outputStream.println("imported " + count);
+    }
+
+    @Override
+    public int getArgCount() {
+        return 2;
+    }
+}
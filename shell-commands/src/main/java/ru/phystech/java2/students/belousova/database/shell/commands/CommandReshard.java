@@ -0,0 +1,42 @@
+package ru.phystech.java2.students.belousova.database.shell.commands;
+
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.PrintStream;
+
+@Service
+public class CommandReshard extends DatabaseCommand {
+
+    @Override
+    public String getName() {
+        return "reshard";
+    }
+
+    @Override
+    public void execute(String[] args, PrintStream outputStream, PrintStream errorStream) throws IOException {
+        if (state.getCurrentTable() == null) {
+            outputStream.println("no table");
+        } else {
+            int directoriesCount;
+            int filesCount;
+            try {
+                directoriesCount = Integer.parseInt(args[1]);
+                filesCount = Integer.parseInt(args[2]);
+            } catch (NumberFormatException e) {
+                throw new IOException("wrong argument type");
+            }
+            try {
+                state.reshardCurrentTable(directoriesCount, filesCount);
+            } catch (IllegalArgumentException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+            outputStream.println("resharded");
+        }
+    }
+
+    @Override
+    public int getArgCount() {
+        return 2;
+    }
+}
@@ -0,0 +1,101 @@
+package ru.phystech.java2.students.belousova.database.shell.commands.test;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import ru.phystech.java2.students.belousova.database.shell.commands.CommandExport;
+import ru.phystech.java2.students.belousova.database.shell.commands.CommandImport;
+import ru.phystech.java2.students.belousova.database.shell.commands.CommandReshard;
+import ru.phystech.java2.students.belousova.database.shell.commands.DatabaseCommand;
+import ru.phystech.java2.students.belousova.database.state.DatabaseState;
+import ru.phystech.java2.students.belousova.database.table.impl.LsmTableProviderFactory;
+import ru.phystech.java2.students.belousova.database.table.impl.TableProviderFactoryImpl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+public class DumpCommandsTest {
+    private static final String DIRECTORY = "javatest-commands";
+    private static final String[] SIGNATURE = {"int", "String"};
+    private DatabaseState state;
+    private String dumpFile;
+
+    @Before
+    public void setUp() throws Exception {
+        Assert.assertTrue(new File(DIRECTORY).mkdir());
+        state = new DatabaseState();
+        state.setTableProvider(new TableProviderFactoryImpl().create(DIRECTORY));
+        dumpFile = new File(DIRECTORY, "dump.bin").getPath();
+
+        state.createTableWithSignature("source", SIGNATURE);
+        state.setCurrentTable("source");
+        for (int i = 0; i < 3; i++) {
+            state.putToCurrentTable("key" + i, "<row><col>" + i + "</col><col>value</col></row>");
+        }
+        state.commitCurrentTable();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(new File(DIRECTORY));
+    }
+
+    @Test
+    public void testExportImport() throws Exception {
+        Assert.assertEquals("exported 3", execute(new CommandExport(), "export", "source", dumpFile));
+        Assert.assertEquals("missing not exists", execute(new CommandExport(), "export", "missing", dumpFile));
+        Assert.assertEquals("imported 3", execute(new CommandImport(), "import", "target", dumpFile));
+        Assert.assertEquals("imported 3", execute(new CommandImport(), "import", "target", dumpFile));
+
+        state.setCurrentTable("target");
+        Assert.assertEquals(3, state.sizeOfCurrentTable());
+        Assert.assertEquals("<row><col>2</col><col>value</col></row>", state.getFromCurrentTable("key2"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testImportWrongSignature() throws Exception {
+        execute(new CommandExport(), "export", "source", dumpFile);
+        state.createTableWithSignature("target", new String[]{"int"});
+        execute(new CommandImport(), "import", "target", dumpFile);
+    }
+
+    @Test
+    public void testReshard() throws Exception {
+        Assert.assertEquals("resharded", execute(new CommandReshard(), "reshard", "2", "4"));
+        Assert.assertEquals(3, state.sizeOfCurrentTable());
+        state.resetCurrentTable();
+        Assert.assertEquals("no table", execute(new CommandReshard(), "reshard", "2", "4"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testReshardWrongArguments() throws Exception {
+        execute(new CommandReshard(), "reshard", "two", "4");
+    }
+
+    @Test
+    public void testReshardLsmTable() throws Exception {
+        state = new DatabaseState();
+        state.setTableProvider(new LsmTableProviderFactory().create(new File(DIRECTORY, "lsm").getPath()));
+        state.createTableWithSignature("lsmTable", SIGNATURE);
+        state.setCurrentTable("lsmTable");
+        try {
+            execute(new CommandReshard(), "reshard", "2", "4");
+            Assert.fail();
+        } catch (IOException e) {
+            Assert.assertEquals("table doesn't support resharding", e.getMessage());
+        }
+    }
+
+    private String execute(DatabaseCommand command, String... args) throws IOException {
+        command.setState(state);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        PrintStream outputStream = new PrintStream(output, true);
+        command.execute(args, outputStream, System.err);
+        return new String(output.toByteArray(), StandardCharsets.UTF_8).trim();
+    }
+}
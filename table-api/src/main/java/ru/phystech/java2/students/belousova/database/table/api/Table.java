@@ -94,4 +94,12 @@ public interface Table {
     int getChangesCount();
 
     boolean isClosed();
+
+    /**
+     * Начинает транзакцию, не привязанную к текущему потоку. Методы get, put, remove, commit и rollback
+     * самой таблицы работают с транзакцией, которую таблица хранит отдельно для каждого потока.
+     *
+     * @return Новая транзакция.
+     */
+    Transaction beginTransaction();
 }
@@ -26,6 +26,7 @@ public interface TableProvider extends Closeable {
      * @return Объект, представляющий таблицу. Если таблицы с указанным именем не существует, возвращает null.
      *
      * @throws IllegalArgumentException Если название таблицы null или имеет недопустимое значение.
+     * @throws IllegalStateException Если таблицу уже открыл другой провайдер.
      */
     Table getTable(String name);
 
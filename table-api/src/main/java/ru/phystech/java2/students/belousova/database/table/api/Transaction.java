@@ -0,0 +1,74 @@
+package ru.phystech.java2.students.belousova.database.table.api;
+
+import java.io.IOException;
+
+/**
+ * Транзакция над таблицей, полученная через {@link Table#beginTransaction()}. В отличие от методов самой
+ * таблицы, не привязана к потоку: её можно передавать между потоками, если обращения к ней упорядочены,
+ * но одновременно с одной транзакцией должен работать только один поток.
+ *
+ * До первого изменения транзакция читает последние зафиксированные значения. После первого изменения
+ * она видит таблицу такой, какой та была в этот момент, вместе со своими изменениями.
+ * После {@link #commit()} или {@link #rollback()} тот же объект можно использовать для следующей транзакции.
+ * Транзакцию, которая больше не нужна, нужно завершить одним из этих методов.
+ */
+public interface Transaction {
+
+    /**
+     * Получает значение по указанному ключу.
+     *
+     * @param key Ключ для поиска значения. Не может быть null.
+     * @return Значение. Если не найдено, возвращает null.
+     *
+     * @throws IllegalArgumentException Если значение параметра key является null.
+     */
+    TableRow get(String key);
+
+    /**
+     * Устанавливает значение по указанному ключу.
+     *
+     * @param key Ключ для нового значения. Не может быть null.
+     * @param value Новое значение. Не может быть null.
+     * @return Значение, которое было записано по этому ключу ранее. Если ранее значения не было записано,
+     * возвращает null.
+     *
+     * @throws IllegalArgumentException Если значение параметров key или value является null.
+     * @throws ColumnFormatException - при попытке передать Storeable с колонками другого типа.
+     */
+    TableRow put(String key, TableRow value) throws ColumnFormatException;
+
+    /**
+     * Удаляет значение по указанному ключу.
+     *
+     * @param key Ключ для поиска значения. Не может быть null.
+     * @return Предыдущее значение. Если не найдено, возвращает null.
+     *
+     * @throws IllegalArgumentException Если значение параметра key является null.
+     */
+    TableRow remove(String key);
+
+    /**
+     * Возвращает количество ключей в таблице с учётом незафиксированных изменений транзакции.
+     *
+     * @return Количество ключей в таблице.
+     */
+    int size();
+
+    /**
+     * Выполняет фиксацию изменений транзакции.
+     *
+     * @return Число записанных изменений.
+     *
+     * @throws java.io.IOException если произошла ошибка ввода/вывода. Целостность таблицы не гарантируется.
+     */
+    int commit() throws IOException;
+
+    /**
+     * Выполняет откат изменений транзакции.
+     *
+     * @return Число откаченных изменений.
+     */
+    int rollback();
+
+    int getChangesCount();
+}
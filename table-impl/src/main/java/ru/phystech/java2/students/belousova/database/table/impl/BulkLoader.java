@@ -0,0 +1,179 @@
+package ru.phystech.java2.students.belousova.database.table.impl;
+
+import org.apache.commons.io.FileUtils;
+import ru.phystech.java2.students.belousova.database.table.api.Table;
+import ru.phystech.java2.students.belousova.database.table.api.TableRow;
+import ru.phystech.java2.students.belousova.database.table.utils.FileMapUtils;
+import ru.phystech.java2.students.belousova.database.table.utils.MultiFileUtils;
+import ru.phystech.java2.students.belousova.database.table.utils.RowCodec;
+import ru.phystech.java2.students.belousova.database.table.utils.ShardLayout;
+import ru.phystech.java2.students.belousova.database.table.utils.TableConfig;
+import ru.phystech.java2.students.belousova.database.table.utils.TableUtils;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Загрузка новой таблицы без транзакций. Строки кодируются сразу и дописываются во временные файлы
+ * по одному на файл M.dat, а {@link #finish()} переписывает каждый из них в M.dat и открывает таблицу.
+ * В памяти одновременно держится содержимое только одного файла таблицы на поток записи.
+ * Таблица собирается в отдельной директории и появляется в провайдере только после finish().
+ * Повторный ключ заменяет прежнее значение.
+ */
+public class BulkLoader implements Closeable {
+    static final String DIRECTORY_SUFFIX = ".load";
+    private static final String SPILL_PREFIX = "spill.";
+
+    private final TableProviderImpl tableProvider;
+    private final String name;
+    private final File directory;
+    private final List<Class<?>> columnTypes;
+    private final RowLayout rowLayout;
+    private final RowCodec rowCodec;
+    private final TableConfig config;
+    private final ShardLayout shardLayout;
+    private final DataOutputStream[] spills;
+    private int rowsCount = 0;
+    private boolean isClosed = false;
+
+    BulkLoader(TableProviderImpl tableProvider, String name, File directory, List<Class<?>> columnTypes,
+               TableConfig config) {
+        this.tableProvider = tableProvider;
+        this.name = name;
+        this.directory = directory;
+        this.columnTypes = new ArrayList<>(columnTypes);
+        this.config = config;
+        rowLayout = new RowLayout(this.columnTypes);
+        rowCodec = config.getRowFormat().getCodec();
+        shardLayout = config.getShardLayout();
+        spills = new DataOutputStream[shardLayout.getBucketsCount()];
+    }
+
+    /**
+     * Создаёт пустую строку с типами столбцов загружаемой таблицы.
+     */
+    public TableRow createRow() {
+        return new TableRowImpl(rowLayout);
+    }
+
+    public List<Class<?>> getColumnTypes() {
+        return new ArrayList<>(columnTypes);
+    }
+
+    public void put(String key, TableRow value) throws IOException {
+        checkIfClosed();
+        TableUtils.checkKey(key);
+        TableUtils.checkValue(value, columnTypes);
+
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] data = rowCodec.encode(value, columnTypes);
+        int bucket = shardLayout.getDirectoryNumber(key) * shardLayout.getFilesCount()
+                + shardLayout.getFileNumber(key);
+        if (spills[bucket] == null) {
+            spills[bucket] = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(getSpillFile(bucket)), 8192));
+        }
+        spills[bucket].writeInt(keyBytes.length);
+        spills[bucket].write(keyBytes);
+        spills[bucket].writeInt(data.length);
+        spills[bucket].write(data);
+        rowsCount++;
+    }
+
+    /**
+     * @return Число строк, переданных в {@link #put}, включая повторные ключи.
+     */
+    public int getRowsCount() {
+        return rowsCount;
+    }
+
+    /**
+     * Пишет файлы таблицы, переносит её в директорию провайдера и открывает.
+     */
+    public Table finish() throws IOException {
+        checkIfClosed();
+        try {
+            for (DataOutputStream spill : spills) {
+                if (spill != null) {
+                    spill.close();
+                }
+            }
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int i = 0; i < spills.length; i++) {
+                if (spills[i] == null) {
+                    continue;
+                }
+                final int bucket = i;
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        writeBucket(bucket);
+                        return null;
+                    }
+                });
+            }
+            TableUtils.invokeAll(tableProvider.getWriteExecutor(), tasks);
+            return tableProvider.registerLoadedTable(name, directory, columnTypes);
+        } finally {
+            close();
+        }
+    }
+
+    private void writeBucket(int bucket) throws IOException {
+        File spillFile = getSpillFile(bucket);
+        Map<String, byte[]> map = new HashMap<>();
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(spillFile), 65536));
+        try {
+            long remaining = spillFile.length();
+            while (remaining > 0) {
+                byte[] keyBytes = new byte[dis.readInt()];
+                dis.readFully(keyBytes);
+                byte[] data = new byte[dis.readInt()];
+                dis.readFully(data);
+                map.put(new String(keyBytes, StandardCharsets.UTF_8), data);
+                remaining -= 8 + keyBytes.length + data.length;
+            }
+        } finally {
+            FileMapUtils.closeStream(dis);
+        }
+        MultiFileUtils.writeBucketFile(directory, bucket / shardLayout.getFilesCount(),
+                bucket % shardLayout.getFilesCount(), map, config.getCompression());
+        spillFile.delete();
+    }
+
+    private File getSpillFile(int bucket) {
+        return new File(directory, SPILL_PREFIX + bucket);
+    }
+
+    private void checkIfClosed() {
+        if (isClosed) {
+            throw new IllegalStateException("BulkLoader is closed");
+        }
+    }
+
+    /**
+     * Прерывает загрузку, если она не завершена, и удаляет временные файлы.
+     */
+    @Override
+    public void close() {
+        if (isClosed) {
+            return;
+        }
+        isClosed = true;
+        for (DataOutputStream spill : spills) {
+            FileMapUtils.closeStream(spill);
+        }
+        if (directory.exists()) {
+            try {
+                FileUtils.deleteDirectory(directory);
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,531 @@
+package ru.phystech.java2.students.belousova.database.table.impl;
+
+import ru.phystech.java2.students.belousova.database.table.api.TableRow;
+import ru.phystech.java2.students.belousova.database.table.utils.ColumnScanner;
+import ru.phystech.java2.students.belousova.database.table.utils.ColumnVector;
+import ru.phystech.java2.students.belousova.database.table.utils.DirectoryLock;
+import ru.phystech.java2.students.belousova.database.table.utils.FileMapUtils;
+import ru.phystech.java2.students.belousova.database.table.utils.RowFormat;
+import ru.phystech.java2.students.belousova.database.table.utils.RowScanner;
+import ru.phystech.java2.students.belousova.database.table.utils.ShardLayout;
+import ru.phystech.java2.students.belousova.database.table.utils.SortedRunFile;
+import ru.phystech.java2.students.belousova.database.table.utils.StorageEngine;
+import ru.phystech.java2.students.belousova.database.table.utils.StoredRow;
+import ru.phystech.java2.students.belousova.database.table.utils.TableConfig;
+import ru.phystech.java2.students.belousova.database.table.utils.WriteAheadLog;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.ParseException;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Таблица на LSM-дереве. Зафиксированные изменения пишутся в журнал и в отсортированную таблицу в памяти.
+ * Когда журнал вырастает, таблица в памяти целиком сбрасывается в новый неизменяемый файл run.N.sst,
+ * поэтому стоимость записи не зависит от размера таблицы. Чтение проверяет таблицу в памяти, а затем
+ * файлы от нового к старому. Когда файлов становится больше {@link #COMPACTION_THRESHOLD},
+ * фоновое слияние объединяет их в один.
+ */
+public class LsmTable extends TableImpl {
+    protected static final int COMPACTION_THRESHOLD = 4;
+    protected static final int SCAN_BATCH_SIZE = 4096;
+    private static final int KEY_LOCKS_COUNT = 64;
+    private static final String MANIFEST_FILE = "lsm.manifest";
+    private static final String MANIFEST_RUNS = "runs";
+    private static final String MANIFEST_ROWS = "rows";
+    private static final String MANIFEST_NEXT_RUN = "next.run";
+    private static final String RUN_PREFIX = "run.";
+    private static final String RUN_SUFFIX = ".sst";
+
+    protected ConcurrentSkipListMap<String, MemTableEntry> memTable = new ConcurrentSkipListMap<>();
+    protected ConcurrentSkipListMap<String, MemTableEntry> flushingMemTable = null;
+    protected List<SortedRunFile> runs = new ArrayList<>();
+    protected long runsRowsCount = 0;
+    protected long nextRunNumber = 0;
+    protected final AtomicBoolean compactionScheduled = new AtomicBoolean(false);
+    protected final ReentrantLock[] keyLocks = new ReentrantLock[KEY_LOCKS_COUNT];
+
+    /**
+     * Изменение ключа в таблице в памяти. row == null означает удаление. existedBelow - был ли ключ
+     * в файлах на момент первого изменения, по нему при сбросе пересчитывается число строк в файлах.
+     */
+    protected static class MemTableEntry {
+        private final boolean existedBelow;
+        private StoredRow row;
+
+        MemTableEntry(boolean existedBelow) {
+            this.existedBelow = existedBelow;
+        }
+    }
+
+    public LsmTable(File directory, TableProviderImpl tableProvider) throws IOException {
+        super(directory, tableProvider, TableConfig.read(directory));
+        for (int i = 0; i < keyLocks.length; i++) {
+            keyLocks[i] = new ReentrantLock();
+        }
+        if (config.getStorageEngine() != StorageEngine.LSM) {
+            throw new IOException("table '" + directory.getName() + "' uses "
+                    + config.getStorageEngine().getName() + " storage");
+        }
+        directoryLock = DirectoryLock.acquire(directory);
+        try {
+            openRuns();
+            recover();
+            writeAheadLog = new WriteAheadLog(directory);
+        } catch (IOException | RuntimeException e) {
+            for (SortedRunFile run : runs) {
+                FileMapUtils.closeStream(run);
+            }
+            FileMapUtils.closeStream(directoryLock);
+            throw e;
+        }
+        committedSnapshot = new Snapshot(0, dataBaseSize);
+    }
+
+    private void openRuns() throws IOException {
+        Properties manifest = new Properties();
+        File manifestFile = new File(dataDirectory, MANIFEST_FILE);
+        if (manifestFile.exists()) {
+            Reader reader = new InputStreamReader(new FileInputStream(manifestFile), StandardCharsets.UTF_8);
+            try {
+                manifest.load(reader);
+            } finally {
+                FileMapUtils.closeStream(reader);
+            }
+        }
+        Set<String> liveRuns = new HashSet<>();
+        try {
+            runsRowsCount = Long.parseLong(manifest.getProperty(MANIFEST_ROWS, "0"));
+            nextRunNumber = Long.parseLong(manifest.getProperty(MANIFEST_NEXT_RUN, "0"));
+            for (String runNumber : manifest.getProperty(MANIFEST_RUNS, "").split(",")) {
+                if (runNumber.isEmpty()) {
+                    continue;
+                }
+                File runFile = getRunFile(Long.parseLong(runNumber));
+                runs.add(new SortedRunFile(runFile));
+                liveRuns.add(runFile.getName());
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException(MANIFEST_FILE + " has wrong format", e);
+        }
+        for (File file : dataDirectory.listFiles()) {
+            if (file.getName().startsWith(RUN_PREFIX) && !liveRuns.contains(file.getName())) {
+                file.delete();
+            }
+        }
+        dataBaseSize = (int) runsRowsCount;
+    }
+
+    private void writeManifest() throws IOException {
+        StringBuilder runNumbers = new StringBuilder();
+        for (SortedRunFile run : runs) {
+            if (runNumbers.length() > 0) {
+                runNumbers.append(',');
+            }
+            String name = run.getFile().getName();
+            runNumbers.append(name.substring(RUN_PREFIX.length(), name.length() - RUN_SUFFIX.length()));
+        }
+        Properties manifest = new Properties();
+        manifest.setProperty(MANIFEST_RUNS, runNumbers.toString());
+        manifest.setProperty(MANIFEST_ROWS, Long.toString(runsRowsCount));
+        manifest.setProperty(MANIFEST_NEXT_RUN, Long.toString(nextRunNumber));
+
+        File tmpFile = new File(dataDirectory, MANIFEST_FILE + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmpFile);
+        Writer writer = new OutputStreamWriter(fos, StandardCharsets.UTF_8);
+        try {
+            manifest.store(writer, null);
+            writer.flush();
+            fos.getFD().sync();
+        } finally {
+            FileMapUtils.closeStream(writer);
+        }
+        Files.move(tmpFile.toPath(), new File(dataDirectory, MANIFEST_FILE).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private File getRunFile(long runNumber) {
+        return new File(dataDirectory, RUN_PREFIX + runNumber + RUN_SUFFIX);
+    }
+
+    private void recover() throws IOException {
+        Map<String, byte[]> puts = new HashMap<>();
+        Set<String> removes = new HashSet<>();
+        long lastGeneration = WriteAheadLog.replay(dataDirectory, puts, removes);
+        if (lastGeneration < 0) {
+            return;
+        }
+        dataBaseSize += applyChanges(toStoredRows(puts), removes);
+        if (!memTable.isEmpty()) {
+            flushingMemTable = memTable;
+            memTable = new ConcurrentSkipListMap<>();
+            publishRun(writeRun(flushingMemTable));
+        }
+        WriteAheadLog.deleteSegments(dataDirectory, lastGeneration);
+    }
+
+    @Override
+    protected void checkpoint() throws IOException {
+        long closedGeneration;
+        tableTransactionsLock.lock();
+        try {
+            if (memTable.isEmpty()) {
+                return;
+            }
+            closedGeneration = writeAheadLog.rotate();
+            flushingMemTable = memTable;
+            memTable = new ConcurrentSkipListMap<>();
+        } finally {
+            tableTransactionsLock.unlock();
+        }
+
+        SortedRunFile run;
+        try {
+            run = writeRun(flushingMemTable);
+        } catch (IOException e) {
+            tableTransactionsLock.lock();
+            try {
+                for (Map.Entry<String, MemTableEntry> entry : memTable.entrySet()) {
+                    MemTableEntry olderEntry = flushingMemTable.get(entry.getKey());
+                    if (olderEntry != null) {
+                        olderEntry.row = entry.getValue().row;
+                    } else {
+                        flushingMemTable.put(entry.getKey(), entry.getValue());
+                    }
+                }
+                memTable = flushingMemTable;
+                flushingMemTable = null;
+            } finally {
+                tableTransactionsLock.unlock();
+            }
+            throw e;
+        }
+        publishRun(run);
+        WriteAheadLog.deleteSegments(dataDirectory, closedGeneration);
+        if (runs.size() > COMPACTION_THRESHOLD) {
+            scheduleCompaction();
+        }
+    }
+
+    private SortedRunFile writeRun(ConcurrentSkipListMap<String, MemTableEntry> table) throws IOException {
+        boolean dropTombstones = runs.isEmpty();
+        File runFile = getRunFile(nextRunNumber++);
+        SortedRunFile.Writer writer = new SortedRunFile.Writer(runFile);
+        try {
+            for (Map.Entry<String, MemTableEntry> entry : table.entrySet()) {
+                StoredRow row = entry.getValue().row;
+                if (row != null) {
+                    writer.add(entry.getKey(), row.getData());
+                } else if (!dropTombstones) {
+                    writer.add(entry.getKey(), SortedRunFile.TOMBSTONE);
+                }
+            }
+            writer.finish();
+        } finally {
+            writer.close();
+        }
+        return new SortedRunFile(runFile);
+    }
+
+    private void publishRun(SortedRunFile run) throws IOException {
+        tableTransactionsLock.lock();
+        try {
+            runs.add(0, run);
+            for (MemTableEntry entry : flushingMemTable.values()) {
+                runsRowsCount += (entry.row != null ? 1 : 0) - (entry.existedBelow ? 1 : 0);
+            }
+            flushingMemTable = null;
+            writeManifest();
+        } finally {
+            tableTransactionsLock.unlock();
+        }
+    }
+
+    protected void scheduleCompaction() {
+        if (compactionScheduled.compareAndSet(false, true)) {
+            tableProvider.getCheckpointExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    checkpointLock.lock();
+                    try {
+                        if (!isClosed.get()) {
+                            compactRuns();
+                        }
+                    } catch (IOException e) {
+                        System.err.println(e.getMessage());
+                    } finally {
+                        compactionScheduled.set(false);
+                        checkpointLock.unlock();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Сливает все файлы таблицы в один. Новые файлы во время слияния не появляются, а чтение
+     * продолжает работать со старыми файлами.
+     */
+    public void compact() throws IOException {
+        checkIfClosed();
+        checkpointLock.lock();
+        try {
+            compactRuns();
+        } finally {
+            checkpointLock.unlock();
+        }
+    }
+
+    private void compactRuns() throws IOException {
+        List<SortedRunFile> merged;
+        tableTransactionsLock.lock();
+        try {
+            merged = new ArrayList<>(runs);
+        } finally {
+            tableTransactionsLock.unlock();
+        }
+        if (merged.size() < 2) {
+            return;
+        }
+        File runFile = getRunFile(nextRunNumber++);
+        SortedRunFile.merge(runFile, merged, true);
+        SortedRunFile run = new SortedRunFile(runFile);
+        tableTransactionsLock.lock();
+        try {
+            runs.removeAll(merged);
+            runs.add(run);
+            writeManifest();
+        } finally {
+            tableTransactionsLock.unlock();
+        }
+        for (SortedRunFile oldRun : merged) {
+            FileMapUtils.closeStream(oldRun);
+            oldRun.getFile().delete();
+        }
+    }
+
+    @Override
+    protected int applyChanges(Map<String, StoredRow> puts, Set<String> removes) {
+        int sizeDelta = 0;
+        for (String key : removes) {
+            sizeDelta += applyChange(key, null);
+        }
+        for (Map.Entry<String, StoredRow> entry : puts.entrySet()) {
+            sizeDelta += applyChange(entry.getKey(), entry.getValue());
+        }
+        return sizeDelta;
+    }
+
+    /**
+     * Таблица в памяти допускает параллельные изменения разных ключей, а таблицы в памяти и список файлов
+     * заменяются только под исключительной блокировкой. Поэтому фиксации и чтения с диска берут общую
+     * блокировку таблицы и блокировки своих ключей, как фиксации таблицы на сегментах.
+     */
+    @Override
+    protected List<Lock> lockKeys(Collection<String> keys) {
+        List<Lock> locks = new ArrayList<>();
+        sharedTableLock.lock();
+        locks.add(sharedTableLock);
+        Set<Integer> lockNumbers = new TreeSet<>();
+        for (String key : keys) {
+            lockNumbers.add((key.hashCode() & Integer.MAX_VALUE) % KEY_LOCKS_COUNT);
+        }
+        for (int lockNumber : lockNumbers) {
+            keyLocks[lockNumber].lock();
+            locks.add(keyLocks[lockNumber]);
+        }
+        return locks;
+    }
+
+    /**
+     * @return На сколько изменилось число строк таблицы.
+     */
+    private int applyChange(String key, StoredRow row) {
+        MemTableEntry entry = memTable.get(key);
+        boolean existed;
+        if (entry == null) {
+            existed = getStoredRow(key) != null;
+            entry = new MemTableEntry(existed);
+            memTable.put(key, entry);
+        } else {
+            existed = entry.row != null;
+        }
+        entry.row = row;
+        if (existed && row == null) {
+            return -1;
+        } else if (!existed && row != null) {
+            return 1;
+        }
+        return 0;
+    }
+
+    @Override
+    protected StoredRow getStoredRow(String key) {
+        MemTableEntry entry = memTable.get(key);
+        if (entry == null && flushingMemTable != null) {
+            entry = flushingMemTable.get(key);
+        }
+        if (entry != null) {
+            return entry.row;
+        }
+        try {
+            for (SortedRunFile run : runs) {
+                byte[] data = run.get(key);
+                if (data == SortedRunFile.TOMBSTONE) {
+                    return null;
+                }
+                if (data != null) {
+                    return new StoredRow(data);
+                }
+            }
+            return null;
+        } catch (IOException e) {
+            throw new RuntimeException("read error: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @throws IllegalStateException Всегда: строки LSM-таблицы не разложены по сегментам.
+     */
+    @Override
+    public void reshard(ShardLayout layout) {
+        throw new IllegalStateException("lsm table doesn't use shards");
+    }
+
+    /**
+     * Передаёт сканеру запрошенные столбцы зафиксированных строк порциями по {@link #SCAN_BATCH_SIZE}
+     * строк в порядке ключей. Строки читаются через {@link #scanRows} и декодируются целиком.
+     */
+    @Override
+    public void scan(final int[] columnIndexes, final ColumnScanner scanner) throws IOException {
+        checkIfClosed();
+        checkScanArguments(columnIndexes, scanner);
+        final List<TableRow> rows = new ArrayList<>(SCAN_BATCH_SIZE);
+        scanRows(config.getRowFormat(), new RowScanner() {
+            @Override
+            public void scan(String key, byte[] row) throws IOException {
+                try {
+                    rows.add(rowCodec.decode(row, LsmTable.this, tableProvider));
+                } catch (ParseException e) {
+                    throw new IOException("read error: " + e.getMessage(), e);
+                }
+                if (rows.size() == SCAN_BATCH_SIZE) {
+                    scanColumns(rows, columnIndexes, scanner);
+                }
+            }
+        });
+        if (!rows.isEmpty()) {
+            scanColumns(rows, columnIndexes, scanner);
+        }
+    }
+
+    private void scanColumns(List<TableRow> rows, int[] columnIndexes, ColumnScanner scanner) {
+        ColumnVector[] columns = new ColumnVector[columnIndexes.length];
+        for (int i = 0; i < columnIndexes.length; i++) {
+            columns[i] = ColumnVector.fromRows(getColumnType(columnIndexes[i]), columnIndexes[i], rows);
+        }
+        rows.clear();
+        scanner.scan(columns);
+    }
+
+    /**
+     * Передаёт сканеру все зафиксированные строки в порядке ключей. Сначала сбрасывает таблицу в памяти
+     * в файл, а если файлов несколько, сливает их во временный файл, как при слиянии, и читает его.
+     */
+    @Override
+    public void scanRows(RowFormat rowFormat, RowScanner scanner) throws IOException {
+        checkIfClosed();
+        if (rowFormat == null || scanner == null) {
+            throw new IllegalArgumentException("null argument");
+        }
+        checkpointLock.lock();
+        try {
+            checkIfClosed();
+            checkpoint();
+            List<SortedRunFile> scanned;
+            tableTransactionsLock.lock();
+            try {
+                scanned = new ArrayList<>(runs);
+            } finally {
+                tableTransactionsLock.unlock();
+            }
+            if (scanned.isEmpty()) {
+                return;
+            }
+            SortedRunFile merged = scanned.get(0);
+            if (scanned.size() > 1) {
+                File mergedFile = getRunFile(nextRunNumber++);
+                SortedRunFile.merge(mergedFile, scanned, true);
+                merged = new SortedRunFile(mergedFile);
+            }
+            try {
+                SortedRunFile.Reader reader = merged.openReader();
+                try {
+                    while (reader.next()) {
+                        if (reader.getValue() != SortedRunFile.TOMBSTONE) {
+                            scanner.scan(reader.getKey(), recode(reader.getValue(), rowFormat));
+                        }
+                    }
+                } finally {
+                    FileMapUtils.closeStream(reader);
+                }
+            } finally {
+                if (merged != scanned.get(0)) {
+                    FileMapUtils.closeStream(merged);
+                    merged.getFile().delete();
+                }
+            }
+        } finally {
+            checkpointLock.unlock();
+        }
+    }
+
+    /**
+     * Строки LSM-таблицы и так лежат в файлах прогонов, поэтому выгрузка только сбрасывает memtable на диск.
+     */
+    @Override
+    boolean unload() {
+        checkpointLock.lock();
+        try {
+            if (!isClosed.get()) {
+                checkpoint();
+            }
+            return true;
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return false;
+        } finally {
+            checkpointLock.unlock();
+        }
+    }
+
+    public int getRunsCount() {
+        tableTransactionsLock.lock();
+        try {
+            return runs.size();
+        } finally {
+            tableTransactionsLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        checkpointLock.lock();
+        try {
+            if (!isClosed.get()) {
+                super.close();
+                for (SortedRunFile run : runs) {
+                    FileMapUtils.closeStream(run);
+                }
+            }
+        } finally {
+            checkpointLock.unlock();
+        }
+    }
+}
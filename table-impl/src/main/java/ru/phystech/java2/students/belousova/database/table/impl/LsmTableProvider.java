@@ -0,0 +1,52 @@
+package ru.phystech.java2.students.belousova.database.table.impl;
+
+import ru.phystech.java2.students.belousova.database.table.api.Table;
+import ru.phystech.java2.students.belousova.database.table.utils.StorageEngine;
+import ru.phystech.java2.students.belousova.database.table.utils.TableConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Провайдер, хранящий таблицы в {@link LsmTable}. Все таблицы его директории должны быть созданы им же.
+ */
+public class LsmTableProvider extends TableProviderImpl {
+
+    public LsmTableProvider(File directory) throws IOException {
+        super(directory);
+    }
+
+    public LsmTableProvider(File directory, ExecutorService loadExecutor) throws IOException {
+        super(directory, loadExecutor);
+    }
+
+    @Override
+    protected TableImpl openTable(File tableFile) throws IOException {
+        return new LsmTable(tableFile, this);
+    }
+
+    @Override
+    public Table createTable(String name, List<Class<?>> columnTypes, TableConfig config) throws IOException {
+        TableConfig lsmConfig = null;
+        if (config != null) {
+            lsmConfig = config.copy();
+            lsmConfig.setStorageEngine(StorageEngine.LSM);
+        }
+        return super.createTable(name, columnTypes, lsmConfig);
+    }
+
+    @Override
+    public StorageEngine getStorageEngine() {
+        return StorageEngine.LSM;
+    }
+
+    /**
+     * @throws IllegalStateException Всегда: загрузчик пишет файлы сегментов, а таблицы провайдера хранятся в LSM.
+     */
+    @Override
+    public BulkLoader createBulkLoader(String name, List<Class<?>> columnTypes, TableConfig config) {
+        throw new IllegalStateException("lsm tables can't be bulk loaded");
+    }
+}
@@ -0,0 +1,16 @@
+package ru.phystech.java2.students.belousova.database.table.impl;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Фабрика провайдеров на LSM-дереве. Не объявлена сервисом, чтобы в контексте Spring оставалась
+ * одна реализация {@link ru.phystech.java2.students.belousova.database.table.api.TableProviderFactory}.
+ */
+public class LsmTableProviderFactory extends TableProviderFactoryImpl {
+
+    @Override
+    protected TableProviderImpl createProvider(File directory) throws IOException {
+        return new LsmTableProvider(directory);
+    }
+}
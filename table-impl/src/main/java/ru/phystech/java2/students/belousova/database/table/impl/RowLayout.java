@@ -0,0 +1,131 @@
+package ru.phystech.java2.students.belousova.database.table.impl;
+
+import ru.phystech.java2.students.belousova.database.table.api.Table;
+import ru.phystech.java2.students.belousova.database.table.utils.TableUtils;
+
+import java.util.List;
+
+/**
+ * Раскладка столбцов таблицы по ячейкам {@link TableRowImpl}: числа и логические значения занимают
+ * по одной ячейке массива long, строки - ячейку массива String. Вычисляется один раз на таблицу.
+ * Для строковых столбцов раскладка хранит небольшой кеш недавних значений, через который строки
+ * таблицы делят одинаковые значения. {@link String#intern()} не используется: он держал бы
+ * все значения пользователей в общем пуле JVM, а кеш ограничен {@link #STRINGS_CACHE_SIZE} строками на столбец.
+ */
+class RowLayout {
+    static final int INT = 0;
+    static final int LONG = 1;
+    static final int BYTE = 2;
+    static final int FLOAT = 3;
+    static final int DOUBLE = 4;
+    static final int BOOLEAN = 5;
+    static final int STRING = 6;
+    private static final int STRINGS_CACHE_SIZE = 256;
+
+    private final Class<?>[] columnTypes;
+    private final int[] kinds;
+    private final int[] slots;
+    private final int primitivesCount;
+    private final int stringsCount;
+    private final String[][] stringsCache;
+
+    RowLayout(Table table) {
+        this(TableUtils.getColumnTypes(table));
+    }
+
+    RowLayout(List<Class<?>> types) {
+        int columnsCount = types.size();
+        columnTypes = new Class<?>[columnsCount];
+        kinds = new int[columnsCount];
+        slots = new int[columnsCount];
+        int primitives = 0;
+        int strings = 0;
+        for (int i = 0; i < columnsCount; i++) {
+            columnTypes[i] = types.get(i);
+            kinds[i] = getKind(columnTypes[i]);
+            slots[i] = kinds[i] == STRING ? strings++ : primitives++;
+        }
+        primitivesCount = primitives;
+        stringsCount = strings;
+        stringsCache = new String[strings][STRINGS_CACHE_SIZE];
+    }
+
+    private static int getKind(Class<?> columnType) {
+        switch (columnType.getName()) {
+            case "java.lang.Integer":
+                return INT;
+            case "java.lang.Long":
+                return LONG;
+            case "java.lang.Byte":
+                return BYTE;
+            case "java.lang.Float":
+                return FLOAT;
+            case "java.lang.Double":
+                return DOUBLE;
+            case "java.lang.Boolean":
+                return BOOLEAN;
+            case "java.lang.String":
+                return STRING;
+            default:
+                throw new IllegalArgumentException("wrong column type");
+        }
+    }
+
+    int getColumnsCount() {
+        return columnTypes.length;
+    }
+
+    Class<?> getColumnType(int columnIndex) {
+        return columnTypes[columnIndex];
+    }
+
+    int getKind(int columnIndex) {
+        return kinds[columnIndex];
+    }
+
+    int getSlot(int columnIndex) {
+        return slots[columnIndex];
+    }
+
+    int getPrimitivesCount() {
+        return primitivesCount;
+    }
+
+    int getStringsCount() {
+        return stringsCount;
+    }
+
+    /**
+     * @return Равную строку из кеша столбца, если она там есть, иначе саму строку, которая занимает её место
+     *         в кеше. Гонки при записи в кеш безопасны: в худшем случае строка не будет переиспользована.
+     */
+    String deduplicate(int slot, String value) {
+        String[] cache = stringsCache[slot];
+        int hash = value.hashCode();
+        int index = (hash ^ (hash >>> 16)) & (STRINGS_CACHE_SIZE - 1);
+        String cached = cache[index];
+        if (cached != null && cached.hashCode() == hash && cached.equals(value)) {
+            return cached;
+        }
+        cache[index] = value;
+        return value;
+    }
+
+    /**
+     * Раскладки совпадают, если совпадают типы столбцов.
+     */
+    boolean isCompatible(RowLayout other) {
+        if (other == this) {
+            return true;
+        }
+        if (other.columnTypes.length != columnTypes.length) {
+            return false;
+        }
+        for (int i = 0; i < columnTypes.length; i++) {
+            if (other.columnTypes[i] != columnTypes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -1,261 +1,1481 @@
 package ru.phystech.java2.students.belousova.database.table.impl;
 
-import ru.phystech.java2.students.belousova.database.table.api.ColumnFormatException;
+import org.apache.commons.io.FileUtils;
 import ru.phystech.java2.students.belousova.database.table.api.Table;
 import ru.phystech.java2.students.belousova.database.table.api.TableRow;
+import ru.phystech.java2.students.belousova.database.table.api.Transaction;
+import ru.phystech.java2.students.belousova.database.table.utils.BloomFilter;
+import ru.phystech.java2.students.belousova.database.table.utils.ColumnFileUtils;
+import ru.phystech.java2.students.belousova.database.table.utils.ColumnScanner;
+import ru.phystech.java2.students.belousova.database.table.utils.ColumnVector;
+import ru.phystech.java2.students.belousova.database.table.utils.DirectoryLock;
+import ru.phystech.java2.students.belousova.database.table.utils.FileMapUtils;
+import ru.phystech.java2.students.belousova.database.table.utils.MultiFileUtils;
+import ru.phystech.java2.students.belousova.database.table.utils.RowCodec;
+import ru.phystech.java2.students.belousova.database.table.utils.RowFormat;
+import ru.phystech.java2.students.belousova.database.table.utils.RowScanner;
+import ru.phystech.java2.students.belousova.database.table.utils.RowStorage;
+import ru.phystech.java2.students.belousova.database.table.utils.ShardFileIndex;
+import ru.phystech.java2.students.belousova.database.table.utils.ShardLayout;
+import ru.phystech.java2.students.belousova.database.table.utils.StorageEngine;
+import ru.phystech.java2.students.belousova.database.table.utils.StoredRow;
+import ru.phystech.java2.students.belousova.database.table.utils.TableConfig;
+import ru.phystech.java2.students.belousova.database.table.utils.TableCatalog;
 import ru.phystech.java2.students.belousova.database.table.utils.TableUtils;
+import ru.phystech.java2.students.belousova.database.table.utils.WriteAheadLog;
 
 import java.io.File;
 import java.io.IOException;
+import java.text.ParseException;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class TableImpl implements Table {
+    protected static final long CHECKPOINT_THRESHOLD = 4 * 1024 * 1024;
+    protected static final int CHANGES_POOL_SIZE = 64;
+    protected static final int POOLED_CHANGES_LIMIT = 4096;
+
     private List<Class<?>> columnTypes = new ArrayList<>();
+    private RowLayout rowLayout;
     TableProviderImpl tableProvider = null;
+    protected RowCodec rowCodec;
+    protected RowStorage rowStorage;
+
+    protected static final String SHARDS_LOCATION_PREFIX = "shards.";
 
-    protected Map<String, TableRow> dataBase = new HashMap<>();
-    protected ThreadLocal<Map<String, TableRow>> addedKeys;
-    protected ThreadLocal<Set<String>> deletedKeys;
+    protected TableConfig config;
+    protected ShardLayout shardLayout;
+    protected File shardsDirectory;
+    protected Map<String, StoredRow>[][] dataBase;
+    protected int dataBaseSize = 0;
+    protected boolean[][] dirtyBuckets;
+    protected boolean[][] checkpointBuckets;
+    protected boolean[][] storedBuckets;
+    protected BloomFilter[][] bloomFilters;
+    protected ShardFileIndex[][] shardIndexes;
+    protected final LinkedHashMap<Integer, Boolean> residentBuckets = new LinkedHashMap<>(16, 0.75f, true);
+    protected final Lock residentBucketsLock = new ReentrantLock();
+    protected int residentBucketsLimit;
+    protected volatile ResidentBuckets residentView = null;
+    protected ThreadLocal<TransactionImpl> threadTransactions;
+    protected final BlockingQueue<Changes> changesPool = new ArrayBlockingQueue<>(CHANGES_POOL_SIZE);
 
-    protected final Lock tableTransactionsLock = new ReentrantLock(true);
+    protected volatile Snapshot committedSnapshot = new Snapshot(0, 0);
+    protected final ConcurrentHashMap<String, RowVersion> recentVersions = new ConcurrentHashMap<>();
+    protected final TreeMap<Long, Integer> activeSnapshots = new TreeMap<>();
+    protected int activeSnapshotsCount = 0;
+    protected long lastVersion = 0;
+    protected volatile int unversionedCommits = 0;
+    protected volatile long startedUnversionedCommits = 0;
+    protected final Lock snapshotsLock = new ReentrantLock();
+    protected final Condition snapshotsChanged = snapshotsLock.newCondition();
+    protected long collectedVersion = -1;
+
+    /**
+     * Фиксации и чтения файлов с диска берут общую блокировку таблицы и блокировки своих файлов,
+     * поэтому фиксации с ключами в разных файлах идут параллельно. Контрольная точка, перераскладка
+     * и выгрузка берут исключительную блокировку tableTransactionsLock.
+     */
+    protected final ReentrantReadWriteLock tableLock = new ReentrantReadWriteLock(true);
+    protected final Lock tableTransactionsLock = tableLock.writeLock();
+    protected final Lock sharedTableLock = tableLock.readLock();
+    protected ReentrantLock[] bucketLocks;
+    protected final Lock checkpointLock = new ReentrantLock();
+    protected final AtomicBoolean checkpointScheduled = new AtomicBoolean(false);
+    protected WriteAheadLog writeAheadLog;
+    protected DirectoryLock directoryLock;
 
     protected File dataDirectory = null;
 
     protected AtomicBoolean isClosed = new AtomicBoolean(false);
 
+    /**
+     * Зафиксированная версия таблицы: номер последнего применённого commit и число строк после него.
+     */
+    protected static class Snapshot {
+        final long version;
+        final int size;
+
+        Snapshot(long version, int size) {
+            this.version = version;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Значение ключа, зафиксированное в версии version и видное снимкам до следующего значения цепочки.
+     * Значение null означает удалённый ключ. Последнее звено цепочки видно всем активным снимкам.
+     */
+    protected static class RowVersion {
+        final long version;
+        final StoredRow row;
+        volatile RowVersion older;
+
+        RowVersion(long version, StoredRow row, RowVersion older) {
+            this.version = version;
+            this.row = row;
+            this.older = older;
+        }
+
+        StoredRow find(long snapshotVersion) {
+            RowVersion current = this;
+            while (current.version > snapshotVersion) {
+                current = current.older;
+            }
+            return current.row;
+        }
+
+        /**
+         * Поиск для версии, не зарегистрированной как снимок.
+         *
+         * @return Звено, видное версии, или null, если сборка версий уже обрезала цепочку до него.
+         */
+        RowVersion findUnregistered(long snapshotVersion) {
+            RowVersion current = this;
+            while (current != null && current.version > snapshotVersion) {
+                current = current.older;
+            }
+            return current;
+        }
+    }
+
+    /**
+     * Незафиксированные изменения транзакции. Для каждого ключа помнит его значение в снимке транзакции
+     * и хранит только ключи, значение которых от него отличается, поэтому число изменений и размер
+     * таблицы в транзакции пересчитываются при каждом put и remove, а не обходом всех изменений.
+     */
+    protected static class Changes {
+        final Map<String, Change> keys = new HashMap<>();
+        int changesCount = 0;
+        int sizeDelta = 0;
+
+        /**
+         * @param committed Значение ключа в снимке транзакции.
+         * @param value Новое значение ключа, null - удаление.
+         */
+        void set(String key, TableRow committed, TableRow value) {
+            Change change = keys.get(key);
+            TableRow oldValue = change != null ? change.value : committed;
+            boolean isChanged = committed == null ? value != null : !committed.equals(value);
+            if (isChanged) {
+                if (change == null) {
+                    keys.put(key, new Change(committed, value));
+                    changesCount++;
+                } else {
+                    change.value = value;
+                }
+            } else if (change != null) {
+                keys.remove(key);
+                changesCount--;
+            }
+            sizeDelta += (value != null ? 1 : 0) - (oldValue != null ? 1 : 0);
+        }
+
+        void clear() {
+            keys.clear();
+            changesCount = 0;
+            sizeDelta = 0;
+        }
+    }
+
+    protected static class Change {
+        final TableRow committed;
+        TableRow value;
+
+        Change(TableRow committed, TableRow value) {
+            this.committed = committed;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Загруженные файлы таблицы, которые можно читать без блокировок. Меняется вместе с dataBase
+     * под блокировкой и целиком заменяется при перераскладке, поэтому номер файла считается по той раскладке,
+     * для которой заполнен массив. Флаг accessed заменяет чтению без блокировки перестановку файла
+     * в очереди residentBuckets: при вытеснении отмеченные файлы переносятся в её конец.
+     */
+    protected static class ResidentBuckets {
+        final ShardLayout layout;
+        final AtomicReferenceArray<Map<String, StoredRow>> buckets;
+        final AtomicIntegerArray accessed;
+
+        ResidentBuckets(ShardLayout layout) {
+            this.layout = layout;
+            buckets = new AtomicReferenceArray<>(layout.getBucketsCount());
+            accessed = new AtomicIntegerArray(layout.getBucketsCount());
+        }
+    }
+
     public TableImpl(File directory, TableProviderImpl tableProvider) throws IOException {
+        this(directory, tableProvider, TableConfig.read(directory));
+        if (config.getStorageEngine() != StorageEngine.SHARDS) {
+            throw new IOException("table '" + directory.getName() + "' uses "
+                    + config.getStorageEngine().getName() + " storage");
+        }
+        directoryLock = DirectoryLock.acquire(directory);
+        try {
+            openShards();
+        } catch (IOException | RuntimeException e) {
+            FileMapUtils.closeStream(directoryLock);
+            throw e;
+        }
+    }
+
+    private void openShards() throws IOException {
+        shardLayout = config.getShardLayout();
+        shardsDirectory = getShardsDirectory(config.getShardsLocation());
+        deleteStaleShards();
+        dataBase = new Map[shardLayout.getDirectoriesCount()][shardLayout.getFilesCount()];
+        residentView = new ResidentBuckets(shardLayout);
+        bucketLocks = newBucketLocks(shardLayout);
+        dirtyBuckets = newBucketFlags();
+        checkpointBuckets = newBucketFlags();
+        bloomFilters = new BloomFilter[shardLayout.getDirectoriesCount()][shardLayout.getFilesCount()];
+        shardIndexes = new ShardFileIndex[shardLayout.getDirectoriesCount()][shardLayout.getFilesCount()];
+        boolean isCatalogued = readCatalogShards();
+        if (config.isPreload()) {
+            TableUtils.readTable(shardsDirectory, shardLayout, dataBase, storedBuckets, rowStorage,
+                    tableProvider.getLoadExecutor());
+            for (int i = 0; i < shardLayout.getDirectoriesCount(); i++) {
+                for (int j = 0; j < shardLayout.getFilesCount(); j++) {
+                    dataBaseSize += dataBase[i][j].size();
+                    storedBuckets[i][j] = !dataBase[i][j].isEmpty();
+                    setBucket(i, j, dataBase[i][j]);
+                    residentBuckets.put(i * shardLayout.getFilesCount() + j, true);
+                }
+            }
+        } else if (isCatalogued) {
+            dataBaseSize = tableProvider.getCatalog().getRowsCount(dataDirectory.getName());
+        } else {
+            dataBaseSize = TableUtils.countRows(shardsDirectory, shardLayout, storedBuckets,
+                    tableProvider.getLoadExecutor());
+        }
+        if (!recover() && !isCatalogued) {
+            writeCatalogShards(dataBaseSize);
+        }
+        writeAheadLog = new WriteAheadLog(dataDirectory);
+        committedSnapshot = new Snapshot(0, dataBaseSize);
+    }
+
+    /**
+     * Берёт список непустых файлов из каталога провайдера. Если каталог о них не знает или
+     * суммарная длина этих файлов не совпадает с записанной в каталоге, все файлы считаются
+     * возможно существующими.
+     *
+     * @return true, если каталог знает файлы таблицы и число строк в них.
+     */
+    private boolean readCatalogShards() {
+        storedBuckets = newBucketFlags();
+        TableCatalog catalog = tableProvider.getCatalog();
+        catalog.refresh();
+        int[] shards = catalog.getShards(dataDirectory.getName());
+        if (shards != null) {
+            boolean isValid = true;
+            for (int bucketNumber : shards) {
+                if (bucketNumber < 0 || bucketNumber >= shardLayout.getBucketsCount()) {
+                    isValid = false;
+                    break;
+                }
+                storedBuckets[bucketNumber / shardLayout.getFilesCount()]
+                        [bucketNumber % shardLayout.getFilesCount()] = true;
+            }
+            if (isValid && getStoredLength() == catalog.getDataLength(dataDirectory.getName())) {
+                return true;
+            }
+            storedBuckets = newBucketFlags();
+        }
+        for (boolean[] directoryBuckets : storedBuckets) {
+            Arrays.fill(directoryBuckets, true);
+        }
+        return false;
+    }
+
+    /**
+     * Сохраняет в каталог провайдера текущие непустые файлы таблицы. Ошибка записи не страшна:
+     * перед записью файлов сведения о них уже сброшены, и таблица просто откроется без каталога.
+     */
+    private void writeCatalogShards(int rowsCount) {
+        List<Integer> shards = new ArrayList<>();
+        for (int i = 0; i < shardLayout.getDirectoriesCount(); i++) {
+            for (int j = 0; j < shardLayout.getFilesCount(); j++) {
+                if (storedBuckets[i][j]) {
+                    shards.add(i * shardLayout.getFilesCount() + j);
+                }
+            }
+        }
+        int[] shardNumbers = new int[shards.size()];
+        for (int i = 0; i < shardNumbers.length; i++) {
+            shardNumbers[i] = shards.get(i);
+        }
+        try {
+            tableProvider.getCatalog().setShards(dataDirectory.getName(), rowsCount, shardNumbers,
+                    getStoredLength());
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+
+    /**
+     * @return Суммарная длина файлов непустых сегментов.
+     */
+    private long getStoredLength() {
+        long length = 0;
+        for (int i = 0; i < shardLayout.getDirectoriesCount(); i++) {
+            for (int j = 0; j < shardLayout.getFilesCount(); j++) {
+                if (storedBuckets[i][j]) {
+                    length += new File(new File(shardsDirectory, i + ".dir"), j + ".dat").length();
+                }
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Читает сигнатуру и настройки таблицы. Загрузкой данных и журналом занимается конструктор
+     * конкретного хранилища.
+     */
+    protected TableImpl(File directory, TableProviderImpl tableProvider, TableConfig config) throws IOException {
         dataDirectory = directory;
         this.tableProvider = tableProvider;
-        File signatureFile = new File(directory, "signature.tsv");
-        TableUtils.readSignature(signatureFile, columnTypes);
-        TableUtils.readTable(directory, this, dataBase, tableProvider);
-        addedKeys = new ThreadLocal<Map<String, TableRow>>() {
+        this.config = config;
+        List<Class<?>> cataloguedTypes = tableProvider.getCatalog().getColumnTypes(directory.getName());
+        if (cataloguedTypes != null) {
+            columnTypes.addAll(cataloguedTypes);
+        } else {
+            File signatureFile = new File(directory, "signature.tsv");
+            TableUtils.readSignature(signatureFile, columnTypes);
+            tableProvider.getCatalog().setColumnTypes(directory.getName(), columnTypes);
+        }
+        rowLayout = new RowLayout(this);
+        rowCodec = config.getRowFormat().getCodec();
+        rowStorage = config.getRowStorage();
+        residentBucketsLimit = config.getResidentShardsLimit();
+        threadTransactions = new ThreadLocal<TransactionImpl>() {
             @Override
-            public Map<String, TableRow> initialValue() {
-                return new HashMap<>();
+            public TransactionImpl initialValue() {
+                return new TransactionImpl(TableImpl.this);
             }
         };
-        deletedKeys = new ThreadLocal<Set<String>>() {
-            @Override
-            public Set<String> initialValue() {
-                return new HashSet<>();
+    }
+
+    /**
+     * @return true, если из журнала были восстановлены изменения и файлы таблицы перезаписаны.
+     */
+    private boolean recover() throws IOException {
+        Map<String, byte[]> puts = new HashMap<>();
+        Set<String> removes = new HashSet<>();
+        long lastGeneration = WriteAheadLog.replay(dataDirectory, puts, removes);
+        if (lastGeneration < 0) {
+            return false;
+        }
+        dataBaseSize += applyChanges(toStoredRows(puts), removes);
+        tableProvider.getCatalog().invalidateShards(dataDirectory.getName());
+        writeShards(shardsDirectory, shardLayout, dataBase, dirtyBuckets);
+        for (int i = 0; i < shardLayout.getDirectoriesCount(); i++) {
+            for (int j = 0; j < shardLayout.getFilesCount(); j++) {
+                if (dirtyBuckets[i][j]) {
+                    storedBuckets[i][j] = !dataBase[i][j].isEmpty();
+                }
             }
-        };
+        }
+        dirtyBuckets = newBucketFlags();
+        writeCatalogShards(dataBaseSize);
+        WriteAheadLog.deleteSegments(dataDirectory, lastGeneration);
+        return true;
     }
 
-    public String getName() {
-        checkIfClosed();
-        return dataDirectory.getName();
+    protected static Map<String, StoredRow> toStoredRows(Map<String, byte[]> rows) {
+        Map<String, StoredRow> storedRows = new HashMap<>();
+        for (Map.Entry<String, byte[]> entry : rows.entrySet()) {
+            storedRows.put(entry.getKey(), new StoredRow(entry.getValue()));
+        }
+        return storedRows;
     }
 
-    public int size() {
-        checkIfClosed();
+    /**
+     * Применяет зафиксированные изменения к хранилищу. Вызывается под блокировками из {@link #lockKeys(Collection)}
+     * после того, как изменения записаны в журнал.
+     *
+     * @return На сколько изменилось число строк таблицы.
+     */
+    protected int applyChanges(Map<String, StoredRow> puts, Set<String> removes) {
+        int sizeDelta = 0;
+        for (String key : removes) {
+            int nDirectory = shardLayout.getDirectoryNumber(key);
+            int nFile = shardLayout.getFileNumber(key);
+            if (getBucket(nDirectory, nFile).remove(key) != null) {
+                sizeDelta--;
+            }
+            dirtyBuckets[nDirectory][nFile] = true;
+        }
+        for (Map.Entry<String, StoredRow> entry : puts.entrySet()) {
+            int nDirectory = shardLayout.getDirectoryNumber(entry.getKey());
+            int nFile = shardLayout.getFileNumber(entry.getKey());
+            if (getBucket(nDirectory, nFile).put(entry.getKey(), entry.getValue()) == null) {
+                sizeDelta++;
+            }
+            dirtyBuckets[nDirectory][nFile] = true;
+        }
+        return sizeDelta;
+    }
 
-        tableTransactionsLock.lock();
+    /**
+     * Блокирует файлы таблицы, в которых лежат ключи (номер файла считается так же, как в IsKeyValid),
+     * в порядке их номеров, поэтому фиксации не могут ждать друг друга по кругу.
+     *
+     * @return Взятые блокировки, которые нужно передать в {@link #unlockKeys(List)}.
+     */
+    protected List<Lock> lockKeys(Collection<String> keys) {
+        List<Lock> locks = new ArrayList<>();
+        sharedTableLock.lock();
+        locks.add(sharedTableLock);
         try {
-            for (String key : deletedKeys.get()) {
-                if (!dataBase.containsKey(key)) {
-                    deletedKeys.get().remove(key);
-                }
+            Set<Integer> bucketNumbers = new TreeSet<>();
+            for (String key : keys) {
+                bucketNumbers.add(shardLayout.getBucketNumber(key));
+            }
+            for (int bucketNumber : bucketNumbers) {
+                bucketLocks[bucketNumber].lock();
+                locks.add(bucketLocks[bucketNumber]);
+            }
+        } catch (RuntimeException e) {
+            unlockKeys(locks);
+            throw e;
+        }
+        return locks;
+    }
+
+    protected void unlockKeys(List<Lock> locks) {
+        for (int i = locks.size() - 1; i >= 0; i--) {
+            locks.get(i).unlock();
+        }
+    }
+
+    private static ReentrantLock[] newBucketLocks(ShardLayout layout) {
+        ReentrantLock[] locks = new ReentrantLock[layout.getBucketsCount()];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        return locks;
+    }
+
+    private File getShardsDirectory(String location) throws IOException {
+        if (location.isEmpty()) {
+            return dataDirectory;
+        }
+        File directory = new File(dataDirectory, location);
+        if (!directory.exists() && !directory.mkdir()) {
+            throw new IOException("cannot create directory '" + location + "'");
+        }
+        return directory;
+    }
+
+    /**
+     * Удаляет файлы раскладок, оставшиеся от прерванной или завершённой перераскладки.
+     */
+    private void deleteStaleShards() throws IOException {
+        File[] files = dataDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!file.isDirectory() || file.equals(shardsDirectory)) {
+                continue;
+            }
+            boolean isLayoutDirectory = file.getName().startsWith(SHARDS_LOCATION_PREFIX);
+            boolean isRootShard = !shardsDirectory.equals(dataDirectory) && file.getName().matches("\\d+\\.dir");
+            if (isLayoutDirectory || isRootShard) {
+                FileUtils.deleteDirectory(file);
             }
-            Set<String> addedKeysSet = addedKeys.get().keySet();
-            Set<String> addedKeysForDeletion = new HashSet<>();
-            for (String key : addedKeysSet) {
-                if (dataBase.containsKey(key)) {
-                    if (dataBase.get(key).equals(addedKeys.get().get(key))) {
-                        addedKeysForDeletion.add(key);
-                        if (deletedKeys.get().contains(key)) {
-                            deletedKeys.get().remove(key);
+        }
+    }
+
+    private boolean[][] newBucketFlags() {
+        return new boolean[shardLayout.getDirectoriesCount()][shardLayout.getFilesCount()];
+    }
+
+    /**
+     * Перераскладывает строки таблицы по новым файлам, не закрывая её. Фиксации других потоков
+     * на это время ждут. Новые файлы пишутся в отдельную поддиректорию, а переключение на неё -
+     * одна атомарная запись table.properties, поэтому после сбоя таблица остаётся целиком
+     * в старой или в новой раскладке.
+     *
+     * @throws IllegalStateException Если таблица не хранит строки в сегментах, см. {@link #getStorageEngine()}.
+     */
+    public void reshard(ShardLayout layout) throws IOException {
+        checkIfClosed();
+        checkpointLock.lock();
+        try {
+            tableTransactionsLock.lock();
+            try {
+                checkIfClosed();
+                checkpoint();
+                if (layout.equals(shardLayout)) {
+                    return;
+                }
+
+                Map<String, StoredRow>[][] newDataBase = new Map[layout.getDirectoriesCount()][layout.getFilesCount()];
+                boolean[][] newBuckets = new boolean[layout.getDirectoriesCount()][layout.getFilesCount()];
+                for (int i = 0; i < layout.getDirectoriesCount(); i++) {
+                    for (int j = 0; j < layout.getFilesCount(); j++) {
+                        newDataBase[i][j] = rowStorage.newBucket(0);
+                        newBuckets[i][j] = true;
+                    }
+                }
+                for (int i = 0; i < shardLayout.getDirectoriesCount(); i++) {
+                    for (int j = 0; j < shardLayout.getFilesCount(); j++) {
+                        Map<String, StoredRow> bucket = dataBase[i][j];
+                        if (bucket == null) {
+                            bucket = TableUtils.readBucket(shardsDirectory, shardLayout, i, j, rowStorage);
                         }
-                    } else {
-                        if (!deletedKeys.get().contains(key)) {
-                            deletedKeys.get().add(key);
+                        for (Map.Entry<String, StoredRow> entry : bucket.entrySet()) {
+                            int nDirectory = layout.getDirectoryNumber(entry.getKey());
+                            int nFile = layout.getFileNumber(entry.getKey());
+                            newDataBase[nDirectory][nFile].put(entry.getKey(), entry.getValue());
                         }
                     }
                 }
+
+                String location = getNextShardsLocation();
+                File newShardsDirectory = new File(dataDirectory, location);
+                if (newShardsDirectory.exists()) {
+                    FileUtils.deleteDirectory(newShardsDirectory);
+                }
+                if (!newShardsDirectory.mkdir()) {
+                    throw new IOException("cannot create directory '" + location + "'");
+                }
+                tableProvider.getCatalog().invalidateShards(dataDirectory.getName());
+                writeShards(newShardsDirectory, layout, newDataBase, newBuckets);
+                config.setShardLayout(layout);
+                config.setShardsLocation(location);
+                config.write(dataDirectory);
+
+                File oldShardsDirectory = shardsDirectory;
+                ShardLayout oldLayout = shardLayout;
+                shardLayout = layout;
+                shardsDirectory = newShardsDirectory;
+                dirtyBuckets = newBucketFlags();
+                checkpointBuckets = newBucketFlags();
+                storedBuckets = newBucketFlags();
+                for (int i = 0; i < layout.getDirectoriesCount(); i++) {
+                    for (int j = 0; j < layout.getFilesCount(); j++) {
+                        storedBuckets[i][j] = !newDataBase[i][j].isEmpty();
+                    }
+                }
+                bloomFilters = new BloomFilter[layout.getDirectoriesCount()][layout.getFilesCount()];
+                shardIndexes = new ShardFileIndex[layout.getDirectoriesCount()][layout.getFilesCount()];
+                residentBuckets.clear();
+                ResidentBuckets newResidentView = new ResidentBuckets(layout);
+                if (residentBucketsLimit == 0) {
+                    dataBase = newDataBase;
+                    for (int i = 0; i < layout.getBucketsCount(); i++) {
+                        residentBuckets.put(i, true);
+                        newResidentView.buckets.set(i,
+                                newDataBase[i / layout.getFilesCount()][i % layout.getFilesCount()]);
+                    }
+                } else {
+                    dataBase = new Map[layout.getDirectoriesCount()][layout.getFilesCount()];
+                }
+                residentView = newResidentView;
+                bucketLocks = newBucketLocks(layout);
+                deleteShards(oldShardsDirectory, oldLayout);
+                writeCatalogShards(dataBaseSize);
+            } finally {
+                tableTransactionsLock.unlock();
             }
-            addedKeys.get().keySet().removeAll(addedKeysForDeletion);
-            return dataBase.size() + addedKeys.get().size() - deletedKeys.get().size();
         } finally {
-            tableTransactionsLock.unlock();
+            checkpointLock.unlock();
         }
     }
 
-    protected int countChanges() {
-        checkIfClosed();
+    public ShardLayout getShardLayout() {
+        return shardLayout;
+    }
 
-        int changesCounter = addedKeys.get().size() + deletedKeys.get().size();
+    public StorageEngine getStorageEngine() {
+        return config.getStorageEngine();
+    }
 
-        for (String key : addedKeys.get().keySet()) {
-            if (deletedKeys.get().contains(key)) {
-                changesCounter--;
-                if (dataBase.get(key).equals(addedKeys.get().get(key))) {
-                    changesCounter--;
-                }
+    /**
+     * @return Количество ключей, для которых хранятся старые версии значений.
+     */
+    public int getVersionedKeysCount() {
+        return recentVersions.size();
+    }
+
+    private String getNextShardsLocation() {
+        long generation = 0;
+        String location = config.getShardsLocation();
+        if (location.startsWith(SHARDS_LOCATION_PREFIX)) {
+            try {
+                generation = Long.parseLong(location.substring(SHARDS_LOCATION_PREFIX.length()));
+            } catch (NumberFormatException e) {
+                //location with a custom name
             }
         }
+        return SHARDS_LOCATION_PREFIX + (generation + 1);
+    }
 
-        return changesCounter;
+    private void deleteShards(File directory, ShardLayout layout) throws IOException {
+        if (!directory.equals(dataDirectory)) {
+            FileUtils.deleteDirectory(directory);
+            return;
+        }
+        for (int i = 0; i < layout.getDirectoriesCount(); i++) {
+            File subDirectory = new File(directory, i + ".dir");
+            if (subDirectory.exists()) {
+                FileUtils.deleteDirectory(subDirectory);
+            }
+        }
     }
 
-    public int rollback() {
-        checkIfClosed();
+    protected void scheduleCheckpoint() {
+        if (checkpointScheduled.compareAndSet(false, true)) {
+            tableProvider.getCheckpointExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    checkpointLock.lock();
+                    try {
+                        if (!isClosed.get()) {
+                            checkpoint();
+                        }
+                    } catch (IOException e) {
+                        System.err.println(e.getMessage());
+                    } finally {
+                        checkpointScheduled.set(false);
+                        checkpointLock.unlock();
+                    }
+                }
+            });
+        }
+    }
 
+    protected void checkpoint() throws IOException {
+        Map<String, StoredRow>[][] snapshot = new Map[shardLayout.getDirectoriesCount()][shardLayout.getFilesCount()];
+        boolean[][] snapshotBuckets;
+        boolean isSnapshotEmpty = true;
+        int snapshotSize;
+        long closedGeneration;
         tableTransactionsLock.lock();
-        int counter;
         try {
-            counter = countChanges();
+            closedGeneration = writeAheadLog.rotate();
+            snapshotBuckets = dirtyBuckets;
+            snapshotSize = dataBaseSize;
+            dirtyBuckets = newBucketFlags();
+            for (int i = 0; i < shardLayout.getDirectoriesCount(); i++) {
+                for (int j = 0; j < shardLayout.getFilesCount(); j++) {
+                    if (snapshotBuckets[i][j]) {
+                        snapshot[i][j] = rowStorage.copyBucket(dataBase[i][j]);
+                        checkpointBuckets[i][j] = true;
+                        isSnapshotEmpty = false;
+                    }
+                }
+            }
         } finally {
             tableTransactionsLock.unlock();
         }
-        deletedKeys.get().clear();
-        addedKeys.get().clear();
-        return counter;
+
+        boolean isWritten = false;
+        try {
+            if (!isSnapshotEmpty) {
+                tableProvider.getCatalog().invalidateShards(dataDirectory.getName());
+            }
+            writeShards(shardsDirectory, shardLayout, snapshot, snapshotBuckets);
+            isWritten = true;
+        } catch (IOException e) {
+            tableTransactionsLock.lock();
+            try {
+                for (int i = 0; i < shardLayout.getDirectoriesCount(); i++) {
+                    for (int j = 0; j < shardLayout.getFilesCount(); j++) {
+                        dirtyBuckets[i][j] |= snapshotBuckets[i][j];
+                    }
+                }
+            } finally {
+                tableTransactionsLock.unlock();
+            }
+            throw e;
+        } finally {
+            tableTransactionsLock.lock();
+            try {
+                for (int i = 0; i < shardLayout.getDirectoriesCount(); i++) {
+                    for (int j = 0; j < shardLayout.getFilesCount(); j++) {
+                        if (snapshotBuckets[i][j]) {
+                            storedBuckets[i][j] = !isWritten || !snapshot[i][j].isEmpty();
+                        }
+                    }
+                }
+                checkpointBuckets = newBucketFlags();
+            } finally {
+                tableTransactionsLock.unlock();
+            }
+        }
+        if (!isSnapshotEmpty) {
+            writeCatalogShards(snapshotSize);
+        }
+        WriteAheadLog.deleteSegments(dataDirectory, closedGeneration);
     }
 
-    public int getChangesCount() {
-        checkIfClosed();
+    private void writeShards(final File directory, ShardLayout layout, final Map<String, StoredRow>[][] buckets,
+                             boolean[][] dirty) throws IOException {
+        TableUtils.writeTable(directory, layout, buckets, dirty, config.getCompression(),
+                tableProvider.getWriteExecutor());
+        if (!config.isColumnar()) {
+            return;
+        }
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int i = 0; i < layout.getDirectoriesCount(); i++) {
+            for (int j = 0; j < layout.getFilesCount(); j++) {
+                if (!dirty[i][j] || buckets[i][j] == null || buckets[i][j].isEmpty()) {
+                    continue;
+                }
+                final int nDirectory = i;
+                final int nFile = j;
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        writeColumns(directory, nDirectory, nFile, buckets[nDirectory][nFile]);
+                        return null;
+                    }
+                });
+            }
+        }
+        TableUtils.invokeAll(tableProvider.getWriteExecutor(), tasks);
+    }
 
-        tableTransactionsLock.lock();
+    private void writeColumns(File directory, int nDirectory, int nFile,
+                              Map<String, StoredRow> bucket) throws IOException {
+        List<TableRow> rows = decodeRows(bucket);
+        long dataLength = new File(new File(directory, nDirectory + ".dir"), nFile + ".dat").length();
+        for (int column = 0; column < columnTypes.size(); column++) {
+            ColumnFileUtils.write(directory, nDirectory, nFile, column,
+                    ColumnVector.fromRows(columnTypes.get(column), column, rows), dataLength);
+        }
+    }
+
+    /**
+     * Декодирует строки файла в порядке ключей, не сохраняя результат в {@link StoredRow}.
+     */
+    private List<TableRow> decodeRows(Map<String, StoredRow> bucket) throws IOException {
+        List<String> keys = new ArrayList<>(bucket.keySet());
+        Collections.sort(keys);
+        List<TableRow> rows = new ArrayList<>(keys.size());
         try {
-            return countChanges();
+            for (String key : keys) {
+                rows.add(rowCodec.decode(bucket.get(key).getData(), this, tableProvider));
+            }
+        } catch (ParseException e) {
+            throw new IOException("read error: " + e.getMessage(), e);
+        }
+        return rows;
+    }
+
+    /**
+     * Передаёт сканеру запрошенные столбцы зафиксированных строк, по одному файлу таблицы за раз.
+     * Перед чтением делает контрольную точку, чтобы файлы на диске содержали все зафиксированные изменения.
+     * У столбцовых таблиц читаются только копии запрошенных столбцов, а у остальных таблиц и у файлов
+     * без актуальных копий строки декодируются целиком.
+     */
+    public void scan(int[] columnIndexes, ColumnScanner scanner) throws IOException {
+        checkIfClosed();
+        checkScanArguments(columnIndexes, scanner);
+        checkpointLock.lock();
+        try {
+            checkIfClosed();
+            checkpoint();
+            for (int i = 0; i < shardLayout.getDirectoriesCount(); i++) {
+                for (int j = 0; j < shardLayout.getFilesCount(); j++) {
+                    File dataFile = new File(new File(shardsDirectory, i + ".dir"), j + ".dat");
+                    if (!dataFile.exists()) {
+                        continue;
+                    }
+                    ColumnVector[] columns = readColumns(i, j, dataFile.length(), columnIndexes);
+                    if (columns[0].size() > 0) {
+                        scanner.scan(columns);
+                    }
+                }
+            }
         } finally {
-            tableTransactionsLock.unlock();
+            checkpointLock.unlock();
         }
     }
 
-    public void close() {
-        tableTransactionsLock.lock();
+    protected void checkScanArguments(int[] columnIndexes, ColumnScanner scanner) {
+        if (columnIndexes == null || columnIndexes.length == 0) {
+            throw new IllegalArgumentException("no columns");
+        }
+        if (scanner == null) {
+            throw new IllegalArgumentException("scanner cannot be null");
+        }
+        for (int columnIndex : columnIndexes) {
+            if (columnIndex < 0 || columnIndex >= columnTypes.size()) {
+                throw new IndexOutOfBoundsException("index is out of bounds");
+            }
+        }
+    }
+
+    /**
+     * Передаёт сканеру все зафиксированные строки, по одному файлу таблицы за раз, перекодируя их
+     * в указанный формат, если таблица хранит строки в другом. Как и {@link #scan}, сначала делает
+     * контрольную точку, а затем читает файлы с диска, не загружая таблицу в память целиком.
+     */
+    public void scanRows(RowFormat rowFormat, RowScanner scanner) throws IOException {
+        checkIfClosed();
+        if (rowFormat == null || scanner == null) {
+            throw new IllegalArgumentException("null argument");
+        }
+        checkpointLock.lock();
         try {
-            if (!isClosed.get()) {
-                rollback();
-                isClosed.set(true);
+            checkIfClosed();
+            checkpoint();
+            for (int i = 0; i < shardLayout.getDirectoriesCount(); i++) {
+                for (int j = 0; j < shardLayout.getFilesCount(); j++) {
+                    Map<String, StoredRow> bucket = TableUtils.readBucket(shardsDirectory, shardLayout, i, j,
+                            RowStorage.HEAP);
+                    for (Map.Entry<String, StoredRow> entry : bucket.entrySet()) {
+                        scanner.scan(entry.getKey(), recode(entry.getValue().getData(), rowFormat));
+                    }
+                }
             }
         } finally {
-            tableTransactionsLock.unlock();
+            checkpointLock.unlock();
         }
+    }
 
+    /**
+     * Перекодирует строку из формата таблицы в указанный.
+     */
+    protected byte[] recode(byte[] data, RowFormat rowFormat) throws IOException {
+        if (rowFormat.getCodec() == rowCodec) {
+            return data;
+        }
+        try {
+            return rowFormat.getCodec().encode(rowCodec.decode(data, this, tableProvider), columnTypes);
+        } catch (ParseException e) {
+            throw new IOException("read error: " + e.getMessage(), e);
+        }
     }
 
-    public void checkIfClosed() {
-        if (isClosed.get()) {
-            throw new IllegalStateException("Table is closed");
+    private ColumnVector[] readColumns(int nDirectory, int nFile, long dataLength,
+                                       int[] columnIndexes) throws IOException {
+        ColumnVector[] columns = new ColumnVector[columnIndexes.length];
+        if (config.isColumnar()) {
+            boolean complete = true;
+            for (int i = 0; i < columnIndexes.length && complete; i++) {
+                columns[i] = ColumnFileUtils.read(shardsDirectory, nDirectory, nFile, columnIndexes[i],
+                        columnTypes.get(columnIndexes[i]), dataLength);
+                complete = columns[i] != null;
+            }
+            if (complete) {
+                return columns;
+            }
+        }
+        List<TableRow> rows = decodeRows(TableUtils.readBucket(shardsDirectory, shardLayout, nDirectory, nFile,
+                RowStorage.HEAP));
+        for (int i = 0; i < columnIndexes.length; i++) {
+            columns[i] = ColumnVector.fromRows(columnTypes.get(columnIndexes[i]), columnIndexes[i], rows);
         }
+        return columns;
     }
 
-    @Override
-    public TableRow put(String key, TableRow value) {
-        if (key == null) {
-            throw new IllegalArgumentException("null key");
+    protected Map<String, StoredRow> getBucket(String key) {
+        return getBucket(shardLayout.getDirectoryNumber(key), shardLayout.getFileNumber(key));
+    }
+
+    protected Map<String, StoredRow> getBucket(int nDirectory, int nFile) {
+        int bucketNumber = nDirectory * shardLayout.getFilesCount() + nFile;
+        if (dataBase[nDirectory][nFile] != null) {
+            if (residentBucketsLimit > 0 && residentView.accessed.get(bucketNumber) == 0) {
+                residentView.accessed.lazySet(bucketNumber, 1);
+            }
+            return dataBase[nDirectory][nFile];
+        }
+        try {
+            if (storedBuckets[nDirectory][nFile]) {
+                setBucket(nDirectory, nFile, TableUtils.readBucket(shardsDirectory, shardLayout, nDirectory, nFile,
+                        rowStorage));
+            } else {
+                setBucket(nDirectory, nFile, rowStorage.newBucket(0));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("loading table error: " + e.getMessage(), e);
         }
-        if (key.trim().isEmpty()) {
-            throw new IllegalArgumentException("empty key");
+        bloomFilters[nDirectory][nFile] = null;
+        shardIndexes[nDirectory][nFile] = null;
+        residentBucketsLock.lock();
+        try {
+            residentBuckets.put(bucketNumber, true);
+            evictBuckets(bucketNumber);
+        } finally {
+            residentBucketsLock.unlock();
         }
-        if (value == null) {
-            throw new IllegalArgumentException("null value");
+        return dataBase[nDirectory][nFile];
+    }
+
+    /**
+     * Загружает или выгружает файл таблицы. Вызывается под блокировкой этого файла или под tableTransactionsLock.
+     */
+    protected void setBucket(int nDirectory, int nFile, Map<String, StoredRow> bucket) {
+        dataBase[nDirectory][nFile] = bucket;
+        residentView.buckets.set(nDirectory * shardLayout.getFilesCount() + nFile, bucket);
+    }
+
+    /**
+     * Загруженный файл, в котором лежит ключ, или null, если файл не загружен и читать его нужно
+     * под блокировкой через {@link #getStoredRow(String)}. Блокировок не берёт.
+     */
+    protected Map<String, StoredRow> getResidentBucket(String key) {
+        ResidentBuckets view = residentView;
+        if (view == null) {
+            return null;
         }
-        if (value.toString().trim().isEmpty()) {
-            throw new IllegalArgumentException("empty value");
+        int bucketNumber = view.layout.getBucketNumber(key);
+        Map<String, StoredRow> bucket = view.buckets.get(bucketNumber);
+        if (bucket != null && residentBucketsLimit > 0 && view.accessed.get(bucketNumber) == 0) {
+            view.accessed.lazySet(bucketNumber, 1);
         }
+        return bucket;
+    }
 
-        if (!TableUtils.isStorableValid(value, columnTypes)) {
-            throw new ColumnFormatException("wrong storeable format");
+    /**
+     * Для незагруженного файла сначала проверяет его фильтр Блума, поэтому промах по отсутствующему
+     * ключу обычно не читает файл с диска. Если число загруженных файлов ограничено, значение читается
+     * из файла по индексу, а сам файл в память не загружается.
+     */
+    protected StoredRow getStoredRow(String key) {
+        int nDirectory = shardLayout.getDirectoryNumber(key);
+        int nFile = shardLayout.getFileNumber(key);
+        if (dataBase[nDirectory][nFile] == null) {
+            if (!storedBuckets[nDirectory][nFile]) {
+                return null;
+            }
+            if (bloomFilters[nDirectory][nFile] == null) {
+                bloomFilters[nDirectory][nFile] = MultiFileUtils.readBloomFilter(shardsDirectory, nDirectory, nFile);
+            }
+            if (!bloomFilters[nDirectory][nFile].mightContain(key)) {
+                return null;
+            }
+            if (residentBucketsLimit > 0) {
+                try {
+                    if (shardIndexes[nDirectory][nFile] == null) {
+                        shardIndexes[nDirectory][nFile] = MultiFileUtils.readIndex(shardsDirectory, nDirectory, nFile);
+                    }
+                    if (shardIndexes[nDirectory][nFile].isSorted()) {
+                        byte[] data = shardIndexes[nDirectory][nFile].readValue(key);
+                        return data != null ? new StoredRow(data) : null;
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException("read error: " + e.getMessage(), e);
+                }
+            }
         }
+        return getBucket(nDirectory, nFile).get(key);
+    }
 
-        if (key.matches(".*\\s+.*")) {
-            throw new IllegalArgumentException("key with whitespaces");
+    /**
+     * Начинает снимок последней зафиксированной версии. Снимок не меняется, сколько бы транзакций
+     * ни зафиксировали другие, и удерживает нужные ему версии строк до {@link #releaseSnapshot(Snapshot)}.
+     */
+    protected Snapshot beginSnapshot() {
+        snapshotsLock.lock();
+        try {
+            while (unversionedCommits > 0) {
+                snapshotsChanged.awaitUninterruptibly();
+            }
+            Snapshot snapshot = committedSnapshot;
+            Integer count = activeSnapshots.get(snapshot.version);
+            activeSnapshots.put(snapshot.version, count == null ? 1 : count + 1);
+            activeSnapshotsCount++;
+            return snapshot;
+        } finally {
+            snapshotsLock.unlock();
         }
+    }
 
-        checkIfClosed();
+    protected void releaseSnapshot(Snapshot snapshot) {
+        snapshotsLock.lock();
+        try {
+            int count = activeSnapshots.get(snapshot.version);
+            if (count == 1) {
+                activeSnapshots.remove(snapshot.version);
+            } else {
+                activeSnapshots.put(snapshot.version, count - 1);
+            }
+            activeSnapshotsCount--;
+        } finally {
+            snapshotsLock.unlock();
+        }
+        collectVersions();
+    }
 
-        tableTransactionsLock.lock();
+    /**
+     * Удаляет из recentVersions значения, которые уже не нужны ни одному активному снимку: если последнее
+     * значение ключа видно самому старому снимку, оно совпадает с хранилищем и цепочка не нужна.
+     */
+    protected void collectVersions() {
+        if (recentVersions.isEmpty()) {
+            return;
+        }
+        long oldestVersion;
+        snapshotsLock.lock();
         try {
-            if (dataBase.containsKey(key) && !deletedKeys.get().contains(key)) {
-                deletedKeys.get().add(key);
-                TableRow oldValue = dataBase.get(key);
-                addedKeys.get().put(key, value);
-                return oldValue;
+            oldestVersion = activeSnapshots.isEmpty() ? committedSnapshot.version : activeSnapshots.firstKey();
+            if (oldestVersion == collectedVersion) {
+                return;
             }
+            collectedVersion = oldestVersion;
         } finally {
-            tableTransactionsLock.unlock();
+            snapshotsLock.unlock();
+        }
+        for (Map.Entry<String, RowVersion> entry : recentVersions.entrySet()) {
+            RowVersion current = entry.getValue();
+            if (current.version <= oldestVersion) {
+                recentVersions.remove(entry.getKey(), current);
+                continue;
+            }
+            while (current.version > oldestVersion) {
+                current = current.older;
+            }
+            current.older = null;
         }
-        return addedKeys.get().put(key, value);
     }
 
-    @Override
-    public TableRow remove(String key) {
-        if (key == null) {
-            throw new IllegalArgumentException("null key");
+    /**
+     * Запоминает прежние значения изменяемых ключей, пока их могут читать более старые снимки.
+     * Если кроме снимка фиксирующей транзакции активных снимков не было, новые цепочки не заводятся,
+     * но уже существующие продлеваются, потому что читатели доверяют им больше, чем хранилищу.
+     * Вызывается под блокировками из {@link #lockKeys(Collection)} до того, как изменения попадут в хранилище.
+     */
+    private void recordVersions(long version, Map<String, StoredRow> puts, Set<String> removes,
+                                boolean hasOtherSnapshots) {
+        for (String key : removes) {
+            if (!puts.containsKey(key)) {
+                recordVersion(key, version, null, hasOtherSnapshots);
+            }
         }
-        if (key.trim().isEmpty()) {
-            throw new IllegalArgumentException("empty key");
+        for (Map.Entry<String, StoredRow> entry : puts.entrySet()) {
+            recordVersion(entry.getKey(), version, entry.getValue(), hasOtherSnapshots);
         }
-        if (key.matches(".*\\s+.*")) {
-            throw new IllegalArgumentException("key with whitespaces");
+    }
+
+    private void recordVersion(String key, long version, StoredRow row, boolean hasOtherSnapshots) {
+        RowVersion older = recentVersions.get(key);
+        if (older == null) {
+            if (!hasOtherSnapshots) {
+                return;
+            }
+            older = new RowVersion(0, getStoredRow(key), null);
         }
-        checkIfClosed();
+        recentVersions.put(key, new RowVersion(version, row, older));
+    }
 
-        tableTransactionsLock.lock();
-        try {
-            if (dataBase.containsKey(key) && !deletedKeys.get().contains(key)) {
-                deletedKeys.get().add(key);
-                return dataBase.get(key);
+    /**
+     * Значение ключа в снимке транзакции. Ключи, изменённые после самого старого
+     * активного снимка, читаются из recentVersions, остальные - из хранилища. Загруженные файлы
+     * читаются без блокировки, и блокировка берётся только для чтения файла с диска.
+     * Если ключ изменили, пока читалось хранилище, его цепочка уже в recentVersions: commit записывает
+     * её до того, как изменить хранилище.
+     */
+    protected StoredRow getSnapshotRow(String key, Snapshot snapshot) {
+        RowVersion versions = recentVersions.get(key);
+        if (versions != null) {
+            return versions.find(snapshot.version);
+        }
+        StoredRow storedRow = readStoredRow(key);
+        versions = recentVersions.get(key);
+        return versions != null ? versions.find(snapshot.version) : storedRow;
+    }
+
+    /**
+     * Последнее опубликованное значение ключа. Используется транзакциями без изменений, которые
+     * не удерживают снимок и поэтому не мешают сборке версий. Так как версия не зарегистрирована,
+     * сборка версий может обрезать цепочку во время обхода, и тогда чтение повторяется с новой версией.
+     * Чтения разных ключей не образуют снимок, но не видят неопубликованных фиксаций: если одно
+     * чтение увидело фиксацию, последующие тоже её увидят.
+     */
+    protected StoredRow getLatestRow(String key) {
+        while (true) {
+            long version = committedSnapshot.version;
+            RowVersion versions = recentVersions.get(key);
+            if (versions == null) {
+                StoredRow storedRow = readPublishedRow(key);
+                versions = recentVersions.get(key);
+                if (versions == null) {
+                    return storedRow;
+                }
+            }
+            RowVersion visible = versions.findUnregistered(version);
+            if (visible != null) {
+                return visible.row;
+            }
+        }
+    }
+
+    /**
+     * Фиксация без цепочек версий меняет хранилище до публикации версии. Чтение без блокировки,
+     * которое могло застать такую фиксацию, повторяется под блокировками ключа: фиксация
+     * держит их до публикации. Счётчик начатых фиксаций увеличивается после unversionedCommits,
+     * поэтому фиксация, начавшаяся во время чтения, его изменит.
+     */
+    private StoredRow readPublishedRow(String key) {
+        long started = startedUnversionedCommits;
+        Map<String, StoredRow> bucket = getResidentBucket(key);
+        if (bucket != null && unversionedCommits == 0) {
+            StoredRow storedRow = bucket.get(key);
+            if (started == startedUnversionedCommits) {
+                return storedRow;
             }
+        }
+        List<Lock> locks = lockKeys(Collections.singleton(key));
+        try {
+            return getStoredRow(key);
         } finally {
-            tableTransactionsLock.unlock();
+            unlockKeys(locks);
         }
-        return addedKeys.get().remove(key);
     }
 
-    @Override
-    public TableRow get(String key) {
-        if (key == null) {
-            throw new IllegalArgumentException("null key");
+    private StoredRow readStoredRow(String key) {
+        Map<String, StoredRow> bucket = getResidentBucket(key);
+        if (bucket != null) {
+            return bucket.get(key);
         }
-        if (key.trim().isEmpty()) {
-            throw new IllegalArgumentException("empty key");
+        List<Lock> locks = lockKeys(Collections.singleton(key));
+        try {
+            return getStoredRow(key);
+        } finally {
+            unlockKeys(locks);
+        }
+    }
+
+    /**
+     * @param snapshot Снимок транзакции или null, если транзакция его не удерживает
+     *                 и читает последние зафиксированные значения.
+     */
+    protected TableRow getCommitted(String key, Snapshot snapshot) {
+        StoredRow storedRow = snapshot != null ? getSnapshotRow(key, snapshot) : getLatestRow(key);
+        if (storedRow == null) {
+            return null;
         }
-        if (key.matches(".*\\s+.*")) {
-            throw new IllegalArgumentException("key with whitespaces");
+        try {
+            return storedRow.getRow(this, tableProvider, rowCodec);
+        } catch (ParseException e) {
+            throw new RuntimeException("read error: " + e.getMessage(), e);
         }
+    }
 
-        checkIfClosed();
+    private void evictBuckets(int loadedBucket) {
+        if (residentBucketsLimit == 0) {
+            return;
+        }
+        List<Integer> accessedBuckets = new ArrayList<>();
+        for (int bucketNumber : residentBuckets.keySet()) {
+            if (residentView.accessed.getAndSet(bucketNumber, 0) != 0) {
+                accessedBuckets.add(bucketNumber);
+            }
+        }
+        for (int bucketNumber : accessedBuckets) {
+            residentBuckets.get(bucketNumber);
+        }
+        Iterator<Integer> iterator = residentBuckets.keySet().iterator();
+        while (residentBuckets.size() > residentBucketsLimit && iterator.hasNext()) {
+            int bucketNumber = iterator.next();
+            int nDirectory = bucketNumber / shardLayout.getFilesCount();
+            int nFile = bucketNumber % shardLayout.getFilesCount();
+            ReentrantLock bucketLock = bucketLocks[bucketNumber];
+            if (bucketNumber == loadedBucket || bucketLock.isHeldByCurrentThread() || !bucketLock.tryLock()) {
+                continue;
+            }
+            try {
+                if (dirtyBuckets[nDirectory][nFile] || checkpointBuckets[nDirectory][nFile]) {
+                    continue;
+                }
+                setBucket(nDirectory, nFile, null);
+                iterator.remove();
+            } finally {
+                bucketLock.unlock();
+            }
+        }
+    }
 
-        if (addedKeys.get().containsKey(key)) {
-            return addedKeys.get().get(key);
+    /**
+     * Сбрасывает зафиксированные изменения на диск и выгружает из памяти файлы таблицы вместе с их
+     * фильтрами и индексами. Таблица остаётся открытой: незафиксированные изменения потоков не теряются,
+     * а файлы будут прочитаны заново при следующем обращении.
+     *
+     * @return false, если контрольную точку сделать не удалось и данные остались в памяти.
+     */
+    boolean unload() {
+        checkpointLock.lock();
+        try {
+            if (isClosed.get()) {
+                return true;
+            }
+            try {
+                checkpoint();
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+                return false;
+            }
+            tableTransactionsLock.lock();
+            try {
+                for (int i = 0; i < shardLayout.getDirectoriesCount(); i++) {
+                    for (int j = 0; j < shardLayout.getFilesCount(); j++) {
+                        if (dirtyBuckets[i][j]) {
+                            continue;
+                        }
+                        setBucket(i, j, null);
+                        bloomFilters[i][j] = null;
+                        shardIndexes[i][j] = null;
+                        residentBuckets.remove(i * shardLayout.getFilesCount() + j);
+                    }
+                }
+            } finally {
+                tableTransactionsLock.unlock();
+            }
+            return true;
+        } finally {
+            checkpointLock.unlock();
         }
-        if (deletedKeys.get().contains(key)) {
-            return null;
+    }
+
+    public String getName() {
+        checkIfClosed();
+        return dataDirectory.getName();
+    }
+
+    public int size() {
+        return threadTransactions.get().size();
+    }
+
+    int size(TransactionImpl transaction) {
+        checkIfClosed();
+        Snapshot snapshot = transaction.getCurrentSnapshot();
+        return (snapshot != null ? snapshot.size : committedSnapshot.size) + transaction.getSizeDelta();
+    }
+
+    public int rollback() {
+        return threadTransactions.get().rollback();
+    }
+
+    int rollback(TransactionImpl transaction) {
+        checkIfClosed();
+
+        int counter = getChangesCount(transaction);
+        transaction.finish();
+        return counter;
+    }
+
+    public int getChangesCount() {
+        return threadTransactions.get().getChangesCount();
+    }
+
+    int getChangesCount(TransactionImpl transaction) {
+        checkIfClosed();
+        return transaction.getChangesCounter();
+    }
+
+    @Override
+    public Transaction beginTransaction() {
+        checkIfClosed();
+        return new TransactionImpl(this);
+    }
+
+    /**
+     * Берёт буфер изменений для транзакции из пула или создаёт новый.
+     */
+    Changes takeChanges() {
+        Changes pooled = changesPool.poll();
+        return pooled != null ? pooled : new Changes();
+    }
+
+    /**
+     * Возвращает буфер изменений в пул. Буферы больших транзакций не сохраняются, чтобы пул
+     * не удерживал их таблицы.
+     */
+    void releaseChanges(Changes changes) {
+        boolean isPooled = changes.keys.size() <= POOLED_CHANGES_LIMIT;
+        changes.clear();
+        if (isPooled) {
+            changesPool.offer(changes);
         }
+    }
 
-        tableTransactionsLock.lock();
+    public void close() {
+        checkpointLock.lock();
         try {
-            return dataBase.get(key);
+            if (!isClosed.get()) {
+                rollback();
+                try {
+                    checkpoint();
+                    writeAheadLog.close();
+                } catch (IOException e) {
+                    System.err.println(e.getMessage());
+                }
+                FileMapUtils.closeStream(directoryLock);
+                isClosed.set(true);
+            }
         } finally {
-            tableTransactionsLock.unlock();
+            checkpointLock.unlock();
+        }
+    }
+
+    public void checkIfClosed() {
+        if (isClosed.get()) {
+            throw new IllegalStateException("Table is closed");
         }
     }
 
+    @Override
+    public TableRow put(String key, TableRow value) {
+        return threadTransactions.get().put(key, value);
+    }
+
+    TableRow put(TransactionImpl transaction, String key, TableRow value) {
+        TableUtils.checkKey(key);
+        TableUtils.checkValue(value, columnTypes);
+        checkIfClosed();
+        return setValue(transaction, key, value);
+    }
+
+    /**
+     * @return Значение ключа в транзакции до изменения.
+     */
+    private TableRow setValue(TransactionImpl transaction, String key, TableRow value) {
+        Changes changes = transaction.getChanges();
+        Change change = changes.keys.get(key);
+        TableRow committed = change != null ? change.committed : getCommitted(key, transaction.getSnapshot());
+        TableRow oldValue = change != null ? change.value : committed;
+        changes.set(key, committed, value);
+        if (changes.keys.isEmpty()) {
+            transaction.finish();
+        }
+        return oldValue;
+    }
+
+    @Override
+    public TableRow remove(String key) {
+        return threadTransactions.get().remove(key);
+    }
+
+    TableRow remove(TransactionImpl transaction, String key) {
+        TableUtils.checkKey(key);
+        checkIfClosed();
+        return setValue(transaction, key, null);
+    }
+
+    @Override
+    public TableRow get(String key) {
+        return threadTransactions.get().get(key);
+    }
+
+    TableRow get(TransactionImpl transaction, String key) {
+        TableUtils.checkKey(key);
+
+        checkIfClosed();
+
+        Change change = transaction.getChange(key);
+        if (change != null) {
+            return change.value;
+        }
+        return getCommitted(key, transaction.getCurrentSnapshot());
+    }
+
     @Override
     public int commit() throws IOException {
+        return threadTransactions.get().commit();
+    }
+
+    /**
+     * Фиксирует изменения транзакции поверх последней зафиксированной версии (при совпадении ключей
+     * побеждает последний commit) и публикует новую версию. Снимок транзакции освобождается,
+     * и следующая транзакция увидит в том числе изменения, зафиксированные другими.
+     *
+     * Изменения применяются к таблице только после того, как их запись в журнале оказалась на диске.
+     * Если запись не удалась, commit бросает IOException, а изменения остаются в транзакции.
+     */
+    int commit(TransactionImpl transaction) throws IOException {
         checkIfClosed();
 
-        tableTransactionsLock.lock();
+        int counter = transaction.getChangesCounter();
+        if (counter > 0) {
+            Map<String, byte[]> serializedKeys = new HashMap<>();
+            Map<String, StoredRow> storedRows = new HashMap<>();
+            Set<String> removedKeys = new HashSet<>();
+            for (Map.Entry<String, Change> entry : transaction.getChanges().keys.entrySet()) {
+                TableRow value = entry.getValue().value;
+                if (value == null) {
+                    removedKeys.add(entry.getKey());
+                    continue;
+                }
+                byte[] data = rowCodec.encode(value, columnTypes);
+                serializedKeys.put(entry.getKey(), data);
+                storedRows.put(entry.getKey(), new StoredRow(data, value));
+            }
+
+            List<Lock> locks = lockKeys(transaction.getChanges().keys.keySet());
+            try {
+                writeAheadLog.sync(writeAheadLog.append(serializedKeys, removedKeys));
+                long version;
+                boolean hasOtherSnapshots;
+                snapshotsLock.lock();
+                try {
+                    version = ++lastVersion;
+                    hasOtherSnapshots = activeSnapshotsCount > 1;
+                    if (!hasOtherSnapshots) {
+                        unversionedCommits++;
+                        startedUnversionedCommits++;
+                    }
+                } finally {
+                    snapshotsLock.unlock();
+                }
+                int sizeDelta = 0;
+                try {
+                    recordVersions(version, storedRows, removedKeys, hasOtherSnapshots);
+                    sizeDelta = applyChanges(storedRows, removedKeys);
+                } finally {
+                    publishVersion(version, sizeDelta, hasOtherSnapshots);
+                }
+            } finally {
+                unlockKeys(locks);
+            }
+        }
+        transaction.finish();
+
+        if (writeAheadLog.size() >= CHECKPOINT_THRESHOLD) {
+            scheduleCheckpoint();
+        }
+        return counter;
+    }
+
+    /**
+     * Публикует версию, когда опубликованы все предыдущие: фиксации с разными файлами применяются
+     * параллельно, но снимок не должен увидеть версию, пока не применены более ранние.
+     * Пока идёт фиксация без цепочек версий, новые снимки не начинаются, иначе они прочитали бы
+     * из хранилища ещё не опубликованные изменения.
+     */
+    private void publishVersion(long version, int sizeDelta, boolean hasOtherSnapshots) {
+        snapshotsLock.lock();
         try {
-            int counter = countChanges();
-            for (String key : deletedKeys.get()) {
-                dataBase.remove(key);
-            }
-            dataBase.putAll(addedKeys.get());
-            deletedKeys.get().clear();
-            addedKeys.get().clear();
-            TableUtils.writeTable(dataDirectory, this, dataBase, tableProvider);
-            return counter;
+            while (committedSnapshot.version != version - 1) {
+                snapshotsChanged.awaitUninterruptibly();
+            }
+            dataBaseSize += sizeDelta;
+            committedSnapshot = new Snapshot(version, dataBaseSize);
+            if (!hasOtherSnapshots) {
+                unversionedCommits--;
+            }
+            snapshotsChanged.signalAll();
         } finally {
-            tableTransactionsLock.unlock();
+            snapshotsLock.unlock();
         }
     }
 
@@ -271,6 +1491,10 @@ public class TableImpl implements Table {
         return columnTypes.get(columnIndex);
     }
 
+    RowLayout getRowLayout() {
+        return rowLayout;
+    }
+
     @Override
     public boolean isClosed() {
         return isClosed.get();
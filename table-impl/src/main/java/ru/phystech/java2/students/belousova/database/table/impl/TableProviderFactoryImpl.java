@@ -24,11 +24,15 @@ public class TableProviderFactoryImpl implements TableProviderFactory {
         if (path.trim().isEmpty()) {
             throw new IllegalArgumentException("empty directory");
         }
-        TableProviderImpl tableProvider = new TableProviderImpl(new File(path));
+        TableProviderImpl tableProvider = createProvider(new File(path));
         tableProviderSet.add(tableProvider);
         return tableProvider;
     }
 
+    protected TableProviderImpl createProvider(File directory) throws IOException {
+        return new TableProviderImpl(directory);
+    }
+
     @Override
     public void close() {
         if (!isClosed) {
@@ -5,26 +5,58 @@ import ru.phystech.java2.students.belousova.database.table.api.ColumnFormatExcep
 import ru.phystech.java2.students.belousova.database.table.api.Table;
 import ru.phystech.java2.students.belousova.database.table.api.TableProvider;
 import ru.phystech.java2.students.belousova.database.table.api.TableRow;
+import ru.phystech.java2.students.belousova.database.table.utils.RowFormat;
+import ru.phystech.java2.students.belousova.database.table.utils.ShardLayout;
+import ru.phystech.java2.students.belousova.database.table.utils.StorageEngine;
+import ru.phystech.java2.students.belousova.database.table.utils.TableCatalog;
+import ru.phystech.java2.students.belousova.database.table.utils.TableConfig;
 import ru.phystech.java2.students.belousova.database.table.utils.TableUtils;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class TableProviderImpl implements TableProvider {
     protected static final String TABLE_NAME_FORMAT = "[A-Za-zА-Яа-я0-9]+";
+    protected static final RowFormat DEFAULT_ROW_FORMAT = RowFormat.BINARY;
+    protected static final ShardLayout DEFAULT_SHARD_LAYOUT =
+            new ShardLayout(ShardLayout.ShardFunction.HASH, 16, 16);
+    protected static final int WRITE_THREADS_COUNT = 4;
+    protected static final int MAX_UNLOAD_ATTEMPTS = 3;
     protected final ReadWriteLock tableProviderTransactionLock = new ReentrantReadWriteLock(true);
     protected Map<String, TableImpl> tableMap = new HashMap<>();
+    protected final LinkedHashMap<String, Boolean> loadedTables = new LinkedHashMap<>(16, 0.75f, true);
+    protected final Map<String, Integer> unloadFailures = new HashMap<>();
+    protected int loadedTablesLimit = 0;
     protected File dataDirectory;
+    protected TableCatalog catalog;
     protected boolean isClosed = false;
+    protected final ExecutorService loadExecutor;
+    protected final ExecutorService checkpointExecutor = Executors.newSingleThreadExecutor(
+            new DaemonThreadFactory("table-checkpoint"));
+    protected final ExecutorService writeExecutor = Executors.newFixedThreadPool(WRITE_THREADS_COUNT,
+            new DaemonThreadFactory("table-write"));
 
     public TableProviderImpl(File directory) throws IOException {
+        this(directory, ForkJoinPool.commonPool());
+    }
+
+    public TableProviderImpl(File directory, ExecutorService loadExecutor) throws IOException {
         if (directory == null) {
             throw new IllegalArgumentException("null directory");
         }
@@ -34,16 +66,184 @@ public class TableProviderImpl implements TableProvider {
             throw new IllegalArgumentException("'" + directory.getName() + "' is not a directory");
         }
 
+        if (loadExecutor == null) {
+            throw new IllegalArgumentException("null executor");
+        }
+
         dataDirectory = directory;
+        this.loadExecutor = loadExecutor;
 
         if (!directory.canRead()) {
             throw new IOException("directory is unavailable");
         }
+        catalog = TableCatalog.read(directory);
+        if (catalog.isComplete()) {
+            for (String name : directory.list()) {
+                if (name.endsWith(BulkLoader.DIRECTORY_SUFFIX)) {
+                    FileUtils.deleteDirectory(new File(directory, name));
+                }
+            }
+            for (String name : catalog.getTableNames()) {
+                tableMap.put(name, null);
+            }
+            return;
+        }
+        List<String> tableNames = new ArrayList<>();
         for (File tableFile : directory.listFiles()) {
-            tableMap.put(tableFile.getName(), new TableImpl(tableFile, this));
+            if (tableFile.getName().endsWith(BulkLoader.DIRECTORY_SUFFIX)) {
+                FileUtils.deleteDirectory(tableFile);
+                continue;
+            }
+            if (tableFile.isDirectory()) {
+                tableMap.put(tableFile.getName(), null);
+                tableNames.add(tableFile.getName());
+            }
+        }
+        catalog.addTables(tableNames);
+    }
+
+    /**
+     * Ограничивает число таблиц, данные которых держатся в памяти. При превышении лимита давно
+     * не запрашивавшиеся таблицы выгружаются в фоне, оставаясь открытыми. 0 - без ограничения.
+     */
+    public void setLoadedTablesLimit(int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("negative limit");
+        }
+        tableProviderTransactionLock.writeLock().lock();
+        try {
+            checkIfClosed();
+            loadedTablesLimit = limit;
+            evictTables(null);
+        } finally {
+            tableProviderTransactionLock.writeLock().unlock();
+        }
+    }
+
+    public int getLoadedTablesLimit() {
+        return loadedTablesLimit;
+    }
+
+    /**
+     * Способ хранения таблиц, создаваемых провайдером. Загрузчик {@link BulkLoader} доступен только для сегментов.
+     */
+    public StorageEngine getStorageEngine() {
+        return StorageEngine.SHARDS;
+    }
+
+    /**
+     * Открывает таблицу при первом обращении или после закрытия и отмечает её как использованную.
+     * Вызывается под блокировкой записи провайдера.
+     */
+    private TableImpl loadTable(String name) throws IOException {
+        TableImpl table = tableMap.get(name);
+        if (table == null || table.isClosed()) {
+            File tableFile = new File(dataDirectory, name);
+            try {
+                table = openTable(tableFile);
+            } catch (IOException e) {
+                if (!tableFile.exists()) {
+                    forgetTable(name);
+                    return null;
+                }
+                throw e;
+            }
+            tableMap.put(name, table);
+            unloadFailures.remove(name);
+        }
+        loadedTables.put(name, true);
+        evictTables(name);
+        return table;
+    }
+
+    /**
+     * Регистрирует таблицу, которой нет в каталоге, если её директория существует, например,
+     * если её скопировали в директорию провайдера вручную.
+     *
+     * @return true, если таблица теперь известна провайдеру.
+     */
+    private boolean findTable(String name) throws IOException {
+        if (tableMap.containsKey(name)) {
+            return true;
+        }
+        if (!new File(dataDirectory, name).isDirectory()) {
+            return false;
+        }
+        tableMap.put(name, null);
+        catalog.addTables(Collections.singletonList(name));
+        return true;
+    }
+
+    private void forgetTable(String name) {
+        tableMap.remove(name);
+        loadedTables.remove(name);
+        unloadFailures.remove(name);
+        try {
+            catalog.removeTable(name);
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
         }
     }
 
+    /**
+     * Снимает с учёта давно не запрашивавшиеся таблицы и выгружает их в потоке контрольных точек,
+     * чтобы запись на диск не шла под блокировкой провайдера. Таблица, которую не удалось выгрузить
+     * {@link #MAX_UNLOAD_ATTEMPTS} раз подряд, остаётся в памяти до следующего открытия.
+     * Вызывается под блокировкой записи провайдера.
+     */
+    private void evictTables(String usedTable) {
+        if (loadedTablesLimit == 0) {
+            return;
+        }
+        Iterator<String> iterator = loadedTables.keySet().iterator();
+        while (loadedTables.size() > loadedTablesLimit && iterator.hasNext()) {
+            String name = iterator.next();
+            if (name.equals(usedTable) || getUnloadFailures(name) >= MAX_UNLOAD_ATTEMPTS) {
+                continue;
+            }
+            iterator.remove();
+            scheduleUnload(name, tableMap.get(name));
+        }
+    }
+
+    private int getUnloadFailures(String name) {
+        Integer failures = unloadFailures.get(name);
+        return failures != null ? failures : 0;
+    }
+
+    private void scheduleUnload(final String name, final TableImpl table) {
+        checkpointExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean isUnloaded = table.unload();
+                tableProviderTransactionLock.writeLock().lock();
+                try {
+                    if (tableMap.get(name) != table) {
+                        return;
+                    }
+                    if (isUnloaded) {
+                        unloadFailures.remove(name);
+                        return;
+                    }
+                    int failures = getUnloadFailures(name) + 1;
+                    unloadFailures.put(name, failures);
+                    if (!loadedTables.containsKey(name)) {
+                        loadedTables.put(name, true);
+                    }
+                    if (failures == MAX_UNLOAD_ATTEMPTS) {
+                        System.err.println("table '" + name + "' is kept in memory: cannot unload it");
+                    }
+                } finally {
+                    tableProviderTransactionLock.writeLock().unlock();
+                }
+            }
+        });
+    }
+
+    protected TableImpl openTable(File tableFile) throws IOException {
+        return new TableImpl(tableFile, this);
+    }
+
     public void removeTable(String name) {
         checkIfClosed();
 
@@ -53,20 +253,26 @@ public class TableProviderImpl implements TableProvider {
         if (name.isEmpty()) {
             throw new IllegalArgumentException("empty name");
         }
-        if (!tableMap.containsKey(name)) {
-            throw new IllegalStateException("table doesn't exists");
-        }
 
         tableProviderTransactionLock.writeLock().lock();
         try {
-
+            try {
+                if (!findTable(name)) {
+                    throw new IllegalStateException("table doesn't exists");
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("catalog error: " + e.getMessage(), e);
+            }
+            if (tableMap.get(name) != null) {
+                tableMap.get(name).close();
+            }
             File tableDirectory = new File(dataDirectory, name);
             try {
                 FileUtils.deleteDirectory(tableDirectory);
             } catch (IOException e) {
                 System.err.println(e.getMessage());
             }
-            tableMap.remove(name);
+            forgetTable(name);
         } finally {
             tableProviderTransactionLock.writeLock().unlock();
         }
@@ -77,9 +283,13 @@ public class TableProviderImpl implements TableProvider {
         if (!isClosed) {
             tableProviderTransactionLock.writeLock().lock();
             try {
-                for (String tableName : tableMap.keySet()) {
-                    tableMap.get(tableName).close();
+                for (TableImpl table : tableMap.values()) {
+                    if (table != null) {
+                        table.close();
+                    }
                 }
+                checkpointExecutor.shutdown();
+                writeExecutor.shutdown();
                 isClosed = true;
             } finally {
                 tableProviderTransactionLock.writeLock().unlock();
@@ -87,6 +297,22 @@ public class TableProviderImpl implements TableProvider {
         }
     }
 
+    TableCatalog getCatalog() {
+        return catalog;
+    }
+
+    ExecutorService getLoadExecutor() {
+        return loadExecutor;
+    }
+
+    ExecutorService getWriteExecutor() {
+        return writeExecutor;
+    }
+
+    ExecutorService getCheckpointExecutor() {
+        return checkpointExecutor;
+    }
+
     protected void checkIfClosed() {
         if (isClosed) {
             throw new IllegalStateException("TableProvider is closed");
@@ -109,23 +335,32 @@ public class TableProviderImpl implements TableProvider {
 
         tableProviderTransactionLock.writeLock().lock();
         try {
-            if (tableMap.get(name) != null) {
-                if (tableMap.get(name).isClosed()) {
-                    try {
-                        File tableFile = new File(dataDirectory, name);
-                        TableImpl table = new TableImpl(tableFile, this);
-                        tableMap.put(name, table);
-                        return table;
-                    } catch (IOException e) {
-                        throw new RuntimeException("creating new table error: " + e.getMessage());
-                    }
-                }
+            checkIfClosed();
+            if (!findTable(name)) {
+                return null;
             }
+            return loadTable(name);
+        } catch (IOException e) {
+            throw new RuntimeException("loading table error: " + e.getMessage(), e);
         } finally {
             tableProviderTransactionLock.writeLock().unlock();
         }
+    }
+
+    @Override
+    public Table createTable(String name, List<Class<?>> columnTypes) throws IOException {
+        TableConfig config = new TableConfig();
+        config.setRowFormat(DEFAULT_ROW_FORMAT);
+        config.setShardLayout(DEFAULT_SHARD_LAYOUT);
+        return createTable(name, columnTypes, config);
+    }
+
+    public Table createTable(String name, List<Class<?>> columnTypes, TableConfig config) throws IOException {
         checkIfClosed();
 
+        if (name == null) {
+            throw new IllegalArgumentException("null name");
+        }
         if (name.isEmpty()) {
             throw new IllegalArgumentException("empty name");
         }
@@ -133,16 +368,58 @@ public class TableProviderImpl implements TableProvider {
             throw new IllegalArgumentException("incorrect name");
         }
 
+
+        if (columnTypes == null) {
+            throw new IllegalArgumentException("ColumnTypes list is not set");
+        }
+        if (columnTypes.isEmpty()) {
+            throw new IllegalArgumentException("ColumnTypes list is empty");
+        }
+        if (config == null) {
+            throw new IllegalArgumentException("table config is not set");
+        }
+        File tableFile = new File(dataDirectory, name);
+        tableProviderTransactionLock.writeLock().lock();
         tableProviderTransactionLock.readLock().lock();
         try {
-            return tableMap.get(name);
+            if (findTable(name)) {
+                if (tableMap.get(name) != null && tableMap.get(name).isClosed()) {
+                    return loadTable(name);
+                }
+                return null;
+            }
+            tableFile.mkdir();
+            try {
+                TableUtils.writeSignature(tableFile, columnTypes);
+            } catch (IOException | IllegalArgumentException e) {
+                FileUtils.deleteDirectory(tableFile);
+                throw new IllegalArgumentException("wrong column type table");
+            }
+            config.write(tableFile);
+            catalog.putTable(name, columnTypes, 0, new int[0]);
+            tableMap.put(name, null);
+            return loadTable(name);
         } finally {
+            tableProviderTransactionLock.writeLock().unlock();
             tableProviderTransactionLock.readLock().unlock();
         }
     }
 
-    @Override
-    public Table createTable(String name, List<Class<?>> columnTypes) throws IOException {
+    public BulkLoader createBulkLoader(String name, List<Class<?>> columnTypes) throws IOException {
+        TableConfig config = new TableConfig();
+        config.setRowFormat(DEFAULT_ROW_FORMAT);
+        config.setShardLayout(DEFAULT_SHARD_LAYOUT);
+        return createBulkLoader(name, columnTypes, config);
+    }
+
+    /**
+     * Начинает загрузку новой таблицы в обход put и commit. Таблица появится после
+     * {@link BulkLoader#finish()}, а до этого имя остаётся свободным.
+     *
+     * @throws IllegalArgumentException Если таблица хранит строки не в сегментах: загрузчик пишет файлы сегментов.
+     */
+    public BulkLoader createBulkLoader(String name, List<Class<?>> columnTypes,
+                                      TableConfig config) throws IOException {
         checkIfClosed();
 
         if (name == null) {
@@ -154,38 +431,75 @@ public class TableProviderImpl implements TableProvider {
         if (!name.matches(TABLE_NAME_FORMAT)) {
             throw new IllegalArgumentException("incorrect name");
         }
-
-
         if (columnTypes == null) {
             throw new IllegalArgumentException("ColumnTypes list is not set");
         }
         if (columnTypes.isEmpty()) {
             throw new IllegalArgumentException("ColumnTypes list is empty");
         }
-        File tableFile = new File(dataDirectory, name);
-        tableProviderTransactionLock.writeLock().lock();
+        if (config == null) {
+            throw new IllegalArgumentException("table config is not set");
+        }
+        if (config.getStorageEngine() != StorageEngine.SHARDS) {
+            throw new IllegalArgumentException("only shards storage can be bulk loaded");
+        }
+
         tableProviderTransactionLock.readLock().lock();
         try {
             if (tableMap.containsKey(name)) {
-                if (tableMap.get(name).isClosed()) {
-                    TableImpl table = new TableImpl(tableFile, this);
-                    tableMap.put(name, table);
-                    return table;
-                }
-                return null;
+                throw new IllegalStateException("table already exists");
             }
-            tableFile.mkdir();
-            try {
-                TableUtils.writeSignature(tableFile, columnTypes);
-            } catch (IOException e) {
-                throw new IllegalArgumentException("wrong column type table");
+        } finally {
+            tableProviderTransactionLock.readLock().unlock();
+        }
+        File loadDirectory = new File(dataDirectory, name + BulkLoader.DIRECTORY_SUFFIX);
+        if (loadDirectory.exists()) {
+            throw new IllegalStateException("table is already being loaded");
+        }
+        if (!loadDirectory.mkdir()) {
+            throw new IOException("cannot create directory '" + loadDirectory.getName() + "'");
+        }
+        try {
+            TableUtils.writeSignature(loadDirectory, columnTypes);
+            config.write(loadDirectory);
+        } catch (IOException | IllegalArgumentException e) {
+            FileUtils.deleteDirectory(loadDirectory);
+            throw new IllegalArgumentException("wrong column type table");
+        }
+        return new BulkLoader(this, name, loadDirectory, columnTypes, config);
+    }
+
+    /**
+     * Загружает строки из итератора одной операцией.
+     */
+    public Table bulkLoad(String name, List<Class<?>> columnTypes, TableConfig config,
+                          Iterator<? extends Map.Entry<String, ? extends TableRow>> rows) throws IOException {
+        BulkLoader loader = createBulkLoader(name, columnTypes, config);
+        try {
+            while (rows.hasNext()) {
+                Map.Entry<String, ? extends TableRow> entry = rows.next();
+                loader.put(entry.getKey(), entry.getValue());
             }
-            TableImpl table = new TableImpl(tableFile, this);
-            tableMap.put(name, table);
-            return table;
+            return loader.finish();
+        } finally {
+            loader.close();
+        }
+    }
+
+    Table registerLoadedTable(String name, File loadDirectory, List<Class<?>> columnTypes) throws IOException {
+        File tableFile = new File(dataDirectory, name);
+        tableProviderTransactionLock.writeLock().lock();
+        try {
+            checkIfClosed();
+            if (tableMap.containsKey(name) || tableFile.exists()) {
+                throw new IllegalStateException("table already exists");
+            }
+            Files.move(loadDirectory.toPath(), tableFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            catalog.putTable(name, columnTypes, -1, null);
+            tableMap.put(name, null);
+            return loadTable(name);
         } finally {
             tableProviderTransactionLock.writeLock().unlock();
-            tableProviderTransactionLock.readLock().unlock();
         }
     }
 
@@ -204,11 +518,7 @@ public class TableProviderImpl implements TableProvider {
     public String serialize(Table table, TableRow value) throws ColumnFormatException {
         checkIfClosed();
 
-        List<Class<?>> columnTypes = new ArrayList<>();
-        for (int i = 0; i < table.getColumnsCount(); i++) {
-            columnTypes.add(table.getColumnType(i));
-        }
-        return TableUtils.writeStorableToString((TableRowImpl) value, columnTypes);
+        return TableUtils.writeStorableToString(value, TableUtils.getColumnTypes(table));
     }
 
     @Override
@@ -243,6 +553,21 @@ public class TableProviderImpl implements TableProvider {
         return storeable;
     }
 
+    private static class DaemonThreadFactory implements ThreadFactory {
+        private final String name;
+
+        DaemonThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
     @Override
     public String toString() {
         checkIfClosed();
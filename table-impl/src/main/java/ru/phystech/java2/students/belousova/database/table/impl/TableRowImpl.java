@@ -4,97 +4,208 @@ import ru.phystech.java2.students.belousova.database.table.api.ColumnFormatExcep
 import ru.phystech.java2.students.belousova.database.table.api.Table;
 import ru.phystech.java2.students.belousova.database.table.api.TableRow;
 
-import java.util.ArrayList;
-import java.util.List;
-
+import java.util.Arrays;
+
+/**
+ * Строка с фиксированной раскладкой по {@link RowLayout}. Числовые и логические столбцы хранятся
+ * в массиве long без упаковки, за ними в том же массиве лежит битовая маска заданных столбцов.
+ * Строковые столбцы хранятся в отдельном массиве. Методы getInt, getLong и т.п. читают значения
+ * без создания объектов.
+ */
 public class TableRowImpl implements TableRow {
-    private List<Object> columns = new ArrayList<>();
-    private Table table;
+    private static final String[] NO_STRINGS = new String[0];
+
+    private final RowLayout layout;
+    private final long[] values;
+    private final String[] strings;
 
     public TableRowImpl(Table table) {
+        this(getLayout(table));
+    }
+
+    TableRowImpl(RowLayout layout) {
+        this.layout = layout;
+        values = new long[layout.getPrimitivesCount() + (layout.getColumnsCount() + 63) / 64];
+        strings = layout.getStringsCount() == 0 ? NO_STRINGS : new String[layout.getStringsCount()];
+    }
+
+    private static RowLayout getLayout(Table table) {
         if (table == null) {
             throw new IllegalArgumentException("table cannot be null");
         }
-        this.table = table;
-        for (int i = 0; i < table.getColumnsCount(); i++) {
-            columns.add(null);
+        if (table instanceof TableImpl) {
+            return ((TableImpl) table).getRowLayout();
         }
+        return new RowLayout(table);
     }
 
     private void checkColumnIndexBounds(int columnIndex) {
-        if (columnIndex < 0 || columnIndex > columns.size()) {
+        if (columnIndex < 0 || columnIndex >= layout.getColumnsCount()) {
             throw new IndexOutOfBoundsException("index is out of bounds");
         }
     }
 
-    private void checkColumnFormat(int columnIndex, Class<?> valueClass) {
-        if (!valueClass.equals(table.getColumnType(columnIndex))) {
+    private void checkColumnFormat(int columnIndex, int kind) {
+        checkColumnIndexBounds(columnIndex);
+        if (layout.getKind(columnIndex) != kind) {
             throw new ColumnFormatException("wrong column format");
         }
     }
 
+    private boolean isSet(int columnIndex) {
+        int word = layout.getPrimitivesCount() + columnIndex / 64;
+        return (values[word] & (1L << columnIndex)) != 0;
+    }
+
+    private void setPresent(int columnIndex, boolean present) {
+        int word = layout.getPrimitivesCount() + columnIndex / 64;
+        if (present) {
+            values[word] |= 1L << columnIndex;
+        } else {
+            values[word] &= ~(1L << columnIndex);
+        }
+    }
+
+    private long getRaw(int columnIndex, int kind) {
+        checkColumnFormat(columnIndex, kind);
+        return values[layout.getSlot(columnIndex)];
+    }
+
     @Override
     public void setColumnAt(int columnIndex, Object value) throws ColumnFormatException, IndexOutOfBoundsException {
         checkColumnIndexBounds(columnIndex);
-        if (value != null) {
-            checkColumnFormat(columnIndex, value.getClass());
+        if (value == null) {
+            setPresent(columnIndex, false);
+            if (layout.getKind(columnIndex) == RowLayout.STRING) {
+                strings[layout.getSlot(columnIndex)] = null;
+            } else {
+                values[layout.getSlot(columnIndex)] = 0;
+            }
+            return;
+        }
+        if (value.getClass() != layout.getColumnType(columnIndex)) {
+            throw new ColumnFormatException("wrong column format");
         }
-        columns.set(columnIndex, value);
+        int slot = layout.getSlot(columnIndex);
+        switch (layout.getKind(columnIndex)) {
+            case RowLayout.INT:
+                values[slot] = (Integer) value;
+                break;
+            case RowLayout.LONG:
+                values[slot] = (Long) value;
+                break;
+            case RowLayout.BYTE:
+                values[slot] = (Byte) value;
+                break;
+            case RowLayout.FLOAT:
+                values[slot] = Float.floatToIntBits((Float) value);
+                break;
+            case RowLayout.DOUBLE:
+                values[slot] = Double.doubleToLongBits((Double) value);
+                break;
+            case RowLayout.BOOLEAN:
+                values[slot] = (Boolean) value ? 1 : 0;
+                break;
+            default:
+                strings[slot] = layout.deduplicate(slot, (String) value);
+                break;
+        }
+        setPresent(columnIndex, true);
     }
 
     @Override
     public Object getColumnAt(int columnIndex) throws IndexOutOfBoundsException {
         checkColumnIndexBounds(columnIndex);
-        return columns.get(columnIndex);
+        switch (layout.getKind(columnIndex)) {
+            case RowLayout.INT:
+                return getIntAt(columnIndex);
+            case RowLayout.LONG:
+                return getLongAt(columnIndex);
+            case RowLayout.BYTE:
+                return getByteAt(columnIndex);
+            case RowLayout.FLOAT:
+                return getFloatAt(columnIndex);
+            case RowLayout.DOUBLE:
+                return getDoubleAt(columnIndex);
+            case RowLayout.BOOLEAN:
+                return getBooleanAt(columnIndex);
+            default:
+                return getStringAt(columnIndex);
+        }
+    }
+
+    /**
+     * @return true, если значение столбца не задано. Методы getInt, getLong и т.п. возвращают для него 0.
+     */
+    public boolean isNullAt(int columnIndex) throws IndexOutOfBoundsException {
+        checkColumnIndexBounds(columnIndex);
+        return !isSet(columnIndex);
+    }
+
+    public int getInt(int columnIndex) throws ColumnFormatException, IndexOutOfBoundsException {
+        return (int) getRaw(columnIndex, RowLayout.INT);
+    }
+
+    public long getLong(int columnIndex) throws ColumnFormatException, IndexOutOfBoundsException {
+        return getRaw(columnIndex, RowLayout.LONG);
+    }
+
+    public byte getByte(int columnIndex) throws ColumnFormatException, IndexOutOfBoundsException {
+        return (byte) getRaw(columnIndex, RowLayout.BYTE);
+    }
+
+    public float getFloat(int columnIndex) throws ColumnFormatException, IndexOutOfBoundsException {
+        return Float.intBitsToFloat((int) getRaw(columnIndex, RowLayout.FLOAT));
+    }
+
+    public double getDouble(int columnIndex) throws ColumnFormatException, IndexOutOfBoundsException {
+        return Double.longBitsToDouble(getRaw(columnIndex, RowLayout.DOUBLE));
+    }
+
+    public boolean getBoolean(int columnIndex) throws ColumnFormatException, IndexOutOfBoundsException {
+        return getRaw(columnIndex, RowLayout.BOOLEAN) != 0;
     }
 
     @Override
     public Integer getIntAt(int columnIndex) throws ColumnFormatException, IndexOutOfBoundsException {
-        checkColumnIndexBounds(columnIndex);
-        checkColumnFormat(columnIndex, Integer.class);
-        return (Integer) columns.get(columnIndex);
+        int value = getInt(columnIndex);
+        return isSet(columnIndex) ? Integer.valueOf(value) : null;
     }
 
     @Override
     public Long getLongAt(int columnIndex) throws ColumnFormatException, IndexOutOfBoundsException {
-        checkColumnIndexBounds(columnIndex);
-        checkColumnFormat(columnIndex, Long.class);
-        return (Long) columns.get(columnIndex);
+        long value = getLong(columnIndex);
+        return isSet(columnIndex) ? Long.valueOf(value) : null;
     }
 
     @Override
     public Byte getByteAt(int columnIndex) throws ColumnFormatException, IndexOutOfBoundsException {
-        checkColumnIndexBounds(columnIndex);
-        checkColumnFormat(columnIndex, Byte.class);
-        return (Byte) columns.get(columnIndex);
+        byte value = getByte(columnIndex);
+        return isSet(columnIndex) ? Byte.valueOf(value) : null;
     }
 
     @Override
     public Float getFloatAt(int columnIndex) throws ColumnFormatException, IndexOutOfBoundsException {
-        checkColumnIndexBounds(columnIndex);
-        checkColumnFormat(columnIndex, Float.class);
-        return (Float) columns.get(columnIndex);
+        float value = getFloat(columnIndex);
+        return isSet(columnIndex) ? Float.valueOf(value) : null;
     }
 
     @Override
     public Double getDoubleAt(int columnIndex) throws ColumnFormatException, IndexOutOfBoundsException {
-        checkColumnIndexBounds(columnIndex);
-        checkColumnFormat(columnIndex, Double.class);
-        return (Double) columns.get(columnIndex);
+        double value = getDouble(columnIndex);
+        return isSet(columnIndex) ? Double.valueOf(value) : null;
     }
 
     @Override
     public Boolean getBooleanAt(int columnIndex) throws ColumnFormatException, IndexOutOfBoundsException {
-        checkColumnIndexBounds(columnIndex);
-        checkColumnFormat(columnIndex, Boolean.class);
-        return (Boolean) columns.get(columnIndex);
+        boolean value = getBoolean(columnIndex);
+        return isSet(columnIndex) ? Boolean.valueOf(value) : null;
     }
 
     @Override
     public String getStringAt(int columnIndex) throws ColumnFormatException, IndexOutOfBoundsException {
-        checkColumnIndexBounds(columnIndex);
-        checkColumnFormat(columnIndex, String.class);
-        return (String) columns.get(columnIndex);
+        checkColumnFormat(columnIndex, RowLayout.STRING);
+        return strings[layout.getSlot(columnIndex)];
     }
 
     @Override
@@ -106,17 +217,14 @@ public class TableRowImpl implements TableRow {
             return false;
         }
         TableRowImpl line = (TableRowImpl) obj;
-        for (int i = 0; i < line.table.getColumnsCount(); i++) {
-            if (!line.table.getColumnType(i).equals(table.getColumnType(i))) {
-                return false;
-            }
-        }
-        return line.columns.equals(columns);
+        return line.layout.isCompatible(layout) && Arrays.equals(line.values, values)
+                && Arrays.equals(line.strings, strings);
     }
 
     @Override
     public Class<?> getColumnType(int columnIndex) throws IndexOutOfBoundsException {
-        return table.getColumnType(columnIndex);
+        checkColumnIndexBounds(columnIndex);
+        return layout.getColumnType(columnIndex);
     }
 
     @Override
@@ -124,12 +232,11 @@ public class TableRowImpl implements TableRow {
         StringBuilder stringBuilder = new StringBuilder();
         stringBuilder.append(getClass().getSimpleName());
         stringBuilder.append("[");
-        boolean first = true;
-        for (Object value : columns) {
-            if (!first) {
+        for (int i = 0; i < layout.getColumnsCount(); i++) {
+            if (i > 0) {
                 stringBuilder.append(",");
             }
-            first = false;
+            Object value = getColumnAt(i);
             if (value != null) {
                 stringBuilder.append(value.toString());
             }
@@ -141,6 +248,6 @@ public class TableRowImpl implements TableRow {
 
     @Override
     public int hashCode() {
-        return super.hashCode();
+        return 31 * Arrays.hashCode(values) + Arrays.hashCode(strings);
     }
 }
@@ -0,0 +1,108 @@
+package ru.phystech.java2.students.belousova.database.table.impl;
+
+import ru.phystech.java2.students.belousova.database.table.api.ColumnFormatException;
+import ru.phystech.java2.students.belousova.database.table.api.TableRow;
+import ru.phystech.java2.students.belousova.database.table.api.Transaction;
+
+import java.io.IOException;
+
+/**
+ * Транзакция над {@link TableImpl}. Снимок таблицы начинается при первом изменении, а буфер изменений
+ * берётся из пула таблицы. Пока изменений нет, чтения возвращают последние зафиксированные значения
+ * и ничего не удерживают. Когда изменений не остаётся (commit, rollback или возврат ключей к прежним
+ * значениям), буфер возвращается в пул, а снимок освобождается.
+ */
+public class TransactionImpl implements Transaction {
+    private final TableImpl table;
+    private TableImpl.Snapshot snapshot = null;
+    private TableImpl.Changes changes = null;
+
+    TransactionImpl(TableImpl table) {
+        this.table = table;
+    }
+
+    @Override
+    public TableRow get(String key) {
+        return table.get(this, key);
+    }
+
+    @Override
+    public TableRow put(String key, TableRow value) throws ColumnFormatException {
+        return table.put(this, key, value);
+    }
+
+    @Override
+    public TableRow remove(String key) {
+        return table.remove(this, key);
+    }
+
+    @Override
+    public int size() {
+        return table.size(this);
+    }
+
+    @Override
+    public int commit() throws IOException {
+        return table.commit(this);
+    }
+
+    @Override
+    public int rollback() {
+        return table.rollback(this);
+    }
+
+    @Override
+    public int getChangesCount() {
+        return table.getChangesCount(this);
+    }
+
+    TableImpl.Snapshot getSnapshot() {
+        if (snapshot == null) {
+            snapshot = table.beginSnapshot();
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return Снимок транзакции или null, если у неё нет изменений и снимок не начат.
+     */
+    TableImpl.Snapshot getCurrentSnapshot() {
+        return snapshot;
+    }
+
+    TableImpl.Changes getChanges() {
+        if (changes == null) {
+            changes = table.takeChanges();
+        }
+        return changes;
+    }
+
+    /**
+     * @return Изменение ключа в транзакции или null, если ключ не менялся.
+     */
+    TableImpl.Change getChange(String key) {
+        return changes != null ? changes.keys.get(key) : null;
+    }
+
+    int getChangesCounter() {
+        return changes != null ? changes.changesCount : 0;
+    }
+
+    int getSizeDelta() {
+        return changes != null ? changes.sizeDelta : 0;
+    }
+
+    /**
+     * Возвращает буфер изменений в пул и освобождает снимок.
+     */
+    void finish() {
+        if (changes != null) {
+            table.releaseChanges(changes);
+            changes = null;
+        }
+        if (snapshot != null) {
+            table.releaseSnapshot(snapshot);
+            snapshot = null;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package ru.phystech.java2.students.belousova.database.table.impl.test;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.*;
+import ru.phystech.java2.students.belousova.database.table.api.Table;
+import ru.phystech.java2.students.belousova.database.table.api.TableProvider;
+import ru.phystech.java2.students.belousova.database.table.impl.LsmTable;
+import ru.phystech.java2.students.belousova.database.table.impl.LsmTableProvider;
+import ru.phystech.java2.students.belousova.database.table.impl.LsmTableProviderFactory;
+import ru.phystech.java2.students.belousova.database.table.utils.ColumnScanner;
+import ru.phystech.java2.students.belousova.database.table.utils.ColumnVector;
+import ru.phystech.java2.students.belousova.database.table.utils.RowFormat;
+import ru.phystech.java2.students.belousova.database.table.utils.RowScanner;
+import ru.phystech.java2.students.belousova.database.table.utils.ShardLayout;
+import ru.phystech.java2.students.belousova.database.table.utils.StorageEngine;
+import ru.phystech.java2.students.belousova.database.table.utils.TableConfig;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class LsmTableTest {
+    private static final String DIRECTORY = "javatest-lsm";
+    private static String testString = "<row><col>5</col><col>frgedr</col></row>";
+    private static String otherString = "<row><col>7</col><col>other</col></row>";
+    private static List<Class<?>> columnTypes = new ArrayList<>();
+    private LsmTableProviderFactory tableProviderFactory;
+    private TableProvider tableProvider;
+    private Table table;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        columnTypes.add(Integer.class);
+        columnTypes.add(String.class);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        tableProviderFactory = new LsmTableProviderFactory();
+        tableProvider = tableProviderFactory.create(DIRECTORY);
+        table = tableProvider.createTable("testTable", columnTypes);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        tableProviderFactory.close();
+        File file = new File(DIRECTORY);
+        if (file.exists()) {
+            FileUtils.deleteDirectory(file);
+        }
+    }
+
+    private void reopen() throws Exception {
+        tableProviderFactory.close();
+        tableProviderFactory = new LsmTableProviderFactory();
+        tableProvider = tableProviderFactory.create(DIRECTORY);
+        table = tableProvider.getTable("testTable");
+    }
+
+    @Test
+    public void testPutGetCommit() throws Exception {
+        Assert.assertNull(table.put("key", tableProvider.deserialize(table, testString)));
+        Assert.assertEquals(1, table.commit());
+        Assert.assertEquals(testString, tableProvider.serialize(table, table.get("key")));
+        Assert.assertEquals(1, table.size());
+    }
+
+    @Test
+    public void testReopen() throws Exception {
+        for (int i = 0; i < 200; i++) {
+            table.put("key" + i, tableProvider.deserialize(table, testString));
+        }
+        table.commit();
+        reopen();
+        Assert.assertEquals(200, table.size());
+        Assert.assertEquals(testString, tableProvider.serialize(table, table.get("key150")));
+        Assert.assertNull(table.get("key200"));
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        for (int round = 0; round < 6; round++) {
+            for (int i = round * 10; i < round * 10 + 20; i++) {
+                table.put("key" + i, tableProvider.deserialize(table, round % 2 == 0 ? testString : otherString));
+            }
+            table.remove("key" + round);
+            table.commit();
+            reopen();
+        }
+        Assert.assertTrue(((LsmTable) table).getRunsCount() > 1);
+        int size = table.size();
+        ((LsmTable) table).compact();
+        Assert.assertEquals(1, ((LsmTable) table).getRunsCount());
+        Assert.assertEquals(size, table.size());
+        Assert.assertEquals(64, size);
+
+        reopen();
+        Assert.assertEquals(64, table.size());
+        for (int i = 0; i < 6; i++) {
+            Assert.assertNull(table.get("key" + i));
+        }
+        Assert.assertEquals(testString, tableProvider.serialize(table, table.get("key6")));
+        Assert.assertEquals(otherString, tableProvider.serialize(table, table.get("key59")));
+        Assert.assertEquals(otherString, tableProvider.serialize(table, table.get("key69")));
+    }
+
+    @Test
+    public void testConcurrentCommits() throws Exception {
+        final AtomicInteger errors = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            final String prefix = "thread" + i + "Key";
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 50; j++) {
+                            table.put(prefix + j, tableProvider.deserialize(table, testString));
+                            table.put("shared", tableProvider.deserialize(table, otherString));
+                            table.commit();
+                            if (table.get(prefix + j) == null) {
+                                errors.incrementAndGet();
+                            }
+                        }
+                    } catch (Exception e) {
+                        errors.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(0, errors.get());
+        Assert.assertEquals(201, table.size());
+
+        reopen();
+        Assert.assertEquals(201, table.size());
+        Assert.assertEquals(testString, tableProvider.serialize(table, table.get("thread3Key49")));
+    }
+
+    @Test
+    public void testCreateTableKeepsConfig() throws Exception {
+        TableConfig config = new TableConfig();
+        Table other = ((LsmTableProvider) tableProvider).createTable("testConfig", columnTypes, config);
+        Assert.assertTrue(other instanceof LsmTable);
+        Assert.assertEquals(StorageEngine.SHARDS, config.getStorageEngine());
+    }
+
+    @Test
+    public void testScanRows() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            table.put("key" + i, tableProvider.deserialize(table, testString));
+        }
+        table.commit();
+        reopen();
+        table.remove("key3");
+        table.put("key5", tableProvider.deserialize(table, otherString));
+        table.commit();
+
+        final Map<String, String> rows = new TreeMap<>();
+        ((LsmTable) table).scanRows(RowFormat.XML, new RowScanner() {
+            @Override
+            public void scan(String key, byte[] row) {
+                rows.put(key, new String(row, StandardCharsets.UTF_8));
+            }
+        });
+        Assert.assertEquals(19, rows.size());
+        Assert.assertFalse(rows.containsKey("key3"));
+        Assert.assertEquals(otherString, rows.get("key5"));
+        Assert.assertEquals(testString, rows.get("key7"));
+        Assert.assertEquals(19, table.size());
+    }
+
+    @Test
+    public void testScanColumns() throws Exception {
+        for (int i = 0; i < 5000; i++) {
+            table.put("key" + i, tableProvider.deserialize(table, testString));
+        }
+        table.commit();
+        table.put("key42", tableProvider.deserialize(table, otherString));
+        table.remove("key43");
+        table.commit();
+
+        final AtomicInteger rowsCount = new AtomicInteger();
+        final AtomicInteger sum = new AtomicInteger();
+        final List<String> strings = new ArrayList<>();
+        ((LsmTable) table).scan(new int[]{0, 1}, new ColumnScanner() {
+            @Override
+            public void scan(ColumnVector[] columns) {
+                Assert.assertEquals(2, columns.length);
+                Assert.assertEquals(columns[0].size(), columns[1].size());
+                rowsCount.addAndGet(columns[0].size());
+                for (int i = 0; i < columns[0].size(); i++) {
+                    sum.addAndGet(columns[0].getInts()[i]);
+                    strings.add(columns[1].getStrings()[i]);
+                }
+            }
+        });
+        Assert.assertEquals(4999, rowsCount.get());
+        Assert.assertEquals(4998 * 5 + 7, sum.get());
+        Assert.assertTrue(strings.contains("other"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testReshardIsRejected() throws Exception {
+        ((LsmTable) table).reshard(new ShardLayout(ShardLayout.ShardFunction.HASH, 4, 4));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testBulkLoadIsRejected() throws Exception {
+        ((LsmTableProvider) tableProvider).createBulkLoader("loaded", columnTypes);
+    }
+
+    @Test
+    public void testRecoverFromLog() throws Exception {
+        table.put("key", tableProvider.deserialize(table, testString));
+        table.commit();
+        table.remove("key");
+        table.put("other", tableProvider.deserialize(table, otherString));
+        table.commit();
+
+        File crashed = new File(DIRECTORY + "-crash");
+        FileUtils.copyDirectory(new File(DIRECTORY), crashed);
+        try {
+            Table recovered = new LsmTableProviderFactory().create(crashed.getPath()).getTable("testTable");
+            Assert.assertNull(recovered.get("key"));
+            Assert.assertEquals(1, recovered.size());
+            ((LsmTable) recovered).close();
+        } finally {
+            FileUtils.deleteDirectory(crashed);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package ru.phystech.java2.students.belousova.database.table.impl.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+import ru.phystech.java2.students.belousova.database.table.utils.OffHeapRowMap;
+import ru.phystech.java2.students.belousova.database.table.utils.StoredRow;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class OffHeapRowMapTest {
+    @Test
+    public void testPutGetRemove() {
+        OffHeapRowMap map = new OffHeapRowMap();
+        Assert.assertNull(map.put("key", row("value")));
+        Assert.assertEquals("value", value(map.get("key")));
+        Assert.assertEquals("value", value(map.put("key", row("other"))));
+        Assert.assertEquals(1, map.size());
+        Assert.assertEquals("other", value(map.remove("key")));
+        Assert.assertNull(map.get("key"));
+        Assert.assertNull(map.remove("key"));
+        Assert.assertEquals(0, map.size());
+    }
+
+    @Test
+    public void testRecentRowsAreCached() {
+        OffHeapRowMap map = new OffHeapRowMap();
+        StoredRow written = row("value");
+        map.put("key", written);
+        map.put("other", row("other"));
+        Assert.assertSame(written, map.get("key"));
+        Assert.assertSame(map.get("other"), map.get("other"));
+
+        map.remove("other");
+        Assert.assertNull(map.get("other"));
+        Assert.assertSame(written, map.get("key"));
+        StoredRow replaced = row("replaced");
+        map.put("key", replaced);
+        Assert.assertSame(replaced, map.get("key"));
+
+        OffHeapRowMap copy = new OffHeapRowMap(map);
+        StoredRow read = copy.get("key");
+        Assert.assertNotSame(replaced, read);
+        Assert.assertEquals("replaced", value(read));
+        Assert.assertSame(read, copy.get("key"));
+    }
+
+    @Test
+    public void testMatchesHashMap() {
+        OffHeapRowMap map = new OffHeapRowMap();
+        Map<String, String> expected = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 50000; i++) {
+            String key = "ключ" + random.nextInt(2000);
+            if (random.nextInt(3) == 0) {
+                Assert.assertEquals(expected.remove(key), value(map.remove(key)));
+            } else {
+                String value = Integer.toString(random.nextInt()) + i;
+                Assert.assertEquals(expected.put(key, value), value(map.put(key, row(value))));
+            }
+        }
+        Assert.assertEquals(expected.size(), map.size());
+        for (Map.Entry<String, StoredRow> entry : map.entrySet()) {
+            Assert.assertEquals(expected.get(entry.getKey()), value(entry.getValue()));
+        }
+        OffHeapRowMap copy = new OffHeapRowMap(map);
+        map.clear();
+        Assert.assertEquals(0, map.size());
+        Assert.assertEquals(expected.size(), copy.size());
+        for (Map.Entry<String, String> entry : expected.entrySet()) {
+            Assert.assertEquals(entry.getValue(), value(copy.get(entry.getKey())));
+        }
+    }
+
+    @Test
+    public void testReadsDuringChanges() throws Exception {
+        final OffHeapRowMap map = new OffHeapRowMap();
+        for (int i = 0; i < 100; i++) {
+            map.put("stable" + i, row("value" + i));
+        }
+        final AtomicBoolean isFinished = new AtomicBoolean(false);
+        final AtomicInteger errors = new AtomicInteger();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Random random = new Random(7);
+                while (!isFinished.get()) {
+                    int i = random.nextInt(100);
+                    if (!("value" + i).equals(value(map.get("stable" + i))) || map.get("missing") != null) {
+                        errors.incrementAndGet();
+                    }
+                }
+            }
+        });
+        reader.start();
+        Random random = new Random(42);
+        for (int i = 0; i < 200000; i++) {
+            String key = "changing" + random.nextInt(5000);
+            if (random.nextInt(3) == 0) {
+                map.remove(key);
+            } else {
+                map.put(key, row(Integer.toString(i)));
+            }
+        }
+        isFinished.set(true);
+        reader.join();
+        Assert.assertEquals(0, errors.get());
+    }
+
+    private static StoredRow row(String value) {
+        return new StoredRow(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String value(StoredRow row) {
+        return row == null ? null : new String(row.getData(), StandardCharsets.UTF_8);
+    }
+}
@@ -6,11 +6,25 @@ import ru.phystech.java2.students.belousova.database.table.api.Table;
 import ru.phystech.java2.students.belousova.database.table.api.TableProvider;
 import ru.phystech.java2.students.belousova.database.table.api.TableProviderFactory;
 import ru.phystech.java2.students.belousova.database.table.api.TableRow;
+import ru.phystech.java2.students.belousova.database.table.api.Transaction;
+import ru.phystech.java2.students.belousova.database.table.impl.TableImpl;
 import ru.phystech.java2.students.belousova.database.table.impl.TableProviderFactoryImpl;
+import ru.phystech.java2.students.belousova.database.table.utils.BloomFilter;
+import ru.phystech.java2.students.belousova.database.table.utils.DirectoryLock;
+import ru.phystech.java2.students.belousova.database.table.utils.MultiFileUtils;
+import ru.phystech.java2.students.belousova.database.table.utils.ShardLayout;
 
 import java.io.File;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TableImplTest {
     private static TableProviderFactory tableProviderFactory = new TableProviderFactoryImpl();
@@ -225,6 +239,470 @@ public class TableImplTest {
         Assert.assertEquals(table.commit(), 0);
     }
 
+    @Test
+    public void testCountsDuringTransaction() throws Exception {
+        TableRow otherStorable = tableProvider.deserialize(table, "<row><col>6</col><col>0</col><col>65777</col>"
+                + "<col>5.5</col><col>767.576</col><col>frgedr</col><col>true</col></row>");
+        table.put("committedKey", testStorable);
+        table.commit();
+
+        Assert.assertEquals(testStorable, table.remove("committedKey"));
+        Assert.assertEquals(0, table.size());
+        Assert.assertEquals(1, table.getChangesCount());
+        Assert.assertNull(table.put("committedKey", testStorable));
+        Assert.assertEquals(1, table.size());
+        Assert.assertEquals(0, table.getChangesCount());
+        Assert.assertEquals(testStorable, table.put("committedKey", otherStorable));
+        Assert.assertEquals(1, table.getChangesCount());
+        Assert.assertNull(table.put("newKey", testStorable));
+        Assert.assertEquals(2, table.size());
+        Assert.assertEquals(2, table.getChangesCount());
+        Assert.assertEquals(testStorable, table.remove("newKey"));
+        Assert.assertEquals(1, table.size());
+        Assert.assertEquals(1, table.getChangesCount());
+        Assert.assertEquals(1, table.commit());
+        Assert.assertEquals(otherStorable, table.get("committedKey"));
+        Assert.assertEquals(1, table.size());
+    }
+
+    @Test
+    public void testCommitIncremental() throws Exception {
+        table.put("aKey", testStorable);
+        table.put("bKey", testStorable);
+        table.commit();
+        table.remove("aKey");
+        table.put("cKey", testStorable);
+        Assert.assertEquals(table.commit(), 2);
+        ((TableImpl) table).close();
+
+        Table reopened = tableProviderFactory.create("javatest").getTable("testTable");
+        Assert.assertNull(reopened.get("aKey"));
+        Assert.assertEquals(reopened.get("bKey"), testStorable);
+        Assert.assertEquals(reopened.get("cKey"), testStorable);
+        Assert.assertEquals(reopened.size(), 2);
+    }
+
+    @Test
+    public void testRecoverTornLogTail() throws Exception {
+        table.put("firstKey", testStorable);
+        table.commit();
+        table.put("secondKey", testStorable);
+        table.commit();
+
+        File crashed = new File("javatest-crash");
+        FileUtils.copyDirectory(new File("javatest"), crashed);
+        try {
+            File segment = null;
+            for (File file : new File(crashed, "testTable").listFiles()) {
+                if (file.getName().startsWith("wal.") && file.length() > 0) {
+                    segment = file;
+                }
+            }
+            Assert.assertNotNull(segment);
+            RandomAccessFile segmentFile = new RandomAccessFile(segment, "rw");
+            try {
+                segmentFile.setLength(segment.length() - 5);
+            } finally {
+                segmentFile.close();
+            }
+
+            Table recovered = tableProviderFactory.create(crashed.getPath()).getTable("testTable");
+            Assert.assertEquals(testStorable, recovered.get("firstKey"));
+            Assert.assertNull(recovered.get("secondKey"));
+            Assert.assertEquals(1, recovered.size());
+            ((TableImpl) recovered).close();
+        } finally {
+            FileUtils.deleteDirectory(crashed);
+        }
+    }
+
+    @Test
+    public void testOpenedTableIsLocked() throws Exception {
+        table.put("key", testStorable);
+        table.commit();
+        TableProvider otherProvider = tableProviderFactory.create("javatest");
+        try {
+            otherProvider.getTable("testTable");
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            //the table is opened by the first provider
+            Assert.assertTrue(e.getMessage().contains(new File(new File("javatest", "testTable"),
+                    DirectoryLock.FILE_NAME).getAbsolutePath()));
+        }
+        ((TableImpl) table).close();
+        Assert.assertEquals(testStorable, otherProvider.getTable("testTable").get("key"));
+    }
+
+    @Test
+    public void testNullColumnsAfterReopen() throws Exception {
+        TableRow row = tableProvider.createFor(table);
+        row.setColumnAt(0, 42);
+        row.setColumnAt(5, "строка");
+        table.put("nullsKey", row);
+        table.commit();
+        ((TableImpl) table).close();
+
+        TableRow reopened = tableProviderFactory.create("javatest").getTable("testTable").get("nullsKey");
+        Assert.assertEquals(Integer.valueOf(42), reopened.getIntAt(0));
+        Assert.assertNull(reopened.getColumnAt(1));
+        Assert.assertEquals("строка", reopened.getStringAt(5));
+        Assert.assertNull(reopened.getColumnAt(6));
+    }
+
+    @Test
+    public void testLargeShardFile() throws Exception {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            builder.append("value");
+        }
+        for (int i = 0; i < 5; i++) {
+            TableRow row = tableProvider.createFor(table);
+            row.setColumnAt(5, builder.toString() + i);
+            table.put("largeKey" + i, row);
+        }
+        table.commit();
+        ((TableImpl) table).close();
+
+        tableProviderFactory.create("javatest");
+        Table reopened = tableProviderFactory.create("javatest").getTable("testTable");
+        Assert.assertEquals(5, reopened.size());
+        Assert.assertEquals(builder.toString() + 3, reopened.get("largeKey3").getStringAt(5));
+    }
+
+    @Test
+    public void testBloomFilter() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            table.put("bloomKey" + i, testStorable);
+        }
+        table.commit();
+        ((TableImpl) table).close();
+
+        File tableDirectory = new File("javatest", "testTable");
+        ShardLayout layout = ((TableImpl) table).getShardLayout();
+        int nDirectory = layout.getDirectoryNumber("bloomKey0");
+        int nFile = layout.getFileNumber("bloomKey0");
+        File shardDirectory = new File(tableDirectory, nDirectory + ".dir");
+        Assert.assertTrue(new File(shardDirectory, nFile + ".bloom").exists());
+
+        BloomFilter filter = MultiFileUtils.readBloomFilter(tableDirectory, nDirectory, nFile);
+        Assert.assertTrue(filter.mightContain("bloomKey0"));
+        int falsePositives = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (filter.mightContain("missingKey" + i)) {
+                falsePositives++;
+            }
+        }
+        Assert.assertTrue(falsePositives < 100);
+
+        Table reopened = tableProviderFactory.create("javatest").getTable("testTable");
+        Assert.assertNull(reopened.get("missingKey0"));
+        Assert.assertEquals(Integer.valueOf(5), reopened.get("bloomKey99").getIntAt(0));
+        Assert.assertEquals(100, reopened.size());
+
+        FileUtils.writeByteArrayToFile(new File(shardDirectory, nFile + ".dat"), new byte[1]);
+        Assert.assertSame(BloomFilter.FULL, MultiFileUtils.readBloomFilter(tableDirectory, nDirectory, nFile));
+    }
+
+    @Test
+    public void testConcurrentCommits() throws Exception {
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            final String prefix = "thread" + i + "Key";
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 10; j++) {
+                            table.put(prefix + j, testStorable);
+                            table.commit();
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(table.size(), 80);
+        ((TableImpl) table).close();
+
+        Table reopened = tableProviderFactory.create("javatest").getTable("testTable");
+        Assert.assertEquals(reopened.size(), 80);
+        Assert.assertEquals(reopened.get("thread7Key9"), testStorable);
+    }
+
+    @Test
+    public void testReadsDuringCommits() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            table.put("stableKey" + i, testStorable);
+        }
+        table.commit();
+        final AtomicBoolean isFinished = new AtomicBoolean(false);
+        final AtomicInteger errors = new AtomicInteger();
+        List<Thread> readers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            readers.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (!isFinished.get()) {
+                        for (int j = 0; j < 100; j++) {
+                            if (!testStorable.equals(table.get("stableKey" + j))) {
+                                errors.incrementAndGet();
+                            }
+                        }
+                        table.rollback();
+                    }
+                }
+            }));
+        }
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        for (int i = 0; i < 200; i++) {
+            table.put("changingKey" + (i % 50), testStorable);
+            table.remove("changingKey" + ((i + 25) % 50));
+            table.commit();
+            if (i == 100) {
+                ((TableImpl) table).reshard(new ShardLayout(ShardLayout.ShardFunction.HASH, 4, 4));
+            }
+        }
+        isFinished.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        Assert.assertEquals(0, errors.get());
+        Assert.assertEquals(125, table.size());
+    }
+
+    @Test
+    public void testParallelCommitsAreAtomic() throws Exception {
+        final AtomicBoolean isFinished = new AtomicBoolean(false);
+        final AtomicInteger errors = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            final String prefix = "writer" + i + "Key";
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 100; j++) {
+                            table.put(prefix + j + "a", testStorable);
+                            table.put(prefix + j + "b", testStorable);
+                            table.commit();
+                        }
+                    } catch (Exception e) {
+                        errors.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Transaction transaction = table.beginTransaction();
+                while (!isFinished.get()) {
+                    transaction.put("readerKey", testStorable);
+                    int size = transaction.size() - 1;
+                    for (int j = 0; j < 100; j++) {
+                        boolean hasA = transaction.get("writer0Key" + j + "a") != null;
+                        boolean hasB = transaction.get("writer0Key" + j + "b") != null;
+                        if (hasA != hasB) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                    if (size % 2 != 0 || size != transaction.size() - 1) {
+                        errors.incrementAndGet();
+                    }
+                    transaction.rollback();
+                }
+            }
+        });
+        reader.start();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        isFinished.set(true);
+        reader.join();
+        Assert.assertEquals(0, errors.get());
+        Assert.assertEquals(800, table.size());
+    }
+
+    @Test
+    public void testReadsWithoutSnapshotDoNotSeeUnpublishedCommits() throws Exception {
+        final AtomicBoolean isFinished = new AtomicBoolean(false);
+        final AtomicInteger errors = new AtomicInteger();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                String[] keys = {"firstKey", "secondKey"};
+                for (int i = 0; !isFinished.get(); i++) {
+                    int first = getValue(keys[i % 2]);
+                    int second = getValue(keys[(i + 1) % 2]);
+                    if (second < first) {
+                        errors.incrementAndGet();
+                    }
+                }
+            }
+
+            private int getValue(String key) {
+                TableRow row = table.get(key);
+                return row != null ? row.getIntAt(0) : 0;
+            }
+        });
+        reader.start();
+        for (int i = 1; i <= 2000; i++) {
+            TableRow row = tableProvider.createFor(table);
+            row.setColumnAt(0, i);
+            table.put("firstKey", row);
+            table.put("secondKey", row);
+            table.commit();
+        }
+        isFinished.set(true);
+        reader.join();
+        Assert.assertEquals(0, errors.get());
+    }
+
+    @Test
+    public void testSnapshotIsolation() throws Exception {
+        table.put("oldKey", testStorable);
+        table.commit();
+        table.put("ownKey", testStorable);
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    table.remove("oldKey");
+                    table.put("newKey", testStorable);
+                    table.commit();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        writer.start();
+        writer.join();
+
+        Assert.assertEquals(testStorable, table.get("oldKey"));
+        Assert.assertNull(table.get("newKey"));
+        Assert.assertEquals(2, table.size());
+        Assert.assertEquals(1, table.rollback());
+        Assert.assertNull(table.get("oldKey"));
+        Assert.assertEquals(testStorable, table.get("newKey"));
+        Assert.assertEquals(1, table.size());
+    }
+
+    @Test
+    public void testReaderSeesOtherCommits() throws Exception {
+        table.put("oldKey", testStorable);
+        table.commit();
+        Assert.assertEquals(testStorable, table.get("oldKey"));
+        Assert.assertEquals(1, table.size());
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    table.remove("oldKey");
+                    table.put("newKey", testStorable);
+                    table.put("otherKey", testStorable);
+                    table.commit();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        writer.start();
+        writer.join();
+
+        Assert.assertNull(table.get("oldKey"));
+        Assert.assertEquals(testStorable, table.get("newKey"));
+        Assert.assertEquals(2, table.size());
+        Assert.assertEquals(0, table.getChangesCount());
+    }
+
+    @Test
+    public void testIdleReaderDoesNotHoldVersions() throws Exception {
+        final CountDownLatch hasRead = new CountDownLatch(1);
+        final CountDownLatch isFinished = new CountDownLatch(1);
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                table.get("key");
+                table.size();
+                hasRead.countDown();
+                try {
+                    isFinished.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        reader.start();
+        try {
+            hasRead.await();
+            Transaction transaction = table.beginTransaction();
+            transaction.put("otherKey", testStorable);
+            transaction.remove("otherKey");
+            table.put("key", testStorable);
+            table.commit();
+            Assert.assertEquals(0, ((TableImpl) table).getVersionedKeysCount());
+
+            transaction.put("otherKey", testStorable);
+            table.remove("key");
+            table.commit();
+            Assert.assertEquals(1, ((TableImpl) table).getVersionedKeysCount());
+            Assert.assertEquals(1, transaction.rollback());
+            Assert.assertEquals(0, ((TableImpl) table).getVersionedKeysCount());
+        } finally {
+            isFinished.countDown();
+            reader.join();
+        }
+    }
+
+    @Test
+    public void testExplicitTransactions() throws Exception {
+        final Transaction first = table.beginTransaction();
+        Transaction second = table.beginTransaction();
+        Assert.assertNull(first.put("firstKey", testStorable));
+        Assert.assertNull(second.put("secondKey", testStorable));
+        Assert.assertNull(second.get("firstKey"));
+        Assert.assertNull(table.get("firstKey"));
+        Assert.assertEquals(1, first.size());
+        Assert.assertEquals(1, second.size());
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Integer> committed = executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    first.put("otherKey", testStorable);
+                    return first.commit();
+                }
+            });
+            Assert.assertEquals(Integer.valueOf(2), committed.get());
+        } finally {
+            executor.shutdown();
+        }
+
+        Assert.assertNull(second.get("firstKey"));
+        Assert.assertEquals(testStorable, table.get("firstKey"));
+        Assert.assertEquals(1, second.rollback());
+        Assert.assertEquals(testStorable, second.get("otherKey"));
+        Assert.assertEquals(testStorable, second.remove("otherKey"));
+        Assert.assertEquals(1, second.getChangesCount());
+        Assert.assertEquals(1, second.commit());
+        Assert.assertEquals(1, first.size());
+    }
+
     @Test
     public void testGetColumnsCount() throws Exception {
         Assert.assertEquals(7, table.getColumnsCount());
@@ -4,12 +4,37 @@ import junit.framework.Assert;
 import org.apache.commons.io.FileUtils;
 import org.junit.*;
 import ru.phystech.java2.students.belousova.database.table.api.*;
+import ru.phystech.java2.students.belousova.database.table.impl.BulkLoader;
 import ru.phystech.java2.students.belousova.database.table.impl.TableProviderFactoryImpl;
+import ru.phystech.java2.students.belousova.database.table.impl.TableImpl;
+import ru.phystech.java2.students.belousova.database.table.impl.TableProviderImpl;
+import ru.phystech.java2.students.belousova.database.table.utils.RowCodec;
+import ru.phystech.java2.students.belousova.database.table.utils.RowFormat;
+import ru.phystech.java2.students.belousova.database.table.utils.RowStorage;
+import ru.phystech.java2.students.belousova.database.table.utils.ShardLayout;
+import ru.phystech.java2.students.belousova.database.table.utils.StoredRow;
+import ru.phystech.java2.students.belousova.database.table.utils.ColumnScanner;
+import ru.phystech.java2.students.belousova.database.table.utils.ColumnVector;
+import ru.phystech.java2.students.belousova.database.table.utils.Compression;
+import ru.phystech.java2.students.belousova.database.table.utils.TableCatalog;
+import ru.phystech.java2.students.belousova.database.table.utils.TableConfig;
+import ru.phystech.java2.students.belousova.database.table.utils.TableUtils;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TableProviderImplTest {
     private static TableProvider tableProvider;
@@ -82,6 +107,390 @@ public class TableProviderImplTest {
         tableProvider.removeTable("testCreateTableNotExisted");
     }
 
+    @Test
+    public void testCreateTableXmlFormat() throws Exception {
+        TableConfig config = new TableConfig();
+        config.setRowFormat(RowFormat.XML);
+        Table xmlTable = ((TableProviderImpl) tableProvider).createTable("testCreateTableXmlFormat", goodList, config);
+        xmlTable.put("key", tableProvider.deserialize(xmlTable, testString));
+        xmlTable.commit();
+        ((TableImpl) xmlTable).close();
+
+        Table reopened = new TableProviderFactoryImpl().create("javatest").getTable("testCreateTableXmlFormat");
+        Assert.assertEquals(testString, tableProvider.serialize(reopened, reopened.get("key")));
+        tableProvider.removeTable("testCreateTableXmlFormat");
+    }
+
+    @Test
+    public void testResidentShardsLimit() throws Exception {
+        TableConfig config = new TableConfig();
+        config.setRowFormat(RowFormat.BINARY);
+        config.setResidentShardsLimit(1);
+        Table limitedTable = ((TableProviderImpl) tableProvider).createTable("testResidentShardsLimit",
+                goodList, config);
+        String[] keys = {"a", "b", "c", "d", "e"};
+        for (String key : keys) {
+            limitedTable.put(key, tableProvider.deserialize(limitedTable, testString));
+        }
+        limitedTable.commit();
+        ((TableImpl) limitedTable).close();
+
+        Table reopened = new TableProviderFactoryImpl().create("javatest").getTable("testResidentShardsLimit");
+        Assert.assertEquals(keys.length, reopened.size());
+        for (String key : keys) {
+            Assert.assertEquals(testString, tableProvider.serialize(reopened, reopened.get(key)));
+        }
+        Assert.assertNull(reopened.get("f"));
+        tableProvider.removeTable("testResidentShardsLimit");
+    }
+
+    @Test
+    public void testCompressedShardFiles() throws Exception {
+        for (Compression compression : Compression.values()) {
+            for (int residentLimit = 0; residentLimit <= 1; residentLimit++) {
+                TableConfig config = new TableConfig();
+                config.setRowFormat(RowFormat.BINARY);
+                config.setCompression(compression);
+                config.setResidentShardsLimit(residentLimit);
+                Table compressedTable = ((TableProviderImpl) tableProvider).createTable("testCompressedShardFiles",
+                        goodList, config);
+                for (int i = 0; i < 200; i++) {
+                    compressedTable.put("key" + i, tableProvider.deserialize(compressedTable, testString));
+                }
+                compressedTable.commit();
+                ((TableImpl) compressedTable).close();
+
+                Table reopened = new TableProviderFactoryImpl().create("javatest").getTable("testCompressedShardFiles");
+                Assert.assertEquals(200, reopened.size());
+                for (int i = 0; i < 200; i++) {
+                    Assert.assertEquals(testString, tableProvider.serialize(reopened, reopened.get("key" + i)));
+                }
+                Assert.assertNull(reopened.get("key200"));
+                ((TableImpl) reopened).close();
+                tableProvider.removeTable("testCompressedShardFiles");
+            }
+        }
+    }
+
+    @Test
+    public void testOffHeapRowStorage() throws Exception {
+        TableConfig config = new TableConfig();
+        config.setRowFormat(RowFormat.BINARY);
+        config.setRowStorage(RowStorage.OFF_HEAP);
+        config.setPreload(true);
+        Table offHeapTable = ((TableProviderImpl) tableProvider).createTable("testOffHeapRowStorage",
+                goodList, config);
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 100; i++) {
+                offHeapTable.put("key" + i, tableProvider.deserialize(offHeapTable,
+                        "<row><col>" + (round + i) + "</col><col>0</col><col>65777</col><col>"
+                        + "5.5</col><col>767.576</col><col>frgedr</col><col>true</col></row>"));
+            }
+            offHeapTable.commit();
+        }
+        for (int i = 0; i < 50; i++) {
+            offHeapTable.remove("key" + i);
+        }
+        offHeapTable.commit();
+        Assert.assertEquals(50, offHeapTable.size());
+        Assert.assertNull(offHeapTable.get("key0"));
+        Assert.assertEquals(19 + 99, (int) offHeapTable.get("key99").getIntAt(0));
+        ((TableImpl) offHeapTable).close();
+
+        Table reopened = new TableProviderFactoryImpl().create("javatest").getTable("testOffHeapRowStorage");
+        Assert.assertEquals(50, reopened.size());
+        for (int i = 50; i < 100; i++) {
+            Assert.assertEquals(19 + i, (int) reopened.get("key" + i).getIntAt(0));
+        }
+        Assert.assertNull(reopened.get("key49"));
+        ((TableImpl) reopened).close();
+        tableProvider.removeTable("testOffHeapRowStorage");
+    }
+
+    @Test
+    public void testColumnarScan() throws Exception {
+        for (boolean columnar : new boolean[]{true, false}) {
+            TableConfig config = new TableConfig();
+            config.setRowFormat(RowFormat.BINARY);
+            config.setColumnar(columnar);
+            Table scannedTable = ((TableProviderImpl) tableProvider).createTable("testColumnarScan",
+                    goodList, config);
+            for (int i = 0; i < 100; i++) {
+                TableRow row = tableProvider.deserialize(scannedTable, testString);
+                row.setColumnAt(0, i);
+                row.setColumnAt(5, i % 2 == 0 ? "even" : null);
+                scannedTable.put("key" + i, row);
+            }
+            scannedTable.commit();
+            scannedTable.remove("key99");
+            scannedTable.commit();
+
+            final long[] sum = new long[1];
+            final int[] evenCount = new int[1];
+            ((TableImpl) scannedTable).scan(new int[]{0, 5}, new ColumnScanner() {
+                @Override
+                public void scan(ColumnVector[] columns) {
+                    int[] ints = columns[0].getInts();
+                    for (int i = 0; i < columns[0].size(); i++) {
+                        sum[0] += ints[i];
+                        if (!columns[1].isNull(i)) {
+                            Assert.assertEquals("even", columns[1].getStrings()[i]);
+                            evenCount[0]++;
+                        }
+                    }
+                }
+            });
+            Assert.assertEquals(99 * 98 / 2, sum[0]);
+            Assert.assertEquals(50, evenCount[0]);
+            Assert.assertEquals(columnar, !FileUtils.listFiles(new File("javatest", "testColumnarScan"),
+                    new String[]{"col"}, true).isEmpty());
+            ((TableImpl) scannedTable).close();
+            tableProvider.removeTable("testColumnarScan");
+        }
+    }
+
+    @Test
+    public void testBulkLoad() throws Exception {
+        BulkLoader loader = ((TableProviderImpl) tableProvider).createBulkLoader("testBulkLoad", goodList);
+        Assert.assertNull(tableProvider.getTable("testBulkLoad"));
+        for (int i = 0; i < 1000; i++) {
+            TableRow row = loader.createRow();
+            row.setColumnAt(0, i);
+            row.setColumnAt(5, "value" + i);
+            loader.put("key" + i, row);
+        }
+        TableRow replaced = loader.createRow();
+        replaced.setColumnAt(0, -1);
+        loader.put("key0", replaced);
+        Table loadedTable = loader.finish();
+
+        Assert.assertEquals(1000, loadedTable.size());
+        Assert.assertEquals(Integer.valueOf(-1), loadedTable.get("key0").getIntAt(0));
+        Assert.assertEquals("value999", loadedTable.get("key999").getStringAt(5));
+        loadedTable.remove("key1");
+        loadedTable.commit();
+        ((TableImpl) loadedTable).close();
+
+        Table reopened = new TableProviderFactoryImpl().create("javatest").getTable("testBulkLoad");
+        Assert.assertEquals(999, reopened.size());
+        Assert.assertEquals(Integer.valueOf(500), reopened.get("key500").getIntAt(0));
+        ((TableImpl) reopened).close();
+        tableProvider.removeTable("testBulkLoad");
+    }
+
+    @Test
+    public void testBulkLoadAbort() throws Exception {
+        BulkLoader loader = ((TableProviderImpl) tableProvider).createBulkLoader("testBulkLoadAbort", goodList);
+        loader.put("key", tableProvider.deserialize(table, testString));
+        loader.close();
+        Assert.assertNull(tableProvider.getTable("testBulkLoadAbort"));
+        Assert.assertFalse(new File("javatest", "testBulkLoadAbort.load").exists());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testBulkLoadExistingTable() throws Exception {
+        ((TableProviderImpl) tableProvider).createBulkLoader("table", goodList);
+    }
+
+    @Test
+    public void testCatalog() throws Exception {
+        Table cataloguedTable = tableProvider.createTable("testCatalog", goodList);
+        for (int i = 0; i < 50; i++) {
+            cataloguedTable.put("key" + i, tableProvider.deserialize(cataloguedTable, testString));
+        }
+        cataloguedTable.commit();
+        ((TableImpl) cataloguedTable).close();
+
+        File catalogFile = new File("javatest", TableCatalog.FILE_NAME);
+        Assert.assertTrue(catalogFile.exists());
+        TableCatalog catalog = TableCatalog.read(new File("javatest"));
+        Assert.assertTrue(catalog.isComplete());
+        Assert.assertEquals(goodList, catalog.getColumnTypes("testCatalog"));
+        Assert.assertEquals(50, catalog.getRowsCount("testCatalog"));
+        Assert.assertTrue(catalog.getShards("testCatalog").length > 0);
+
+        Table reopened = new TableProviderFactoryImpl().create("javatest").getTable("testCatalog");
+        Assert.assertEquals(50, reopened.size());
+        Assert.assertNotNull(reopened.get("key42"));
+        Assert.assertNull(reopened.get("key50"));
+        ((TableImpl) reopened).close();
+
+        tableProvider.removeTable("testCatalog");
+        Assert.assertNull(TableCatalog.read(new File("javatest")).getColumnTypes("testCatalog"));
+    }
+
+    @Test
+    public void testCatalogIsMergedBetweenProviders() throws Exception {
+        TableProvider first = new TableProviderFactoryImpl().create("javatest");
+        TableProvider second = new TableProviderFactoryImpl().create("javatest");
+        Table table = first.createTable("testMergedFirst", goodList);
+        for (int i = 0; i < 100; i++) {
+            table.put("key" + i, first.deserialize(table, testString));
+        }
+        table.commit();
+        ((TableImpl) table).close();
+
+        ((TableImpl) second.createTable("testMergedSecond", goodList)).close();
+        try {
+            TableCatalog catalog = TableCatalog.read(new File("javatest"));
+            Assert.assertEquals(100, catalog.getRowsCount("testMergedFirst"));
+            Assert.assertNotNull(catalog.getColumnTypes("testMergedSecond"));
+
+            TableProvider reopened = new TableProviderFactoryImpl().create("javatest");
+            Assert.assertEquals(100, reopened.getTable("testMergedFirst").size());
+            Assert.assertNotNull(reopened.getTable("testMergedSecond"));
+            ((TableImpl) reopened.getTable("testMergedFirst")).close();
+        } finally {
+            second.removeTable("testMergedSecond");
+            second.removeTable("testMergedFirst");
+        }
+    }
+
+    @Test
+    public void testStaleCatalogEntryIsRescanned() throws Exception {
+        Table table = tableProvider.createTable("testStaleCatalog", goodList);
+        table.put("key", tableProvider.deserialize(table, testString));
+        table.commit();
+        ((TableImpl) table).close();
+        TableCatalog catalog = TableCatalog.read(new File("javatest"));
+        int[] shards = catalog.getShards("testStaleCatalog");
+        long dataLength = catalog.getDataLength("testStaleCatalog");
+
+        Table reopened = new TableProviderFactoryImpl().create("javatest").getTable("testStaleCatalog");
+        reopened.remove("key");
+        reopened.commit();
+        ((TableImpl) reopened).close();
+        catalog.setShards("testStaleCatalog", 1, shards, dataLength);
+
+        try {
+            Table rescanned = new TableProviderFactoryImpl().create("javatest").getTable("testStaleCatalog");
+            Assert.assertEquals(0, rescanned.size());
+            Assert.assertNull(rescanned.get("key"));
+            ((TableImpl) rescanned).close();
+        } finally {
+            tableProvider.removeTable("testStaleCatalog");
+        }
+    }
+
+    @Test
+    public void testLazyTableOpening() throws Exception {
+        ((TableImpl) table).close();
+        File brokenTable = new File("javatest", "testLazyBroken");
+        Assert.assertTrue(brokenTable.mkdir());
+        try {
+            TableProviderImpl provider = new TableProviderImpl(new File("javatest"));
+            Assert.assertNotNull(provider.getTable("table"));
+            try {
+                provider.getTable("testLazyBroken");
+                Assert.fail();
+            } catch (RuntimeException e) {
+                //table is opened on the first request
+            }
+        } finally {
+            FileUtils.deleteDirectory(brokenTable);
+        }
+    }
+
+    @Test
+    public void testLoadedTablesLimit() throws Exception {
+        TableProviderImpl provider = (TableProviderImpl) tableProvider;
+        provider.setLoadedTablesLimit(1);
+        try {
+            Table first = provider.createTable("testLimitFirst", goodList);
+            first.put("committed", provider.createFor(first, Arrays.asList(1)));
+            first.commit();
+            first.put("uncommitted", provider.createFor(first, Arrays.asList(2)));
+
+            Table second = provider.createTable("testLimitSecond", goodList);
+            second.put("key", provider.createFor(second, Arrays.asList(3)));
+            second.commit();
+
+            Assert.assertFalse(first.isClosed());
+            Assert.assertEquals(Integer.valueOf(1), first.get("committed").getIntAt(0));
+            Assert.assertEquals(Integer.valueOf(2), first.get("uncommitted").getIntAt(0));
+            Assert.assertEquals(2, first.size());
+            Assert.assertEquals(1, first.commit());
+            Assert.assertSame(first, provider.getTable("testLimitFirst"));
+            Assert.assertEquals(Integer.valueOf(3), provider.getTable("testLimitSecond").get("key").getIntAt(0));
+        } finally {
+            provider.setLoadedTablesLimit(0);
+            provider.removeTable("testLimitFirst");
+            provider.removeTable("testLimitSecond");
+        }
+    }
+
+    @Test
+    public void testLegacyShardLayout() throws Exception {
+        TableConfig config = new TableConfig();
+        config.setRowFormat(RowFormat.BINARY);
+        Table legacyTable = ((TableProviderImpl) tableProvider).createTable("testLegacyShardLayout",
+                goodList, config);
+        legacyTable.put("abc", tableProvider.deserialize(legacyTable, testString));
+        legacyTable.commit();
+        ((TableImpl) legacyTable).close();
+
+        File dataFile = new File(new File(new File("javatest", "testLegacyShardLayout"), "1.dir"), "6.dat");
+        Assert.assertTrue(dataFile.exists());
+        tableProvider.removeTable("testLegacyShardLayout");
+    }
+
+    @Test
+    public void testLegacyShardFileFormat() throws Exception {
+        TableConfig config = new TableConfig();
+        config.setRowFormat(RowFormat.XML);
+        config.setResidentShardsLimit(1);
+        Table legacyTable = ((TableProviderImpl) tableProvider).createTable("testLegacyShardFileFormat",
+                goodList, config);
+        ((TableImpl) legacyTable).close();
+
+        byte[] value = testString.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.write("abc".getBytes(StandardCharsets.UTF_8));
+        dos.write(0);
+        dos.writeInt(8);
+        dos.write(value);
+        dos.flush();
+        File shardDirectory = new File(new File("javatest", "testLegacyShardFileFormat"), "1.dir");
+        shardDirectory.mkdir();
+        FileUtils.writeByteArrayToFile(new File(shardDirectory, "6.dat"), bos.toByteArray());
+        new File("javatest", TableCatalog.FILE_NAME).delete();
+
+        Table reopened = new TableProviderFactoryImpl().create("javatest").getTable("testLegacyShardFileFormat");
+        Assert.assertEquals(1, reopened.size());
+        Assert.assertEquals(testString, tableProvider.serialize(reopened, reopened.get("abc")));
+        Assert.assertNull(reopened.get("abd"));
+        tableProvider.removeTable("testLegacyShardFileFormat");
+    }
+
+    @Test
+    public void testReshard() throws Exception {
+        TableImpl shardedTable = (TableImpl) tableProvider.createTable("testReshard", goodList);
+        for (int i = 0; i < 100; i++) {
+            shardedTable.put("key" + i, tableProvider.deserialize(shardedTable, testString));
+        }
+        shardedTable.commit();
+        shardedTable.put("uncommitted", tableProvider.deserialize(shardedTable, testString));
+
+        ShardLayout layout = new ShardLayout(ShardLayout.ShardFunction.HASH, 4, 8);
+        shardedTable.reshard(layout);
+        Assert.assertEquals(layout, shardedTable.getShardLayout());
+        Assert.assertEquals(101, shardedTable.size());
+        Assert.assertEquals(1, shardedTable.commit());
+        shardedTable.remove("key0");
+        shardedTable.commit();
+        shardedTable.close();
+
+        Table reopened = new TableProviderFactoryImpl().create("javatest").getTable("testReshard");
+        Assert.assertEquals(layout, ((TableImpl) reopened).getShardLayout());
+        Assert.assertEquals(100, reopened.size());
+        Assert.assertNull(reopened.get("key0"));
+        Assert.assertEquals(testString, tableProvider.serialize(reopened, reopened.get("key99")));
+        Assert.assertEquals(testString, tableProvider.serialize(reopened, reopened.get("uncommitted")));
+        Assert.assertFalse(new File(new File("javatest", "testReshard"), "0.dir").exists());
+        tableProvider.removeTable("testReshard");
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void testCreateTableNullTypeList() throws Exception {
         tableProvider.createTable("testCreateTableNullTypeList", null);
@@ -205,4 +614,161 @@ public class TableProviderImplTest {
         tableProvider.removeTable("testRemoveTableExisted");
         Assert.assertNull(tableProvider.getTable("testRemoveTableExisted"));
     }
+
+    @Test
+    public void testParallelLoading() throws Exception {
+        TableConfig config = new TableConfig();
+        config.setPreload(true);
+        config.setShardLayout(new ShardLayout(ShardLayout.ShardFunction.HASH, 4, 4));
+        Table loadedTable = ((TableProviderImpl) tableProvider).createTable("testParallelLoading",
+                goodList, config);
+        for (int i = 0; i < 200; i++) {
+            loadedTable.put("key" + i, tableProvider.createFor(loadedTable, Arrays.<Object>asList(i)));
+        }
+        loadedTable.commit();
+        ((TableImpl) loadedTable).close();
+
+        final AtomicInteger threadsCount = new AtomicInteger(0);
+        ExecutorService executor = Executors.newFixedThreadPool(4, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                threadsCount.incrementAndGet();
+                return new Thread(runnable);
+            }
+        });
+        try {
+            Table reopened = new TableProviderImpl(new File("javatest"), executor).getTable("testParallelLoading");
+            Assert.assertTrue(threadsCount.get() > 1);
+            Assert.assertEquals(200, reopened.size());
+            for (int i = 0; i < 200; i++) {
+                Assert.assertEquals(Integer.valueOf(i), reopened.get("key" + i).getIntAt(0));
+            }
+            ((TableImpl) reopened).close();
+        } finally {
+            executor.shutdown();
+            tableProvider.removeTable("testParallelLoading");
+        }
+    }
+
+    @Test
+    public void testStoredRowIsDecodedOnce() throws Exception {
+        final RowCodec binaryCodec = RowFormat.BINARY.getCodec();
+        final AtomicInteger decodesCount = new AtomicInteger(0);
+        RowCodec countingCodec = new RowCodec() {
+            @Override
+            public byte[] encode(TableRow row, List<Class<?>> columnTypes) {
+                return binaryCodec.encode(row, columnTypes);
+            }
+
+            @Override
+            public TableRow decode(byte[] data, Table table, TableProvider tableProvider) throws ParseException {
+                decodesCount.incrementAndGet();
+                return binaryCodec.decode(data, table, tableProvider);
+            }
+        };
+        byte[] data = binaryCodec.encode(tableProvider.deserialize(table, testString), goodList);
+        StoredRow storedRow = new StoredRow(data);
+        Assert.assertEquals(0, decodesCount.get());
+
+        TableRow row = storedRow.getRow(table, tableProvider, countingCodec);
+        Assert.assertEquals(testString, tableProvider.serialize(table, row));
+        Assert.assertSame(row, storedRow.getRow(table, tableProvider, countingCodec));
+        Assert.assertEquals(1, decodesCount.get());
+        Assert.assertSame(data, storedRow.getData());
+
+        TableRow written = tableProvider.deserialize(table, testString);
+        StoredRow committedRow = new StoredRow(data, written);
+        Assert.assertSame(written, committedRow.getRow(table, tableProvider, countingCodec));
+        Assert.assertEquals(1, decodesCount.get());
+    }
+
+    @Test
+    public void testEncodedRowsAreReadAfterReopen() throws Exception {
+        TableConfig config = new TableConfig();
+        config.setRowFormat(RowFormat.BINARY);
+        Table encodedTable = ((TableProviderImpl) tableProvider).createTable("testEncodedRows", goodList, config);
+        for (int i = 0; i < 50; i++) {
+            encodedTable.put("key" + i, tableProvider.deserialize(encodedTable, testString));
+        }
+        encodedTable.commit();
+        encodedTable.remove("key0");
+        encodedTable.commit();
+        ((TableImpl) encodedTable).close();
+
+        Table reopened = new TableProviderFactoryImpl().create("javatest").getTable("testEncodedRows");
+        Assert.assertEquals(49, reopened.size());
+        Assert.assertNull(reopened.get("key0"));
+        for (int i = 1; i < 50; i++) {
+            Assert.assertEquals(testString, tableProvider.serialize(reopened, reopened.get("key" + i)));
+        }
+        Assert.assertSame(reopened.get("key7"), reopened.get("key7"));
+        ((TableImpl) reopened).close();
+        tableProvider.removeTable("testEncodedRows");
+    }
+
+    @Test
+    public void testParallelShardWrites() throws Exception {
+        TableConfig config = new TableConfig();
+        config.setShardLayout(new ShardLayout(ShardLayout.ShardFunction.HASH, 4, 4));
+        Table writtenTable = ((TableProviderImpl) tableProvider).createTable("testParallelShardWrites",
+                goodList, config);
+        for (int i = 0; i < 300; i++) {
+            writtenTable.put("key" + i, tableProvider.createFor(writtenTable, Arrays.<Object>asList(i)));
+        }
+        writtenTable.commit();
+        ((TableImpl) writtenTable).close();
+
+        File tableDirectory = new File("javatest", "testParallelShardWrites");
+        int filesCount = 0;
+        for (int i = 0; i < 4; i++) {
+            for (int j = 0; j < 4; j++) {
+                if (new File(new File(tableDirectory, i + ".dir"), j + ".dat").exists()) {
+                    filesCount++;
+                }
+            }
+        }
+        Assert.assertEquals(16, filesCount);
+
+        Table reopened = new TableProviderFactoryImpl().create("javatest").getTable("testParallelShardWrites");
+        Assert.assertEquals(300, reopened.size());
+        for (int i = 0; i < 300; i++) {
+            Assert.assertEquals(Integer.valueOf(i), reopened.get("key" + i).getIntAt(0));
+        }
+        ((TableImpl) reopened).close();
+        tableProvider.removeTable("testParallelShardWrites");
+    }
+
+    @Test
+    public void testFailedShardWritesAreReportedOnce() throws Exception {
+        File directory = new File("javatest", "testFailedShardWrites");
+        Assert.assertTrue(directory.mkdir());
+        ShardLayout layout = new ShardLayout(ShardLayout.ShardFunction.HASH, 2, 2);
+        Map<String, StoredRow>[][] buckets = new Map[2][2];
+        boolean[][] dirtyBuckets = new boolean[2][2];
+        byte[] data = testString.getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < 2; i++) {
+            for (int j = 0; j < 2; j++) {
+                buckets[i][j] = new HashMap<>();
+                buckets[i][j].put("key" + i + j, new StoredRow(data));
+                dirtyBuckets[i][j] = true;
+            }
+        }
+        Assert.assertTrue(new File(directory, "0.dir").createNewFile());
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            try {
+                TableUtils.writeTable(directory, layout, buckets, dirtyBuckets, Compression.NONE, executor);
+                Assert.fail();
+            } catch (IOException e) {
+                //both files of 0.dir fail, the second failure is attached to the first
+                Assert.assertEquals(1, e.getSuppressed().length);
+            }
+            Assert.assertTrue(new File(new File(directory, "1.dir"), "0.dat").exists());
+            Assert.assertTrue(new File(new File(directory, "1.dir"), "1.dat").exists());
+        } finally {
+            executor.shutdown();
+            FileUtils.deleteDirectory(directory);
+        }
+    }
 }
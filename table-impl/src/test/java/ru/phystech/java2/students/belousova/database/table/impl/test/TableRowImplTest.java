@@ -4,6 +4,7 @@ import org.apache.commons.io.FileUtils;
 import org.junit.*;
 import ru.phystech.java2.students.belousova.database.table.api.*;
 import ru.phystech.java2.students.belousova.database.table.impl.TableProviderFactoryImpl;
+import ru.phystech.java2.students.belousova.database.table.impl.TableRowImpl;
 
 import java.io.File;
 import java.util.ArrayList;
@@ -55,6 +56,16 @@ public class TableRowImplTest {
         }
     }
 
+    @Test
+    public void testEqualStringsAreShared() throws Exception {
+        TableRow first = tableProvider.createFor(table);
+        first.setColumnAt(5, new String("repeated"));
+        TableRow second = tableProvider.createFor(table);
+        second.setColumnAt(5, new String("repeated"));
+        Assert.assertSame(first.getStringAt(5), second.getStringAt(5));
+        Assert.assertSame(testStorable.getStringAt(5), tableProvider.deserialize(table, testString).getStringAt(5));
+    }
+
     @Test(expected = ColumnFormatException.class)
     public void testSetColumnAtWrongColumnFormat() throws Exception {
         String str = "java";
@@ -194,4 +205,43 @@ public class TableRowImplTest {
     public void testEqualsTrue() throws Exception {
         Assert.assertTrue(testStorable.equals(testStorable));
     }
+
+    @Test
+    public void testEqualsCopy() throws Exception {
+        TableRow copy = tableProvider.deserialize(table, testString);
+        Assert.assertEquals(testStorable, copy);
+        Assert.assertEquals(testStorable.hashCode(), copy.hashCode());
+        copy.setColumnAt(0, 6);
+        Assert.assertFalse(testStorable.equals(copy));
+    }
+
+    @Test
+    public void testNullColumns() throws Exception {
+        TableRow row = tableProvider.createFor(table);
+        Assert.assertNull(row.getIntAt(0));
+        Assert.assertNull(row.getColumnAt(5));
+        row.setColumnAt(0, 0);
+        Assert.assertEquals(Integer.valueOf(0), row.getIntAt(0));
+        Assert.assertFalse(row.equals(tableProvider.createFor(table)));
+        row.setColumnAt(0, null);
+        Assert.assertNull(row.getIntAt(0));
+        Assert.assertEquals(tableProvider.createFor(table), row);
+    }
+
+    @Test
+    public void testPrimitiveGetters() throws Exception {
+        TableRowImpl row = (TableRowImpl) testStorable;
+        Assert.assertEquals(5, row.getInt(0));
+        Assert.assertEquals(0, row.getByte(1));
+        Assert.assertEquals(65777L, row.getLong(2));
+        Assert.assertEquals(5.5f, row.getFloat(3), 0);
+        Assert.assertEquals(767.576, row.getDouble(4), 0);
+        Assert.assertTrue(row.getBoolean(6));
+        Assert.assertFalse(row.isNullAt(0));
+    }
+
+    @Test(expected = ColumnFormatException.class)
+    public void testPrimitiveGetterWrongColumnFormat() throws Exception {
+        ((TableRowImpl) testStorable).getLong(0);
+    }
 }
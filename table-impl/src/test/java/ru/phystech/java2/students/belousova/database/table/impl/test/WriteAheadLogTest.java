@@ -0,0 +1,139 @@
+package ru.phystech.java2.students.belousova.database.table.impl.test;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import ru.phystech.java2.students.belousova.database.table.utils.WriteAheadLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+public class WriteAheadLogTest {
+    private static final File DIRECTORY = new File("javatest-wal");
+
+    /**
+     * Журнал, у которого следующие сегменты открываются уже закрытыми, поэтому запись в них не удаётся.
+     * Текущий сегмент можно сломать вызовом breakSegment.
+     */
+    private static class FailingLog extends WriteAheadLog {
+        private int failingSegments;
+        private FileChannel lastChannel;
+
+        FailingLog(File directory) throws IOException {
+            super(directory);
+        }
+
+        @Override
+        protected FileChannel openSegment(long segmentGeneration) throws IOException {
+            FileChannel channel = super.openSegment(segmentGeneration);
+            if (failingSegments > 0) {
+                failingSegments--;
+                channel.close();
+            }
+            lastChannel = channel;
+            return channel;
+        }
+
+        void breakSegment() throws IOException {
+            lastChannel.close();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Assert.assertTrue(DIRECTORY.mkdir());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(DIRECTORY);
+    }
+
+    @Test
+    public void testDropsFailedBatch() throws Exception {
+        FailingLog log = new FailingLog(DIRECTORY);
+        log.failingSegments = 1;
+        log.rotate();
+
+        long failed = log.append(put("first"), Collections.<String>emptySet());
+        try {
+            log.sync(failed);
+            Assert.fail();
+        } catch (IOException e) {
+            //the segment is broken
+        }
+        log.sync(log.append(put("second"), Collections.<String>emptySet()));
+        log.close();
+
+        Map<String, byte[]> puts = new HashMap<>();
+        Set<String> removes = new HashSet<>();
+        WriteAheadLog.replay(DIRECTORY, puts, removes);
+        Assert.assertEquals(Collections.singleton("second"), puts.keySet());
+    }
+
+    @Test
+    public void testKeepsSyncedRecordsAfterFailedSync() throws Exception {
+        FailingLog log = new FailingLog(DIRECTORY);
+        log.sync(log.append(put("first"), Collections.<String>emptySet()));
+        RandomAccessFile segment = new RandomAccessFile(new File(DIRECTORY, "wal.0.log"), "rw");
+        try {
+            //the unsynced tail of a broken segment
+            segment.seek(segment.length());
+            segment.write(new byte[]{1, 2, 3});
+        } finally {
+            segment.close();
+        }
+        log.breakSegment();
+
+        try {
+            log.sync(log.append(put("failed"), Collections.<String>emptySet()));
+            Assert.fail();
+        } catch (IOException e) {
+            //the segment is broken
+        }
+        log.sync(log.append(put("second"), Collections.<String>emptySet()));
+        log.close();
+
+        Assert.assertFalse(new File(DIRECTORY, "wal.0.log").exists());
+        Map<String, byte[]> puts = new HashMap<>();
+        WriteAheadLog.replay(DIRECTORY, puts, new HashSet<String>());
+        Assert.assertEquals(new HashSet<>(Arrays.asList("first", "second")), puts.keySet());
+    }
+
+    @Test
+    public void testRotatesAfterFailedSync() throws Exception {
+        FailingLog log = new FailingLog(DIRECTORY);
+        log.failingSegments = 1;
+        log.rotate();
+
+        try {
+            log.sync(log.append(put("first"), Collections.<String>emptySet()));
+            Assert.fail();
+        } catch (IOException e) {
+            //the segment is broken
+        }
+        long closedGeneration = log.rotate();
+        log.sync(log.append(put("second"), Collections.<String>emptySet()));
+        log.close();
+
+        Map<String, byte[]> puts = new HashMap<>();
+        WriteAheadLog.deleteSegments(DIRECTORY, closedGeneration);
+        WriteAheadLog.replay(DIRECTORY, puts, new HashSet<String>());
+        Assert.assertEquals(Collections.singleton("second"), puts.keySet());
+    }
+
+    private static Map<String, byte[]> put(String key) {
+        return Collections.singletonMap(key, key.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,150 @@
+package ru.phystech.java2.students.belousova.database.table.utils;
+
+import ru.phystech.java2.students.belousova.database.table.api.*;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.List;
+
+/**
+ * Двоичное представление строки таблицы: битовая маска null-колонок, затем значения непустых колонок
+ * в порядке signature.tsv. Числа и boolean имеют фиксированную длину, строки предваряются длиной в байтах.
+ */
+public class BinaryRowCodec implements RowCodec {
+    @Override
+    public byte[] encode(TableRow row, List<Class<?>> columnTypes) {
+        int columnsCount = columnTypes.size();
+        int bitmapLength = (columnsCount + 7) / 8;
+        int length = bitmapLength;
+        byte[][] strings = new byte[columnsCount][];
+        for (int i = 0; i < columnsCount; i++) {
+            if (row.getColumnAt(i) == null) {
+                continue;
+            }
+            TypesEnum type = getType(columnTypes.get(i));
+            if (type == TypesEnum.STRING) {
+                strings[i] = row.getStringAt(i).getBytes(StandardCharsets.UTF_8);
+                length += 4 + strings[i].length;
+            } else {
+                length += getFixedLength(type);
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        byte[] bitmap = new byte[bitmapLength];
+        for (int i = 0; i < columnsCount; i++) {
+            if (row.getColumnAt(i) == null) {
+                bitmap[i / 8] |= 1 << (i % 8);
+            }
+        }
+        buffer.put(bitmap);
+        for (int i = 0; i < columnsCount; i++) {
+            if (row.getColumnAt(i) == null) {
+                continue;
+            }
+            switch (getType(columnTypes.get(i))) {
+                case INTEGER:
+                    buffer.putInt(row.getIntAt(i));
+                    break;
+                case LONG:
+                    buffer.putLong(row.getLongAt(i));
+                    break;
+                case BYTE:
+                    buffer.put(row.getByteAt(i));
+                    break;
+                case FLOAT:
+                    buffer.putFloat(row.getFloatAt(i));
+                    break;
+                case DOUBLE:
+                    buffer.putDouble(row.getDoubleAt(i));
+                    break;
+                case BOOLEAN:
+                    buffer.put((byte) (row.getBooleanAt(i) ? 1 : 0));
+                    break;
+                case STRING:
+                    buffer.putInt(strings[i].length);
+                    buffer.put(strings[i]);
+                    break;
+                default:
+                    throw new ColumnFormatException("wrong column format");
+            }
+        }
+        return buffer.array();
+    }
+
+    @Override
+    public TableRow decode(byte[] data, Table table, TableProvider tableProvider) throws ParseException {
+        TableRow row = tableProvider.createFor(table);
+        decode(data, row, table.getColumnsCount());
+        return row;
+    }
+
+    /**
+     * Заполняет готовую строку, типы столбцов берутся из неё самой.
+     */
+    public void decode(byte[] data, TableRow row, int columnsCount) throws ParseException {
+        int bitmapLength = (columnsCount + 7) / 8;
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        try {
+            buffer.position(bitmapLength);
+            for (int i = 0; i < columnsCount; i++) {
+                if ((data[i / 8] & (1 << (i % 8))) != 0) {
+                    continue;
+                }
+                row.setColumnAt(i, readValue(buffer, getType(row.getColumnType(i))));
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new ParseException("wrong data format", buffer.position());
+        }
+        if (buffer.hasRemaining()) {
+            throw new ParseException("wrong data format", buffer.position());
+        }
+    }
+
+    private static Object readValue(ByteBuffer buffer, TypesEnum type) {
+        switch (type) {
+            case INTEGER:
+                return buffer.getInt();
+            case LONG:
+                return buffer.getLong();
+            case BYTE:
+                return buffer.get();
+            case FLOAT:
+                return buffer.getFloat();
+            case DOUBLE:
+                return buffer.getDouble();
+            case BOOLEAN:
+                return buffer.get() != 0;
+            case STRING:
+                int length = buffer.getInt();
+                String value = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+                buffer.position(buffer.position() + length);
+                return value;
+            default:
+                throw new ColumnFormatException("wrong column format");
+        }
+    }
+
+    private static TypesEnum getType(Class<?> columnType) {
+        TypesEnum type = TypesEnum.getByClass(columnType);
+        if (type == null) {
+            throw new ColumnFormatException("wrong column format");
+        }
+        return type;
+    }
+
+    private static int getFixedLength(TypesEnum type) {
+        switch (type) {
+            case INTEGER:
+            case FLOAT:
+                return 4;
+            case LONG:
+            case DOUBLE:
+                return 8;
+            default:
+                return 1;
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package ru.phystech.java2.students.belousova.database.table.utils;
+
+import java.io.IOException;
+
+public interface BlockCodec {
+    byte[] compress(byte[] data);
+
+    byte[] decompress(byte[] data, int rawLength) throws IOException;
+}
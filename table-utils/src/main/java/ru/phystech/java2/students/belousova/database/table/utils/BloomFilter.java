@@ -0,0 +1,144 @@
+package ru.phystech.java2.students.belousova.database.table.utils;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.zip.CRC32;
+
+/**
+ * Фильтр Блума для ключей одного файла M.dat. Лежит рядом с ним в файле M.bloom и помнит длину
+ * файла данных, для которого построен, поэтому фильтр от другой версии файла не используется.
+ */
+public class BloomFilter {
+    public static final BloomFilter EMPTY = new BloomFilter(new long[1], 1);
+    public static final BloomFilter FULL = new BloomFilter(new long[] {-1L}, 1);
+    private static final int MAGIC = 0x424c4d31;
+    private static final int BITS_PER_KEY = 10;
+    private static final int HASHES_COUNT = 7;
+
+    private final long[] bits;
+    private final int hashesCount;
+
+    private BloomFilter(long[] bits, int hashesCount) {
+        this.bits = bits;
+        this.hashesCount = hashesCount;
+    }
+
+    public static BloomFilter create(Collection<String> keys) {
+        long bitsCount = Math.max(64, (long) keys.size() * BITS_PER_KEY);
+        BloomFilter filter = new BloomFilter(new long[(int) ((bitsCount + 63) / 64)], HASHES_COUNT);
+        for (String key : keys) {
+            filter.add(key);
+        }
+        return filter;
+    }
+
+    private void add(String key) {
+        long hash = hash(key);
+        for (int i = 0; i < hashesCount; i++) {
+            long index = getBitIndex(hash, i);
+            bits[(int) (index >>> 6)] |= 1L << index;
+        }
+    }
+
+    /**
+     * @return false, если ключа точно нет в файле.
+     */
+    public boolean mightContain(String key) {
+        long hash = hash(key);
+        for (int i = 0; i < hashesCount; i++) {
+            long index = getBitIndex(hash, i);
+            if ((bits[(int) (index >>> 6)] & (1L << index)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long getBitIndex(long hash, int i) {
+        int combined = (int) hash + i * (int) (hash >>> 32);
+        return (combined & Integer.MAX_VALUE) % (bits.length * 64L);
+    }
+
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    public void write(File file, long dataLength) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(20 + bits.length * 8);
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeInt(MAGIC);
+        dos.writeLong(dataLength);
+        dos.writeInt(hashesCount);
+        dos.writeInt(bits.length);
+        for (long word : bits) {
+            dos.writeLong(word);
+        }
+        dos.flush();
+        byte[] content = bos.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(content);
+
+        File tmpFile = new File(file.getPath() + ".tmp");
+        DataOutputStream output = new DataOutputStream(new FileOutputStream(tmpFile));
+        try {
+            output.write(content);
+            output.writeLong(crc.getValue());
+        } finally {
+            FileMapUtils.closeStream(output);
+        }
+        Files.move(tmpFile.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return Фильтр или null, если файл повреждён или построен для файла данных другой длины.
+     */
+    public static BloomFilter read(File file, long dataLength) {
+        if (file.length() < 28) {
+            return null;
+        }
+        try {
+            DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                byte[] content = new byte[(int) file.length() - 8];
+                input.readFully(content);
+                long checksum = input.readLong();
+                CRC32 crc = new CRC32();
+                crc.update(content);
+                if (crc.getValue() != checksum) {
+                    return null;
+                }
+                DataInputStream dis = new DataInputStream(new ByteArrayInputStream(content));
+                if (dis.readInt() != MAGIC || dis.readLong() != dataLength) {
+                    return null;
+                }
+                int hashesCount = dis.readInt();
+                int wordsCount = dis.readInt();
+                if (hashesCount <= 0 || wordsCount <= 0 || wordsCount != (content.length - 20) / 8) {
+                    return null;
+                }
+                long[] bits = new long[wordsCount];
+                for (int i = 0; i < wordsCount; i++) {
+                    bits[i] = dis.readLong();
+                }
+                return new BloomFilter(bits, hashesCount);
+            } finally {
+                FileMapUtils.closeStream(input);
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package ru.phystech.java2.students.belousova.database.table.utils;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+/**
+ * Столбцовые копии файлов M.dat: по файлу M.K.col на каждый столбец K сигнатуры. Файл содержит число строк,
+ * длину M.dat, по которому он построен, битовую маску незаданных значений и значения столбца подряд
+ * (строки - длиной и байтами UTF-8). Запись M.dat удаляет его столбцовые копии, а файл, не совпавший
+ * по длине с M.dat, считается устаревшим.
+ */
+public class ColumnFileUtils {
+    private static final int MAGIC = 0x00434F4C;
+    private static final int HEADER_SIZE = 16;
+
+    private static File getFile(File directory, int ndirectory, int nfile, int columnIndex) {
+        return new File(new File(directory, ndirectory + ".dir"), nfile + "." + columnIndex + ".col");
+    }
+
+    public static void write(File directory, int ndirectory, int nfile, int columnIndex,
+                             ColumnVector column, long dataLength) throws IOException {
+        File file = getFile(directory, ndirectory, nfile, columnIndex);
+        File tmpFile = new File(file.getPath() + ".tmp");
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 65536));
+        try {
+            dos.writeInt(MAGIC);
+            dos.writeInt(column.size());
+            dos.writeLong(dataLength);
+            byte[] nulls = new byte[(column.size() + 7) / 8];
+            byte[] nullBits = column.getNulls().toByteArray();
+            System.arraycopy(nullBits, 0, nulls, 0, nullBits.length);
+            dos.write(nulls);
+            writeValues(dos, column);
+        } finally {
+            FileMapUtils.closeStream(dos);
+        }
+        Files.move(tmpFile.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeValues(DataOutputStream dos, ColumnVector column) throws IOException {
+        switch (column.getType().getName()) {
+            case "java.lang.Integer":
+                for (int value : column.getInts()) {
+                    dos.writeInt(value);
+                }
+                break;
+            case "java.lang.Long":
+                for (long value : column.getLongs()) {
+                    dos.writeLong(value);
+                }
+                break;
+            case "java.lang.Byte":
+                dos.write(column.getBytes());
+                break;
+            case "java.lang.Float":
+                for (float value : column.getFloats()) {
+                    dos.writeFloat(value);
+                }
+                break;
+            case "java.lang.Double":
+                for (double value : column.getDoubles()) {
+                    dos.writeDouble(value);
+                }
+                break;
+            case "java.lang.Boolean":
+                for (boolean value : column.getBooleans()) {
+                    dos.writeBoolean(value);
+                }
+                break;
+            default:
+                for (String value : column.getStrings()) {
+                    if (value == null) {
+                        dos.writeInt(-1);
+                    } else {
+                        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                        dos.writeInt(bytes.length);
+                        dos.write(bytes);
+                    }
+                }
+                break;
+        }
+    }
+
+    /**
+     * @return Столбец или null, если файла нет, он повреждён или построен не по текущему M.dat.
+     */
+    public static ColumnVector read(File directory, int ndirectory, int nfile, int columnIndex,
+                                    Class<?> type, long dataLength) {
+        File file = getFile(directory, ndirectory, nfile, columnIndex);
+        if (file.length() < HEADER_SIZE || file.length() > Integer.MAX_VALUE) {
+            return null;
+        }
+        try {
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                ByteBuffer buffer = FileMapUtils.readRange(channel, 0, (int) channel.size());
+                if (buffer.getInt() != MAGIC) {
+                    return null;
+                }
+                int size = buffer.getInt();
+                if (size < 0 || size > buffer.remaining() || buffer.getLong() != dataLength) {
+                    return null;
+                }
+                byte[] nulls = new byte[(size + 7) / 8];
+                buffer.get(nulls);
+                ColumnVector column = new ColumnVector(type, size, readValues(buffer, type, size), BitSet.valueOf(nulls));
+                return buffer.hasRemaining() ? null : column;
+            } finally {
+                FileMapUtils.closeStream(channel);
+            }
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static Object readValues(ByteBuffer buffer, Class<?> type, int size) throws IOException {
+        switch (type.getName()) {
+            case "java.lang.Integer": {
+                int[] values = new int[size];
+                buffer.asIntBuffer().get(values);
+                buffer.position(buffer.position() + size * 4);
+                return values;
+            }
+            case "java.lang.Long": {
+                long[] values = new long[size];
+                buffer.asLongBuffer().get(values);
+                buffer.position(buffer.position() + size * 8);
+                return values;
+            }
+            case "java.lang.Byte": {
+                byte[] values = new byte[size];
+                buffer.get(values);
+                return values;
+            }
+            case "java.lang.Float": {
+                float[] values = new float[size];
+                buffer.asFloatBuffer().get(values);
+                buffer.position(buffer.position() + size * 4);
+                return values;
+            }
+            case "java.lang.Double": {
+                double[] values = new double[size];
+                buffer.asDoubleBuffer().get(values);
+                buffer.position(buffer.position() + size * 8);
+                return values;
+            }
+            case "java.lang.Boolean": {
+                boolean[] values = new boolean[size];
+                for (int i = 0; i < size; i++) {
+                    values[i] = buffer.get() != 0;
+                }
+                return values;
+            }
+            case "java.lang.String": {
+                String[] values = new String[size];
+                for (int i = 0; i < size; i++) {
+                    int length = buffer.getInt();
+                    if (length >= 0) {
+                        byte[] bytes = new byte[length];
+                        buffer.get(bytes);
+                        values[i] = new String(bytes, StandardCharsets.UTF_8);
+                    }
+                }
+                return values;
+            }
+            default:
+                throw new IOException("wrong column type");
+        }
+    }
+
+    /**
+     * Удаляет столбцовые копии файла nfile.dat.
+     */
+    public static void delete(File directory, int ndirectory, int nfile) {
+        File dataDirectory = new File(directory, ndirectory + ".dir");
+        final String prefix = nfile + ".";
+        File[] files = dataDirectory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(prefix) && name.endsWith(".col");
+            }
+        });
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package ru.phystech.java2.students.belousova.database.table.utils;
+
+public interface ColumnScanner {
+    /**
+     * Вызывается для каждого непустого файла таблицы, а у LSM-таблицы - для каждой порции строк.
+     *
+     * @param columns Запрошенные столбцы в порядке запроса. Строки всех столбцов идут в одном порядке.
+     */
+    void scan(ColumnVector[] columns);
+}
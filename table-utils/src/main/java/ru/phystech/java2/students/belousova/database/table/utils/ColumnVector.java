@@ -0,0 +1,186 @@
+package ru.phystech.java2.students.belousova.database.table.utils;
+
+import ru.phystech.java2.students.belousova.database.table.api.ColumnFormatException;
+import ru.phystech.java2.students.belousova.database.table.api.TableRow;
+
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Значения одного столбца для строк одного файла таблицы в массиве примитивного типа столбца.
+ * Для незаданных значений в массиве лежит 0 (null для строк), а {@link #isNull(int)} возвращает true.
+ */
+public class ColumnVector {
+    private final Class<?> type;
+    private final int size;
+    private final Object values;
+    private final BitSet nulls;
+
+    ColumnVector(Class<?> type, int size, Object values, BitSet nulls) {
+        this.type = type;
+        this.size = size;
+        this.values = values;
+        this.nulls = nulls;
+    }
+
+    public static ColumnVector fromRows(Class<?> type, int columnIndex, List<TableRow> rows) {
+        int size = rows.size();
+        BitSet nulls = new BitSet(size);
+        Object values;
+        switch (type.getName()) {
+            case "java.lang.Integer": {
+                int[] array = new int[size];
+                for (int i = 0; i < size; i++) {
+                    Integer value = rows.get(i).getIntAt(columnIndex);
+                    if (value == null) {
+                        nulls.set(i);
+                    } else {
+                        array[i] = value;
+                    }
+                }
+                values = array;
+                break;
+            }
+            case "java.lang.Long": {
+                long[] array = new long[size];
+                for (int i = 0; i < size; i++) {
+                    Long value = rows.get(i).getLongAt(columnIndex);
+                    if (value == null) {
+                        nulls.set(i);
+                    } else {
+                        array[i] = value;
+                    }
+                }
+                values = array;
+                break;
+            }
+            case "java.lang.Byte": {
+                byte[] array = new byte[size];
+                for (int i = 0; i < size; i++) {
+                    Byte value = rows.get(i).getByteAt(columnIndex);
+                    if (value == null) {
+                        nulls.set(i);
+                    } else {
+                        array[i] = value;
+                    }
+                }
+                values = array;
+                break;
+            }
+            case "java.lang.Float": {
+                float[] array = new float[size];
+                for (int i = 0; i < size; i++) {
+                    Float value = rows.get(i).getFloatAt(columnIndex);
+                    if (value == null) {
+                        nulls.set(i);
+                    } else {
+                        array[i] = value;
+                    }
+                }
+                values = array;
+                break;
+            }
+            case "java.lang.Double": {
+                double[] array = new double[size];
+                for (int i = 0; i < size; i++) {
+                    Double value = rows.get(i).getDoubleAt(columnIndex);
+                    if (value == null) {
+                        nulls.set(i);
+                    } else {
+                        array[i] = value;
+                    }
+                }
+                values = array;
+                break;
+            }
+            case "java.lang.Boolean": {
+                boolean[] array = new boolean[size];
+                for (int i = 0; i < size; i++) {
+                    Boolean value = rows.get(i).getBooleanAt(columnIndex);
+                    if (value == null) {
+                        nulls.set(i);
+                    } else {
+                        array[i] = value;
+                    }
+                }
+                values = array;
+                break;
+            }
+            case "java.lang.String": {
+                String[] array = new String[size];
+                for (int i = 0; i < size; i++) {
+                    array[i] = rows.get(i).getStringAt(columnIndex);
+                    if (array[i] == null) {
+                        nulls.set(i);
+                    }
+                }
+                values = array;
+                break;
+            }
+            default:
+                throw new ColumnFormatException("wrong column format");
+        }
+        return new ColumnVector(type, size, values, nulls);
+    }
+
+    public Class<?> getType() {
+        return type;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isNull(int row) {
+        return nulls.get(row);
+    }
+
+    BitSet getNulls() {
+        return nulls;
+    }
+
+    Object getValues() {
+        return values;
+    }
+
+    private void checkType(Class<?> expectedType) {
+        if (type != expectedType) {
+            throw new ColumnFormatException("wrong column format");
+        }
+    }
+
+    public int[] getInts() {
+        checkType(Integer.class);
+        return (int[]) values;
+    }
+
+    public long[] getLongs() {
+        checkType(Long.class);
+        return (long[]) values;
+    }
+
+    public byte[] getBytes() {
+        checkType(Byte.class);
+        return (byte[]) values;
+    }
+
+    public float[] getFloats() {
+        checkType(Float.class);
+        return (float[]) values;
+    }
+
+    public double[] getDoubles() {
+        checkType(Double.class);
+        return (double[]) values;
+    }
+
+    public boolean[] getBooleans() {
+        checkType(Boolean.class);
+        return (boolean[]) values;
+    }
+
+    public String[] getStrings() {
+        checkType(String.class);
+        return (String[]) values;
+    }
+}
@@ -0,0 +1,58 @@
+package ru.phystech.java2.students.belousova.database.table.utils;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+public enum Compression {
+    NONE("none", 0, new PlainBlockCodec()),
+    DEFLATE("deflate", 1, new DeflateBlockCodec()),
+    LZ("lz", 2, new LzBlockCodec());
+
+    private final String name;
+    private final int id;
+    private final BlockCodec codec;
+
+    private Compression(String name, int id, BlockCodec codec) {
+        this.name = name;
+        this.id = id;
+        this.codec = codec;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Номер кодека в заголовке файла M.dat.
+     */
+    public int getId() {
+        return id;
+    }
+
+    public BlockCodec getCodec() {
+        return codec;
+    }
+
+    private static final Map<String, Compression> BY_NAME;
+    private static final Map<Integer, Compression> BY_ID;
+
+    static {
+        Map<String, Compression> byName = new HashMap<>();
+        Map<Integer, Compression> byId = new HashMap<>();
+        for (Compression compression : values()) {
+            byName.put(compression.getName(), compression);
+            byId.put(compression.getId(), compression);
+        }
+        BY_NAME = Collections.unmodifiableMap(byName);
+        BY_ID = Collections.unmodifiableMap(byId);
+    }
+
+    public static Compression getByName(String name) {
+        return BY_NAME.get(name);
+    }
+
+    public static Compression getById(int id) {
+        return BY_ID.get(id);
+    }
+}
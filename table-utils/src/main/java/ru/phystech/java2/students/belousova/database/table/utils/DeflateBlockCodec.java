@@ -0,0 +1,52 @@
+package ru.phystech.java2.students.belousova.database.table.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public class DeflateBlockCodec implements BlockCodec {
+    @Override
+    public byte[] compress(byte[] data) {
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream output = new ByteArrayOutputStream(data.length / 2 + 64);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                int length = deflater.deflate(buffer);
+                output.write(buffer, 0, length);
+            }
+            return output.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public byte[] decompress(byte[] data, int rawLength) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            byte[] result = new byte[rawLength];
+            int length = 0;
+            while (length < rawLength) {
+                int inflated = inflater.inflate(result, length, rawLength - length);
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                length += inflated;
+            }
+            if (length != rawLength || !inflater.finished()) {
+                throw new IOException("wrong data format");
+            }
+            return result;
+        } catch (DataFormatException e) {
+            throw new IOException("wrong data format", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
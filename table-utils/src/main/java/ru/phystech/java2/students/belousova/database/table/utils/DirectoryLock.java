@@ -0,0 +1,59 @@
+package ru.phystech.java2.students.belousova.database.table.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+
+/**
+ * Блокировка директории таблицы. Журнал и файлы таблицы меняет только открывший её провайдер:
+ * второй провайдер восстановил бы чужой журнал и удалил бы его сегменты. Блокировка берётся
+ * на файл table.lock и снимается при закрытии таблицы или завершении процесса.
+ */
+public class DirectoryLock implements Closeable {
+    public static final String FILE_NAME = "table.lock";
+
+    private final RandomAccessFile file;
+    private final FileLock lock;
+
+    private DirectoryLock(RandomAccessFile file, FileLock lock) {
+        this.file = file;
+        this.lock = lock;
+    }
+
+    /**
+     * @throws IllegalStateException Если директорию уже заблокировал другой провайдер, в том числе в этом
+     *                               процессе. В сообщении указан путь к файлу блокировки.
+     * @throws IOException Если файл блокировки не удалось открыть.
+     */
+    public static DirectoryLock acquire(File directory) throws IOException {
+        File lockFile = new File(directory, FILE_NAME);
+        RandomAccessFile file = new RandomAccessFile(lockFile, "rw");
+        FileLock lock = null;
+        try {
+            lock = file.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+            //the table is opened by another provider of this process
+        } finally {
+            if (lock == null) {
+                FileMapUtils.closeStream(file);
+            }
+        }
+        if (lock == null) {
+            throw new IllegalStateException("table '" + directory.getName() + "' is used by another provider: '"
+                    + lockFile.getAbsolutePath() + "' is locked");
+        }
+        return new DirectoryLock(file, lock);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            lock.release();
+        } finally {
+            file.close();
+        }
+    }
+}
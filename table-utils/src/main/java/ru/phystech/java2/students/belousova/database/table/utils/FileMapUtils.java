@@ -1,113 +1,385 @@
 package ru.phystech.java2.students.belousova.database.table.utils;
 
 import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
+/**
+ * Файлы M.dat. Старый формат - заголовок из ключей, оканчивающихся нулевым байтом, со смещениями значений,
+ * и затем значения в порядке обхода HashMap. Новые форматы начинаются с {@link #FORMAT_MAGIC} и номера версии
+ * и хранят ключи по возрастанию с разреженным индексом, по которому {@link ShardFileIndex} читает одно
+ * значение, не загружая файл целиком. В версии 2 значения лежат подряд, в версии 3 значения каждого блока
+ * из {@link #BLOCK_SIZE} ключей сжаты вместе кодеком, номер которого записан в заголовке.
+ * Читаются все форматы, пишется только версия 3.
+ */
 public class FileMapUtils {
-    public static void read(File file, Map<String, String> map, Predicate<String> validator) throws IOException {
+    static final int FORMAT_MAGIC = 0x00534844;
+    static final int SORTED_VERSION = 2;
+    static final int COMPRESSED_VERSION = 3;
+    static final int SORTED_HEADER_SIZE = 32;
+    static final int COMPRESSED_HEADER_SIZE = 40;
+    private static final int BLOCK_SIZE = 32;
+    private static final int MAX_KEY_LENGTH = 1024 * 1024;
+    private static final int MAP_THRESHOLD = 64 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 256 * 1024;
+
+    public static void read(File file, Map<String, byte[]> map, Predicate<String> validator) throws IOException {
         if (file.length() == 0) {
             return;
         }
         try {
-            InputStream is = new FileInputStream(file);
-            BufferedInputStream bis = new BufferedInputStream(is, 4096);
-            DataInputStream dis = new DataInputStream(bis);
-
-            int fileLength = (int) file.length();
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                long fileLength = channel.size();
+                if (fileLength > Integer.MAX_VALUE) {
+                    throw new IOException("file is too big");
+                }
+                read(mapFile(channel, (int) fileLength), map, validator);
+            } finally {
+                closeStream(channel);
+            }
+        } catch (IOException e) {
+            throw new IOException("cannot read '" + file.getName() + "'", e);
+        }
+    }
 
+    public static int countKeys(File file) throws IOException {
+        if (file.length() == 0) {
+            return 0;
+        }
+        try {
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
             try {
+                long fileLength = channel.size();
+                if (fileLength > Integer.MAX_VALUE) {
+                    throw new IOException("file is too big");
+                }
+                if (fileLength >= 16) {
+                    ByteBuffer header = readRange(channel, 0, 16);
+                    if (header.getInt(0) == FORMAT_MAGIC) {
+                        getHeaderSize(header.getInt(4));
+                        return header.getInt(8);
+                    }
+                }
+                ByteBuffer buffer = mapFile(channel, (int) fileLength);
                 int position = 0;
-                String key1 = readKey(dis, validator);
-                position += key1.getBytes(StandardCharsets.UTF_8).length;
-                int offset1 = dis.readInt();
-                int firstOffset = offset1;
-                position += 5;
-
-                while (position != firstOffset) {
-                    String key2 = readKey(dis, validator);
-                    position += key2.getBytes(StandardCharsets.UTF_8).length;
-                    int offset2 = dis.readInt();
+                int firstOffset = -1;
+                int count = 0;
+                while (firstOffset < 0 || position < firstOffset) {
+                    while (buffer.get(position) != 0) {
+                        position++;
+                    }
+                    int offset = buffer.getInt(position + 1);
                     position += 5;
-                    String value = readValue(dis, offset1, offset2, position, fileLength);
-                    map.put(key1, value);
-                    offset1 = offset2;
-                    key1 = key2;
+                    if (firstOffset < 0) {
+                        firstOffset = offset;
+                    }
+                    count++;
                 }
-                String value = readValue(dis, offset1, fileLength, position, fileLength);
-                map.put(key1, value);
+                return count;
+            } catch (IndexOutOfBoundsException e) {
+                throw new IOException("wrong data format", e);
             } finally {
-                closeStream(dis);
+                closeStream(channel);
             }
-
         } catch (IOException e) {
             throw new IOException("cannot read '" + file.getName() + "'", e);
         }
     }
 
-    private static String readKey(DataInputStream dis, Predicate<String> predicate) throws IOException {
+    private static ByteBuffer mapFile(FileChannel channel, int fileLength) throws IOException {
+        if (fileLength >= MAP_THRESHOLD) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, fileLength);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(fileLength);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("unexpected end of file");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    public static ByteBuffer readRange(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("unexpected end of file");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
 
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        byte b = dis.readByte();
-        int length = 0;
-        while (b != 0) {
-            bos.write(b);
-            b = dis.readByte();
-            length++;
-            if (length > 1024 * 1024) {
+    static int getHeaderSize(int version) throws IOException {
+        switch (version) {
+            case SORTED_VERSION:
+                return SORTED_HEADER_SIZE;
+            case COMPRESSED_VERSION:
+                return COMPRESSED_HEADER_SIZE;
+            default:
+                throw new IOException("unsupported format version " + version);
+        }
+    }
+
+    private static void read(ByteBuffer buffer, Map<String, byte[]> map,
+                             Predicate<String> validator) throws IOException {
+        if (buffer.limit() >= 8 && buffer.getInt(0) == FORMAT_MAGIC) {
+            int headerSize = getHeaderSize(buffer.getInt(4));
+            if (buffer.limit() < headerSize) {
                 throw new IOException("wrong data format");
             }
+            if (headerSize == SORTED_HEADER_SIZE) {
+                readSorted(buffer, map, validator);
+            } else {
+                readCompressed(buffer, map, validator);
+            }
+        } else {
+            readLegacy(buffer, map, validator);
         }
-        if (length == 0) {
-            throw new IOException("wrong data format");
+    }
+
+    private static void readCompressed(ByteBuffer buffer, Map<String, byte[]> map,
+                                       Predicate<String> validator) throws IOException {
+        int fileLength = buffer.limit();
+        try {
+            int count = buffer.getInt(8);
+            int blocksCount = buffer.getInt(12);
+            long keysOffset = buffer.getLong(16);
+            long valuesOffset = buffer.getLong(24);
+            Compression compression = Compression.getById(buffer.getInt(32));
+            int blockSize = buffer.getInt(36);
+            if (count < 0 || blocksCount < 0 || compression == null || blockSize <= 0
+                    || (long) blocksCount * blockSize < count || keysOffset < COMPRESSED_HEADER_SIZE
+                    || keysOffset > valuesOffset || valuesOffset > fileLength) {
+                throw new IOException("wrong data format");
+            }
+            ByteBuffer index = buffer.duplicate();
+            index.position(COMPRESSED_HEADER_SIZE);
+            index.limit((int) keysOffset);
+            ByteBuffer keys = buffer.duplicate();
+            keys.position((int) keysOffset);
+            keys.limit((int) valuesOffset);
+            String previousKey = null;
+            for (int block = 0; block < blocksCount; block++) {
+                readKey(index);
+                index.getLong();
+                long blockOffset = index.getLong();
+                int storedLength = index.getInt();
+                int rawLength = index.getInt();
+                if (blockOffset < valuesOffset || storedLength < 0 || rawLength < 0
+                        || blockOffset + storedLength > fileLength) {
+                    throw new IOException("wrong data format");
+                }
+                byte[] raw = compression.getCodec().decompress(
+                        readValue(buffer, (int) blockOffset, (int) blockOffset + storedLength), rawLength);
+                int keysInBlock = Math.min(blockSize, count - block * blockSize);
+                for (int i = 0; i < keysInBlock; i++) {
+                    String key = readKey(keys);
+                    int valueOffset = keys.getInt();
+                    int valueLength = keys.getInt();
+                    if (!validator.apply(key) || (previousKey != null && previousKey.compareTo(key) >= 0)) {
+                        throw new IOException("wrong data format");
+                    }
+                    if (valueOffset < 0 || valueLength < 0 || valueOffset + valueLength > raw.length) {
+                        throw new IOException("wrong data format");
+                    }
+                    map.put(key, Arrays.copyOfRange(raw, valueOffset, valueOffset + valueLength));
+                    previousKey = key;
+                }
+            }
+        } catch (IndexOutOfBoundsException | BufferUnderflowException e) {
+            throw new IOException("wrong data format", e);
         }
+    }
 
-        String key = bos.toString(StandardCharsets.UTF_8.toString());
-        if (!predicate.apply(key)) {
+    private static void readSorted(ByteBuffer buffer, Map<String, byte[]> map,
+                                   Predicate<String> validator) throws IOException {
+        int fileLength = buffer.limit();
+        try {
+            int count = buffer.getInt(8);
+            long keysOffset = buffer.getLong(16);
+            long valuesOffset = buffer.getLong(24);
+            if (count < 0 || keysOffset < SORTED_HEADER_SIZE || keysOffset > valuesOffset || valuesOffset > fileLength) {
+                throw new IOException("wrong data format");
+            }
+            ByteBuffer keys = buffer.duplicate();
+            keys.position((int) keysOffset);
+            keys.limit((int) valuesOffset);
+            String previousKey = null;
+            for (int i = 0; i < count; i++) {
+                String key = readKey(keys);
+                long valueOffset = keys.getLong();
+                int valueLength = keys.getInt();
+                if (!validator.apply(key) || (previousKey != null && previousKey.compareTo(key) >= 0)) {
+                    throw new IOException("wrong data format");
+                }
+                if (valueOffset < valuesOffset || valueLength < 0 || valueOffset + valueLength > fileLength) {
+                    throw new IOException("wrong data format");
+                }
+                map.put(key, readValue(buffer, (int) valueOffset, (int) valueOffset + valueLength));
+                previousKey = key;
+            }
+        } catch (IndexOutOfBoundsException | BufferUnderflowException e) {
+            throw new IOException("wrong data format", e);
+        }
+    }
+
+    static String readKey(ByteBuffer buffer) throws IOException {
+        int keyLength = buffer.getInt();
+        if (keyLength <= 0 || keyLength > MAX_KEY_LENGTH) {
             throw new IOException("wrong data format");
         }
+        byte[] keyBytes = new byte[keyLength];
+        buffer.get(keyBytes);
+        return new String(keyBytes, StandardCharsets.UTF_8);
+    }
 
-        return key;
+    private static void readLegacy(ByteBuffer buffer, Map<String, byte[]> map,
+                                   Predicate<String> validator) throws IOException {
+        int fileLength = buffer.limit();
+        byte[] keyBuffer = new byte[64];
+        try {
+            int position = 0;
+            int firstOffset = -1;
+            String previousKey = null;
+            int previousOffset = 0;
+            while (firstOffset < 0 || position < firstOffset) {
+                int keyStart = position;
+                while (buffer.get(position) != 0) {
+                    position++;
+                    if (position - keyStart > MAX_KEY_LENGTH) {
+                        throw new IOException("wrong data format");
+                    }
+                }
+                int keyLength = position - keyStart;
+                if (keyLength == 0) {
+                    throw new IOException("wrong data format");
+                }
+                if (keyBuffer.length < keyLength) {
+                    keyBuffer = new byte[Math.max(keyLength, keyBuffer.length * 2)];
+                }
+                ByteBuffer keySlice = buffer.duplicate();
+                keySlice.position(keyStart);
+                keySlice.get(keyBuffer, 0, keyLength);
+                String key = new String(keyBuffer, 0, keyLength, StandardCharsets.UTF_8);
+                if (!validator.apply(key)) {
+                    throw new IOException("wrong data format");
+                }
+
+                int offset = buffer.getInt(position + 1);
+                position += 5;
+                if (firstOffset < 0) {
+                    firstOffset = offset;
+                }
+                if (offset < previousOffset || offset > fileLength || offset < position) {
+                    throw new IOException("wrong data format");
+                }
+                if (previousKey != null) {
+                    map.put(previousKey, readValue(buffer, previousOffset, offset));
+                }
+                previousKey = key;
+                previousOffset = offset;
+            }
+            map.put(previousKey, readValue(buffer, previousOffset, fileLength));
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("wrong data format", e);
+        }
     }
 
-    private static String readValue(DataInputStream dis, int offset1,
-                                    int offset2, int position, int length) throws IOException {
-        dis.mark(length);
-        dis.skip(offset1 - position);
-        byte[] buffer = new byte[offset2 - offset1];
-        dis.read(buffer);
-        String value = new String(buffer, StandardCharsets.UTF_8);
-        dis.reset();
+    private static byte[] readValue(ByteBuffer buffer, int offset1, int offset2) {
+        byte[] value = new byte[offset2 - offset1];
+        ByteBuffer valueSlice = buffer.duplicate();
+        valueSlice.position(offset1);
+        valueSlice.get(value);
         return value;
     }
 
-    public static void write(File file, Map<String, String> map) throws IOException {
+    public static void write(File file, Map<String, byte[]> map, Compression compression) throws IOException {
         try {
+            List<String> keys = new ArrayList<>(map.keySet());
+            Collections.sort(keys);
+            int blocksCount = (keys.size() + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            byte[][] keyBytes = new byte[keys.size()][];
+            byte[][] storedBlocks = new byte[blocksCount][];
+            int[] rawLengths = new int[blocksCount];
+            long indexSize = 0;
+            long keysSize = 0;
+            ByteArrayOutputStream rawBlock = new ByteArrayOutputStream();
+            for (int i = 0; i < keys.size(); i++) {
+                keyBytes[i] = keys.get(i).getBytes(StandardCharsets.UTF_8);
+                if (i % BLOCK_SIZE == 0) {
+                    indexSize += 4 + keyBytes[i].length + 24;
+                }
+                keysSize += 4 + keyBytes[i].length + 8;
+                rawBlock.write(map.get(keys.get(i)));
+                if (i % BLOCK_SIZE == BLOCK_SIZE - 1 || i == keys.size() - 1) {
+                    int block = i / BLOCK_SIZE;
+                    rawLengths[block] = rawBlock.size();
+                    storedBlocks[block] = compression.getCodec().compress(rawBlock.toByteArray());
+                    rawBlock.reset();
+                }
+            }
+            long keysOffset = COMPRESSED_HEADER_SIZE + indexSize;
+            long valuesOffset = keysOffset + keysSize;
+
             OutputStream os = new FileOutputStream(file);
-            BufferedOutputStream bos = new BufferedOutputStream(os, 4096);
+            BufferedOutputStream bos = new BufferedOutputStream(os, WRITE_BUFFER_SIZE);
             DataOutputStream dos = new DataOutputStream(bos);
 
             try {
-                long offset = 0;
-                for (String key : map.keySet()) {
-                    offset += key.getBytes(StandardCharsets.UTF_8).length + 5;
+                dos.writeInt(FORMAT_MAGIC);
+                dos.writeInt(COMPRESSED_VERSION);
+                dos.writeInt(keys.size());
+                dos.writeInt(blocksCount);
+                dos.writeLong(keysOffset);
+                dos.writeLong(valuesOffset);
+                dos.writeInt(compression.getId());
+                dos.writeInt(BLOCK_SIZE);
+
+                long entryOffset = keysOffset;
+                long blockOffset = valuesOffset;
+                for (int i = 0; i < keys.size(); i++) {
+                    if (i % BLOCK_SIZE == 0) {
+                        int block = i / BLOCK_SIZE;
+                        dos.writeInt(keyBytes[i].length);
+                        dos.write(keyBytes[i]);
+                        dos.writeLong(entryOffset);
+                        dos.writeLong(blockOffset);
+                        dos.writeInt(storedBlocks[block].length);
+                        dos.writeInt(rawLengths[block]);
+                        blockOffset += storedBlocks[block].length;
+                    }
+                    entryOffset += 4 + keyBytes[i].length + 8;
                 }
 
-                List<String> values = new ArrayList<String>(map.keySet().size());
-                for (String key : map.keySet()) {
-                    String value = map.get(key);
-                    values.add(value);
-                    dos.write(key.getBytes(StandardCharsets.UTF_8));
-                    dos.write('\0');
-                    dos.writeInt((int) offset);
-                    offset += value.getBytes(StandardCharsets.UTF_8).length;
+                int valueOffset = 0;
+                for (int i = 0; i < keys.size(); i++) {
+                    if (i % BLOCK_SIZE == 0) {
+                        valueOffset = 0;
+                    }
+                    int valueLength = map.get(keys.get(i)).length;
+                    dos.writeInt(keyBytes[i].length);
+                    dos.write(keyBytes[i]);
+                    dos.writeInt(valueOffset);
+                    dos.writeInt(valueLength);
+                    valueOffset += valueLength;
                 }
 
-                for (String value : values) {
-                    dos.write(value.getBytes());
+                for (byte[] storedBlock : storedBlocks) {
+                    dos.write(storedBlock);
                 }
+                dos.flush();
+                ((FileOutputStream) os).getFD().sync();
             } finally {
                 closeStream(dos);
             }
@@ -1,21 +1,18 @@
 package ru.phystech.java2.students.belousova.database.table.utils;
 
-import java.nio.charset.StandardCharsets;
-
 public class IsKeyValid implements Predicate<String> {
+    private ShardLayout layout;
     private int nfile;
     private int ndirectory;
 
-    public IsKeyValid(int nf, int nd) {
+    public IsKeyValid(ShardLayout layout, int nf, int nd) {
+        this.layout = layout;
         nfile = nf;
         ndirectory = nd;
     }
 
     @Override
     public boolean apply(String input) {
-        int keyByte = Math.abs(input.getBytes(StandardCharsets.UTF_8)[0]);
-        int nd = keyByte % 16;
-        int nf = keyByte / 16 % 16;
-        return (nd == ndirectory) && (nf == nfile);
+        return layout.getBucketNumber(input) == ndirectory * layout.getFilesCount() + nfile;
     }
 }
@@ -0,0 +1,129 @@
+package ru.phystech.java2.students.belousova.database.table.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Быстрый словарный кодек в духе LZ4. Блок - последовательность команд: байт-маркер с длиной литералов
+ * в старших четырёх битах и длиной совпадения минус 4 в младших, продолжение длин байтами по 255,
+ * литералы и двухбайтовое смещение совпадения. Последняя команда содержит только литералы.
+ * Совпадения ищутся по хеш-таблице четырёхбайтовых последовательностей без перебора цепочек.
+ */
+public class LzBlockCodec implements BlockCodec {
+    private static final int MIN_MATCH = 4;
+    private static final int HASH_LOG = 14;
+    private static final int MAX_OFFSET = 65535;
+
+    @Override
+    public byte[] compress(byte[] data) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(data.length / 2 + 16);
+        int[] table = new int[1 << HASH_LOG];
+        Arrays.fill(table, -1);
+        int anchor = 0;
+        int position = 0;
+        int limit = data.length - MIN_MATCH;
+        while (position <= limit) {
+            int sequence = readInt(data, position);
+            int hash = (sequence * -1640531535) >>> (32 - HASH_LOG);
+            int candidate = table[hash];
+            table[hash] = position;
+            if (candidate >= 0 && position - candidate <= MAX_OFFSET && readInt(data, candidate) == sequence) {
+                int matchLength = MIN_MATCH;
+                while (position + matchLength < data.length
+                        && data[candidate + matchLength] == data[position + matchLength]) {
+                    matchLength++;
+                }
+                writeSequence(output, data, anchor, position - anchor, position - candidate, matchLength);
+                position += matchLength;
+                anchor = position;
+            } else {
+                position++;
+            }
+        }
+        writeSequence(output, data, anchor, data.length - anchor, 0, 0);
+        return output.toByteArray();
+    }
+
+    private static void writeSequence(ByteArrayOutputStream output, byte[] data, int literalsStart,
+                                      int literalsLength, int offset, int matchLength) {
+        int matchCode = matchLength > 0 ? matchLength - MIN_MATCH : 0;
+        output.write((Math.min(literalsLength, 15) << 4) | Math.min(matchCode, 15));
+        if (literalsLength >= 15) {
+            writeLength(output, literalsLength - 15);
+        }
+        output.write(data, literalsStart, literalsLength);
+        if (matchLength == 0) {
+            return;
+        }
+        output.write(offset & 0xff);
+        output.write(offset >>> 8);
+        if (matchCode >= 15) {
+            writeLength(output, matchCode - 15);
+        }
+    }
+
+    private static void writeLength(ByteArrayOutputStream output, int length) {
+        while (length >= 255) {
+            output.write(255);
+            length -= 255;
+        }
+        output.write(length);
+    }
+
+    private static int readInt(byte[] data, int position) {
+        return (data[position] & 0xff) | (data[position + 1] & 0xff) << 8
+                | (data[position + 2] & 0xff) << 16 | (data[position + 3] & 0xff) << 24;
+    }
+
+    @Override
+    public byte[] decompress(byte[] data, int rawLength) throws IOException {
+        byte[] result = new byte[rawLength];
+        int input = 0;
+        int output = 0;
+        try {
+            while (input < data.length) {
+                int token = data[input++] & 0xff;
+                int literalsLength = token >>> 4;
+                if (literalsLength == 15) {
+                    int b;
+                    do {
+                        b = data[input++] & 0xff;
+                        literalsLength += b;
+                    } while (b == 255);
+                }
+                System.arraycopy(data, input, result, output, literalsLength);
+                input += literalsLength;
+                output += literalsLength;
+                if (input >= data.length) {
+                    break;
+                }
+
+                int offset = (data[input] & 0xff) | (data[input + 1] & 0xff) << 8;
+                input += 2;
+                int matchLength = token & 15;
+                if (matchLength == 15) {
+                    int b;
+                    do {
+                        b = data[input++] & 0xff;
+                        matchLength += b;
+                    } while (b == 255);
+                }
+                matchLength += MIN_MATCH;
+                int from = output - offset;
+                if (offset == 0 || from < 0 || output + matchLength > rawLength) {
+                    throw new IOException("wrong data format");
+                }
+                for (int i = 0; i < matchLength; i++) {
+                    result[output++] = result[from++];
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("wrong data format", e);
+        }
+        if (output != rawLength) {
+            throw new IOException("wrong data format");
+        }
+        return result;
+    }
+}
@@ -4,12 +4,13 @@ import org.apache.commons.io.FileUtils;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.HashMap;
 import java.util.Map;
 
 public class MultiFileUtils {
-    public static void read(File directory, Map<String, String> map) throws IOException {
+    public static void read(File directory, ShardLayout layout, Map<String, byte[]> map) throws IOException {
         if (!directory.exists()) {
             throw new IOException("directory doesn't exist");
         }
@@ -17,65 +18,123 @@ public class MultiFileUtils {
             throw new IOException("'" + directory.getName() + "' is not a directory");
         }
 
-        for (int ndirectory = 0; ndirectory < 16; ndirectory++) {
-            String subDirName = ndirectory + ".dir";
-            File subDirectory = new File(directory, subDirName);
-
-            if (!subDirectory.exists()) {
-                continue;
-            }
-            if (!subDirectory.isDirectory()) {
-                throw new IOException("'" + subDirectory.toString() + "' is not a directory");
+        for (int ndirectory = 0; ndirectory < layout.getDirectoriesCount(); ndirectory++) {
+            for (int nfile = 0; nfile < layout.getFilesCount(); nfile++) {
+                readBucket(directory, layout, ndirectory, nfile, map);
             }
+        }
+    }
 
-            for (int nfile = 0; nfile < 16; nfile++) {
-                String fileName = nfile + ".dat";
-                File dataFile = new File(subDirectory, fileName);
-                if (!dataFile.exists()) {
-                    continue;
-                }
-                Predicate<String> predicate = new IsKeyValid(nfile, ndirectory);
-                FileMapUtils.read(dataFile, map, predicate);
-            }
+    public static void readBucket(File directory, ShardLayout layout, int ndirectory, int nfile,
+                                  Map<String, byte[]> map) throws IOException {
+        File subDirectory = new File(directory, ndirectory + ".dir");
+        if (!subDirectory.exists()) {
+            return;
+        }
+        if (!subDirectory.isDirectory()) {
+            throw new IOException("'" + subDirectory.toString() + "' is not a directory");
+        }
+
+        File dataFile = new File(subDirectory, nfile + ".dat");
+        if (!dataFile.exists()) {
+            return;
         }
+        Predicate<String> predicate = new IsKeyValid(layout, nfile, ndirectory);
+        FileMapUtils.read(dataFile, map, predicate);
     }
 
-    public static void write(File directory, Map<String, String> map) throws IOException {
-        Map<String, String>[][] mapArray = new Map[16][16];
+    public static int countBucket(File directory, int ndirectory, int nfile) throws IOException {
+        File dataFile = new File(new File(directory, ndirectory + ".dir"), nfile + ".dat");
+        if (!dataFile.exists()) {
+            return 0;
+        }
+        return FileMapUtils.countKeys(dataFile);
+    }
+
+    public static ShardFileIndex readIndex(File directory, int ndirectory, int nfile) throws IOException {
+        return ShardFileIndex.read(new File(new File(directory, ndirectory + ".dir"), nfile + ".dat"));
+    }
+
+    public static void write(File directory, ShardLayout layout, Map<String, byte[]> map,
+                             Compression compression) throws IOException {
+        Map<String, byte[]>[][] mapArray = new Map[layout.getDirectoriesCount()][layout.getFilesCount()];
         for (String key : map.keySet()) {
-            int keyByte = Math.abs(key.getBytes(StandardCharsets.UTF_8)[0]);
-            int nDirectory = keyByte % 16;
-            int nFile = keyByte / 16 % 16;
+            int nDirectory = layout.getDirectoryNumber(key);
+            int nFile = layout.getFileNumber(key);
             if (mapArray[nDirectory][nFile] == null) {
-                mapArray[nDirectory][nFile] = new HashMap<String, String>();
+                mapArray[nDirectory][nFile] = new HashMap<String, byte[]>();
             }
             mapArray[nDirectory][nFile].put(key, map.get(key));
         }
 
-        for (int i = 0; i < 16; i++) {
-            File dataDirectory = new File(directory, i + ".dir");
-            for (int j = 0; j < 16; j++) {
-                File dataFile = new File(dataDirectory, j + ".dat");
-                if (mapArray[i][j] == null) {
-                    if (dataFile.exists()) {
-                        dataFile.delete();
-                    }
-                    continue;
-                }
-
-                if (!dataDirectory.exists()) {
-                    dataDirectory.mkdir();
-                }
-
-                if (!dataFile.exists()) {
-                    dataFile.createNewFile();
-                }
-                FileMapUtils.write(dataFile, mapArray[i][j]);
+        for (int i = 0; i < layout.getDirectoriesCount(); i++) {
+            for (int j = 0; j < layout.getFilesCount(); j++) {
+                writeBucket(directory, i, j, mapArray[i][j], compression);
+            }
+        }
+    }
+
+    public static void writeBucket(File directory, int ndirectory, int nfile,
+                                   Map<String, byte[]> map, Compression compression) throws IOException {
+        writeBucketFile(directory, ndirectory, nfile, map, compression);
+        deleteEmptyDirectory(directory, ndirectory);
+    }
+
+    /**
+     * Записывает или удаляет один файл, не трогая директорию N.dir, поэтому файлы одной директории
+     * можно записывать параллельно. Пустые директории затем удаляет {@link #deleteEmptyDirectory}.
+     */
+    public static void writeBucketFile(File directory, int ndirectory, int nfile,
+                                       Map<String, byte[]> map, Compression compression) throws IOException {
+        File dataDirectory = new File(directory, ndirectory + ".dir");
+        File dataFile = new File(dataDirectory, nfile + ".dat");
+        File bloomFile = new File(dataDirectory, nfile + ".bloom");
+        ColumnFileUtils.delete(directory, ndirectory, nfile);
+        if (map == null || map.isEmpty()) {
+            if (bloomFile.exists()) {
+                bloomFile.delete();
             }
-            if (dataDirectory.exists()) {
-                if (dataDirectory.listFiles().length == 0) {
-                    FileUtils.deleteDirectory(dataDirectory);
-                }
+            if (dataFile.exists()) {
+                dataFile.delete();
+            }
+            return;
+        }
+
+        if (!dataDirectory.exists()) {
+            dataDirectory.mkdir();
+        }
+
+        File tmpFile = new File(dataDirectory, nfile + ".dat.tmp");
+        FileMapUtils.write(tmpFile, map, compression);
+        long dataLength = tmpFile.length();
+        BloomFilter bloomFilter = BloomFilter.create(map.keySet());
+        if (bloomFile.exists()) {
+            bloomFile.delete();
+        }
+        Files.move(tmpFile.toPath(), dataFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        bloomFilter.write(bloomFile, dataLength);
+    }
+
+    /**
+     * Фильтр Блума файла nfile.dat. Для отсутствующего файла возвращает {@link BloomFilter#EMPTY},
+     * а если фильтра нет или он не подходит к файлу - {@link BloomFilter#FULL}, и файл придётся прочитать.
+     */
+    public static BloomFilter readBloomFilter(File directory, int ndirectory, int nfile) {
+        File dataDirectory = new File(directory, ndirectory + ".dir");
+        File dataFile = new File(dataDirectory, nfile + ".dat");
+        if (!dataFile.exists()) {
+            return BloomFilter.EMPTY;
+        }
+        BloomFilter bloomFilter = BloomFilter.read(new File(dataDirectory, nfile + ".bloom"), dataFile.length());
+        return bloomFilter != null ? bloomFilter : BloomFilter.FULL;
+    }
+
+    public static void deleteEmptyDirectory(File directory, int ndirectory) throws IOException {
+        File dataDirectory = new File(directory, ndirectory + ".dir");
+        if (dataDirectory.exists()) {
+            if (dataDirectory.listFiles().length == 0) {
+                FileUtils.deleteDirectory(dataDirectory);
             }
         }
     }
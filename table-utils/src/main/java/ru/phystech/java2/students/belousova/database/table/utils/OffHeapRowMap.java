@@ -0,0 +1,479 @@
+package ru.phystech.java2.students.belousova.database.table.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Строки одного файла M.dat вне кучи Java. Ключи и закодированные значения лежат подряд в прямом буфере
+ * записями [длина ключа][длина значения][ключ][значение], а открытая хеш-таблица с линейным пробированием
+ * хранит во втором прямом буфере хеш ключа и смещение записи. Сборщик мусора видит только два буфера
+ * на файл и кеш из {@link #CACHE_SIZE} последних прочитанных или записанных {@link StoredRow}: повторное
+ * чтение ключа возвращает тот же объект и не декодирует строку заново, а в куче остаётся не больше
+ * {@link #CACHE_SIZE} декодированных строк на файл. Место удалённых и заменённых записей
+ * освобождается уплотнением, когда его становится больше половины буфера.
+ * {@link #get(Object)} и {@link #containsKey(Object)} можно вызывать параллельно с изменениями: они читают
+ * буферы оптимистично и повторяют чтение под блокировкой, только если его пересекло изменение.
+ * Изменения и перебор записей должны выполняться одним потоком.
+ */
+public class OffHeapRowMap extends AbstractMap<String, StoredRow> {
+    private static final int ENTRY_HEADER_SIZE = 8;
+    private static final int SLOT_SIZE = 8;
+    private static final int EMPTY = 0;
+    private static final int DELETED = -1;
+    private static final int MIN_CAPACITY = 16;
+    private static final int MIN_ARENA_SIZE = 4096;
+    private static final int CACHE_SIZE = 64;
+
+    private ByteBuffer slots;
+    private int capacity;
+    private int usedSlots;
+    private int size;
+    private ByteBuffer arena;
+    private int arenaEnd;
+    private int garbage;
+    private final StampedLock lock = new StampedLock();
+    private final CachedRow[] cache = new CachedRow[CACHE_SIZE];
+
+    /**
+     * Прочитанная строка и место её записи. Записи в буфере не перезаписываются: изменение добавляет новую
+     * запись, а уплотнение, рост и очистка создают новый буфер. Поэтому строка актуальна, пока ключ
+     * ссылается на ту же запись того же буфера, и кеш не нужно чистить при изменениях.
+     */
+    private static class CachedRow {
+        private final String key;
+        private final ByteBuffer arena;
+        private final int offset;
+        private final StoredRow row;
+
+        CachedRow(String key, ByteBuffer arena, int offset, StoredRow row) {
+            this.key = key;
+            this.arena = arena;
+            this.offset = offset;
+            this.row = row;
+        }
+    }
+
+    public OffHeapRowMap() {
+        this(0);
+    }
+
+    public OffHeapRowMap(int expectedSize) {
+        capacity = getTableCapacity(expectedSize);
+        slots = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+        arena = ByteBuffer.allocateDirect(MIN_ARENA_SIZE);
+    }
+
+    /**
+     * Копирует буферы другого словаря целиком, не создавая объектов для строк.
+     */
+    public OffHeapRowMap(OffHeapRowMap other) {
+        long stamp = other.lock.readLock();
+        try {
+            capacity = other.capacity;
+            usedSlots = other.usedSlots;
+            size = other.size;
+            arenaEnd = other.arenaEnd;
+            garbage = other.garbage;
+            slots = copyBuffer(other.slots, other.slots.capacity(), other.slots.capacity());
+            arena = copyBuffer(other.arena, other.arenaEnd, Math.max(other.arenaEnd, MIN_ARENA_SIZE));
+        } finally {
+            other.lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public StoredRow get(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        byte[] keyBytes = ((String) key).getBytes(StandardCharsets.UTF_8);
+        int hash = hash((String) key);
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                CachedRow found = find((String) key, keyBytes, hash);
+                if (lock.validate(stamp)) {
+                    return cacheRow(found, hash);
+                }
+            } catch (RuntimeException e) {
+                //buffers were changed during the read
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return cacheRow(find((String) key, keyBytes, hash), hash);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Ищет запись ключа и берёт строку из кеша, если он указывает на ту же запись. Как и {@link #lookup},
+     * результат нужно проверить через {@link StampedLock#validate(long)}, прежде чем класть его в кеш.
+     */
+    private CachedRow find(String key, byte[] keyBytes, int hash) {
+        ByteBuffer slotsBuffer = slots;
+        ByteBuffer arenaBuffer = arena;
+        int offset = lookup(slotsBuffer, arenaBuffer, keyBytes, hash);
+        if (offset < 0) {
+            return null;
+        }
+        CachedRow cached = cache[hash & (CACHE_SIZE - 1)];
+        if (cached != null && cached.arena == arenaBuffer && cached.offset == offset && cached.key.equals(key)) {
+            return cached;
+        }
+        int valueLength = arenaBuffer.getInt(offset + 4);
+        byte[] value = new byte[valueLength];
+        ByteBuffer entry = arenaBuffer.duplicate();
+        entry.position(offset + ENTRY_HEADER_SIZE + keyBytes.length);
+        entry.get(value);
+        return new CachedRow(key, arenaBuffer, offset, new StoredRow(value));
+    }
+
+    private StoredRow cacheRow(CachedRow found, int hash) {
+        if (found == null) {
+            return null;
+        }
+        cache[hash & (CACHE_SIZE - 1)] = found;
+        return found.row;
+    }
+
+    /**
+     * Поиск записи, который не меняет полей и не зацикливается на несогласованных буферах.
+     * Если чтение пересеклось с изменением, может вернуть неверный ответ или бросить исключение,
+     * поэтому результат нужно проверить через {@link StampedLock#validate(long)}.
+     *
+     * @return Смещение записи ключа или -1, если ключа нет.
+     */
+    private int lookup(ByteBuffer slotsBuffer, ByteBuffer arenaBuffer, byte[] keyBytes, int hash) {
+        int slotsCount = slotsBuffer.capacity() / SLOT_SIZE;
+        int mask = slotsCount - 1;
+        int slot = hash & mask;
+        for (int probe = 0; probe < slotsCount; probe++, slot = (slot + 1) & mask) {
+            int reference = slotsBuffer.getInt(slot * SLOT_SIZE + 4);
+            if (reference == EMPTY) {
+                return -1;
+            }
+            if (reference == DELETED || slotsBuffer.getInt(slot * SLOT_SIZE) != hash) {
+                continue;
+            }
+            int offset = reference - 1;
+            int keyLength = arenaBuffer.getInt(offset);
+            int valueLength = arenaBuffer.getInt(offset + 4);
+            if (keyLength != keyBytes.length) {
+                continue;
+            }
+            long valueEnd = (long) offset + ENTRY_HEADER_SIZE + keyLength + valueLength;
+            if (valueLength < 0 || valueEnd > arenaBuffer.capacity()) {
+                throw new IllegalStateException("inconsistent off-heap bucket");
+            }
+            ByteBuffer entry = arenaBuffer.duplicate();
+            entry.position(offset + ENTRY_HEADER_SIZE);
+            boolean isEqual = true;
+            for (int i = 0; i < keyBytes.length && isEqual; i++) {
+                isEqual = entry.get() == keyBytes[i];
+            }
+            if (isEqual) {
+                return offset;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Запоминает записанную строку в кеше, чтобы следующее чтение вернуло уже декодированное значение.
+     */
+    @Override
+    public StoredRow put(String key, StoredRow value) {
+        long stamp = lock.writeLock();
+        try {
+            StoredRow previous = putEntry(key, value);
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            int hash = hash(key);
+            int offset = getReference(findSlot(keyBytes, hash)) - 1;
+            cache[hash & (CACHE_SIZE - 1)] = new CachedRow(key, arena, offset, value);
+            return previous;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private StoredRow putEntry(String key, StoredRow value) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(key);
+        int slot = findSlot(keyBytes, hash);
+        StoredRow previous = null;
+        if (slot >= 0) {
+            int oldOffset = getReference(slot) - 1;
+            previous = new StoredRow(readValue(oldOffset));
+            garbage += getEntryLength(oldOffset);
+        }
+        int offset = append(keyBytes, value.getData());
+        if (slot >= 0) {
+            slots.putInt(slot * SLOT_SIZE + 4, offset + 1);
+        } else {
+            slot = -slot - 1;
+            if (getReference(slot) == EMPTY) {
+                usedSlots++;
+            }
+            slots.putInt(slot * SLOT_SIZE, hash);
+            slots.putInt(slot * SLOT_SIZE + 4, offset + 1);
+            size++;
+            if (usedSlots * 2 > capacity) {
+                rehash(getTableCapacity(size));
+            }
+        }
+        compactIfNeeded();
+        return previous;
+    }
+
+    @Override
+    public StoredRow remove(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        long stamp = lock.writeLock();
+        try {
+            return removeEntry((String) key);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private StoredRow removeEntry(String key) {
+        int slot = findSlot(key.getBytes(StandardCharsets.UTF_8), hash(key));
+        if (slot < 0) {
+            return null;
+        }
+        int offset = getReference(slot) - 1;
+        StoredRow previous = new StoredRow(readValue(offset));
+        garbage += getEntryLength(offset);
+        slots.putInt(slot * SLOT_SIZE + 4, DELETED);
+        size--;
+        compactIfNeeded();
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        long stamp = lock.writeLock();
+        try {
+            capacity = MIN_CAPACITY;
+            slots = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+            arena = ByteBuffer.allocateDirect(MIN_ARENA_SIZE);
+            usedSlots = 0;
+            size = 0;
+            arenaEnd = 0;
+            garbage = 0;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public Set<Entry<String, StoredRow>> entrySet() {
+        return new AbstractSet<Entry<String, StoredRow>>() {
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public Iterator<Entry<String, StoredRow>> iterator() {
+                return new Iterator<Entry<String, StoredRow>>() {
+                    private int slot = nextLiveSlot(0);
+
+                    @Override
+                    public boolean hasNext() {
+                        return slot < capacity;
+                    }
+
+                    @Override
+                    public Entry<String, StoredRow> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        int offset = getReference(slot) - 1;
+                        slot = nextLiveSlot(slot + 1);
+                        return new SimpleImmutableEntry<>(readKey(offset), new StoredRow(readValue(offset)));
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    private int nextLiveSlot(int slot) {
+        while (slot < capacity && getReference(slot) <= EMPTY) {
+            slot++;
+        }
+        return slot;
+    }
+
+    private static int hash(String key) {
+        int h = key.hashCode() * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int getTableCapacity(int expectedSize) {
+        int tableCapacity = MIN_CAPACITY;
+        while (tableCapacity < expectedSize * 2 + 2) {
+            tableCapacity <<= 1;
+        }
+        return tableCapacity;
+    }
+
+    private int getReference(int slot) {
+        return slots.getInt(slot * SLOT_SIZE + 4);
+    }
+
+    /**
+     * @return Номер ячейки с ключом или -(номер свободной ячейки для вставки) - 1, если ключа нет.
+     */
+    private int findSlot(byte[] keyBytes, int hash) {
+        int mask = capacity - 1;
+        int firstDeleted = -1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int reference = getReference(slot);
+            if (reference == EMPTY) {
+                return -(firstDeleted >= 0 ? firstDeleted : slot) - 1;
+            }
+            if (reference == DELETED) {
+                if (firstDeleted < 0) {
+                    firstDeleted = slot;
+                }
+            } else if (slots.getInt(slot * SLOT_SIZE) == hash && keyEquals(reference - 1, keyBytes)) {
+                return slot;
+            }
+        }
+    }
+
+    private boolean keyEquals(int offset, byte[] keyBytes) {
+        if (arena.getInt(offset) != keyBytes.length) {
+            return false;
+        }
+        int keyStart = offset + ENTRY_HEADER_SIZE;
+        for (int i = 0; i < keyBytes.length; i++) {
+            if (arena.get(keyStart + i) != keyBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int getEntryLength(int offset) {
+        return ENTRY_HEADER_SIZE + arena.getInt(offset) + arena.getInt(offset + 4);
+    }
+
+    private String readKey(int offset) {
+        byte[] keyBytes = new byte[arena.getInt(offset)];
+        ByteBuffer entry = arena.duplicate();
+        entry.position(offset + ENTRY_HEADER_SIZE);
+        entry.get(keyBytes);
+        return new String(keyBytes, StandardCharsets.UTF_8);
+    }
+
+    private byte[] readValue(int offset) {
+        byte[] value = new byte[arena.getInt(offset + 4)];
+        ByteBuffer entry = arena.duplicate();
+        entry.position(offset + ENTRY_HEADER_SIZE + arena.getInt(offset));
+        entry.get(value);
+        return value;
+    }
+
+    private int append(byte[] keyBytes, byte[] value) {
+        long entryEnd = (long) arenaEnd + ENTRY_HEADER_SIZE + keyBytes.length + value.length;
+        if (entryEnd >= Integer.MAX_VALUE) {
+            throw new IllegalStateException("off-heap bucket is too big");
+        }
+        if (entryEnd > arena.capacity()) {
+            int newCapacity = (int) Math.min(Math.max(entryEnd, (long) arena.capacity() * 2), Integer.MAX_VALUE - 1);
+            arena = copyBuffer(arena, arenaEnd, newCapacity);
+        }
+        int offset = arenaEnd;
+        arena.putInt(offset, keyBytes.length);
+        arena.putInt(offset + 4, value.length);
+        ByteBuffer entry = arena.duplicate();
+        entry.position(offset + ENTRY_HEADER_SIZE);
+        entry.put(keyBytes);
+        entry.put(value);
+        arenaEnd = (int) entryEnd;
+        return offset;
+    }
+
+    private void rehash(int newCapacity) {
+        ByteBuffer newSlots = ByteBuffer.allocateDirect(newCapacity * SLOT_SIZE);
+        int mask = newCapacity - 1;
+        for (int slot = 0; slot < capacity; slot++) {
+            int reference = getReference(slot);
+            if (reference <= EMPTY) {
+                continue;
+            }
+            int hash = slots.getInt(slot * SLOT_SIZE);
+            int newSlot = hash & mask;
+            while (newSlots.getInt(newSlot * SLOT_SIZE + 4) != EMPTY) {
+                newSlot = (newSlot + 1) & mask;
+            }
+            newSlots.putInt(newSlot * SLOT_SIZE, hash);
+            newSlots.putInt(newSlot * SLOT_SIZE + 4, reference);
+        }
+        slots = newSlots;
+        capacity = newCapacity;
+        usedSlots = size;
+    }
+
+    private void compactIfNeeded() {
+        if (garbage < MIN_ARENA_SIZE || garbage * 2 < arenaEnd) {
+            return;
+        }
+        ByteBuffer newArena = ByteBuffer.allocateDirect(Math.max((arenaEnd - garbage) * 2, MIN_ARENA_SIZE));
+        int newArenaEnd = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            int reference = getReference(slot);
+            if (reference <= EMPTY) {
+                continue;
+            }
+            int offset = reference - 1;
+            int entryLength = getEntryLength(offset);
+            ByteBuffer entry = arena.duplicate();
+            entry.position(offset);
+            entry.limit(offset + entryLength);
+            newArena.position(newArenaEnd);
+            newArena.put(entry);
+            slots.putInt(slot * SLOT_SIZE + 4, newArenaEnd + 1);
+            newArenaEnd += entryLength;
+        }
+        arena = newArena;
+        arenaEnd = newArenaEnd;
+        garbage = 0;
+        if (usedSlots > size * 2) {
+            rehash(getTableCapacity(size));
+        }
+    }
+
+    private static ByteBuffer copyBuffer(ByteBuffer buffer, int length, int newCapacity) {
+        ByteBuffer copy = ByteBuffer.allocateDirect(newCapacity);
+        ByteBuffer source = buffer.duplicate();
+        source.position(0);
+        source.limit(length);
+        copy.put(source);
+        copy.clear();
+        return copy;
+    }
+}
@@ -0,0 +1,18 @@
+package ru.phystech.java2.students.belousova.database.table.utils;
+
+import java.io.IOException;
+
+public class PlainBlockCodec implements BlockCodec {
+    @Override
+    public byte[] compress(byte[] data) {
+        return data;
+    }
+
+    @Override
+    public byte[] decompress(byte[] data, int rawLength) throws IOException {
+        if (data.length != rawLength) {
+            throw new IOException("wrong data format");
+        }
+        return data;
+    }
+}
@@ -0,0 +1,14 @@
+package ru.phystech.java2.students.belousova.database.table.utils;
+
+import ru.phystech.java2.students.belousova.database.table.api.Table;
+import ru.phystech.java2.students.belousova.database.table.api.TableProvider;
+import ru.phystech.java2.students.belousova.database.table.api.TableRow;
+
+import java.text.ParseException;
+import java.util.List;
+
+public interface RowCodec {
+    byte[] encode(TableRow row, List<Class<?>> columnTypes);
+
+    TableRow decode(byte[] data, Table table, TableProvider tableProvider) throws ParseException;
+}
@@ -0,0 +1,40 @@
+package ru.phystech.java2.students.belousova.database.table.utils;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+public enum RowFormat {
+    XML("xml", new XmlRowCodec()),
+    BINARY("binary", new BinaryRowCodec());
+
+    private final String name;
+    private final RowCodec codec;
+
+    private RowFormat(String name, RowCodec codec) {
+        this.name = name;
+        this.codec = codec;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public RowCodec getCodec() {
+        return codec;
+    }
+
+    private static final Map<String, RowFormat> BY_NAME;
+
+    static {
+        Map<String, RowFormat> map = new HashMap<>();
+        for (RowFormat format : values()) {
+            map.put(format.getName(), format);
+        }
+        BY_NAME = Collections.unmodifiableMap(map);
+    }
+
+    public static RowFormat getByName(String name) {
+        return BY_NAME.get(name);
+    }
+}
@@ -0,0 +1,10 @@
+package ru.phystech.java2.students.belousova.database.table.utils;
+
+import java.io.IOException;
+
+public interface RowScanner {
+    /**
+     * @param row Закодированная строка в формате, запрошенном у таблицы.
+     */
+    void scan(String key, byte[] row) throws IOException;
+}
@@ -0,0 +1,53 @@
+package ru.phystech.java2.students.belousova.database.table.utils;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public enum RowStorage {
+    HEAP("heap"),
+    OFF_HEAP("offheap");
+
+    private final String name;
+
+    private RowStorage(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Создаёт пустой словарь для строк одного файла M.dat. Словари обоих видов можно читать через get
+     * параллельно с изменениями, которые выполняет один поток.
+     */
+    public Map<String, StoredRow> newBucket(int expectedSize) {
+        if (this == OFF_HEAP) {
+            return new OffHeapRowMap(expectedSize);
+        }
+        return new ConcurrentHashMap<>(expectedSize);
+    }
+
+    public Map<String, StoredRow> copyBucket(Map<String, StoredRow> bucket) {
+        if (bucket instanceof OffHeapRowMap) {
+            return new OffHeapRowMap((OffHeapRowMap) bucket);
+        }
+        return new ConcurrentHashMap<>(bucket);
+    }
+
+    private static final Map<String, RowStorage> BY_NAME;
+
+    static {
+        Map<String, RowStorage> map = new HashMap<>();
+        for (RowStorage storage : values()) {
+            map.put(storage.getName(), storage);
+        }
+        BY_NAME = Collections.unmodifiableMap(map);
+    }
+
+    public static RowStorage getByName(String name) {
+        return BY_NAME.get(name);
+    }
+}
@@ -0,0 +1,163 @@
+package ru.phystech.java2.students.belousova.database.table.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Разреженный индекс файла M.dat нового формата: первый ключ и смещение каждого блока из 32 ключей.
+ * Поиск ключа читает один блок ключей и одно значение, а в сжатом файле - один сжатый блок значений.
+ * Для файлов старого формата индекса нет, и {@link #isSorted()} возвращает false.
+ */
+public class ShardFileIndex {
+    private final File file;
+    private final String[] blockKeys;
+    private final long[] blockOffsets;
+    private final long keysEnd;
+    private final Compression compression;
+    private final long[] valueBlockOffsets;
+    private final int[] valueBlockLengths;
+    private final int[] valueBlockRawLengths;
+
+    private ShardFileIndex(File file, String[] blockKeys, long[] blockOffsets, long keysEnd,
+                           Compression compression, long[] valueBlockOffsets,
+                           int[] valueBlockLengths, int[] valueBlockRawLengths) {
+        this.file = file;
+        this.blockKeys = blockKeys;
+        this.blockOffsets = blockOffsets;
+        this.keysEnd = keysEnd;
+        this.compression = compression;
+        this.valueBlockOffsets = valueBlockOffsets;
+        this.valueBlockLengths = valueBlockLengths;
+        this.valueBlockRawLengths = valueBlockRawLengths;
+    }
+
+    public static ShardFileIndex read(File file) throws IOException {
+        try {
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                if (channel.size() < FileMapUtils.SORTED_HEADER_SIZE) {
+                    return new ShardFileIndex(file, null, null, 0, null, null, null, null);
+                }
+                ByteBuffer header = FileMapUtils.readRange(channel, 0, FileMapUtils.SORTED_HEADER_SIZE);
+                if (header.getInt() != FileMapUtils.FORMAT_MAGIC) {
+                    return new ShardFileIndex(file, null, null, 0, null, null, null, null);
+                }
+                int headerSize = FileMapUtils.getHeaderSize(header.getInt());
+                boolean compressed = headerSize == FileMapUtils.COMPRESSED_HEADER_SIZE;
+                header.getInt();
+                int blocksCount = header.getInt();
+                long keysOffset = header.getLong();
+                long valuesOffset = header.getLong();
+                if (blocksCount < 0 || keysOffset < headerSize || keysOffset > valuesOffset
+                        || keysOffset > Integer.MAX_VALUE) {
+                    throw new IOException("wrong data format");
+                }
+                Compression compression = null;
+                if (compressed) {
+                    compression = Compression.getById(FileMapUtils.readRange(channel,
+                            FileMapUtils.SORTED_HEADER_SIZE, 4).getInt());
+                    if (compression == null) {
+                        throw new IOException("wrong data format");
+                    }
+                }
+                ByteBuffer index = FileMapUtils.readRange(channel, headerSize, (int) keysOffset - headerSize);
+                String[] blockKeys = new String[blocksCount];
+                long[] blockOffsets = new long[blocksCount];
+                long[] valueBlockOffsets = compressed ? new long[blocksCount] : null;
+                int[] valueBlockLengths = compressed ? new int[blocksCount] : null;
+                int[] valueBlockRawLengths = compressed ? new int[blocksCount] : null;
+                for (int i = 0; i < blocksCount; i++) {
+                    blockKeys[i] = FileMapUtils.readKey(index);
+                    blockOffsets[i] = index.getLong();
+                    if (compressed) {
+                        valueBlockOffsets[i] = index.getLong();
+                        valueBlockLengths[i] = index.getInt();
+                        valueBlockRawLengths[i] = index.getInt();
+                    }
+                }
+                return new ShardFileIndex(file, blockKeys, blockOffsets, valuesOffset, compression,
+                        valueBlockOffsets, valueBlockLengths, valueBlockRawLengths);
+            } finally {
+                FileMapUtils.closeStream(channel);
+            }
+        } catch (IOException | BufferUnderflowException e) {
+            throw new IOException("cannot read '" + file.getName() + "'", e);
+        }
+    }
+
+    public boolean isSorted() {
+        return blockKeys != null;
+    }
+
+    /**
+     * @return Значение ключа или null, если ключа в файле нет.
+     */
+    public byte[] readValue(String key) throws IOException {
+        int low = 0;
+        int high = blockKeys.length - 1;
+        int block = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (blockKeys[middle].compareTo(key) <= 0) {
+                block = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        if (block < 0) {
+            return null;
+        }
+        long blockEnd = block + 1 < blockOffsets.length ? blockOffsets[block + 1] : keysEnd;
+        try {
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                ByteBuffer keys = FileMapUtils.readRange(channel, blockOffsets[block],
+                        (int) (blockEnd - blockOffsets[block]));
+                while (keys.hasRemaining()) {
+                    int compare = FileMapUtils.readKey(keys).compareTo(key);
+                    long valueOffset;
+                    if (compression == null) {
+                        valueOffset = keys.getLong();
+                    } else {
+                        valueOffset = keys.getInt();
+                    }
+                    int valueLength = keys.getInt();
+                    if (compare == 0) {
+                        return readValue(channel, block, valueOffset, valueLength);
+                    }
+                    if (compare > 0) {
+                        return null;
+                    }
+                }
+                return null;
+            } finally {
+                FileMapUtils.closeStream(channel);
+            }
+        } catch (IOException | BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("cannot read '" + file.getName() + "'", e);
+        }
+    }
+
+    private byte[] readValue(FileChannel channel, int block, long valueOffset, int valueLength) throws IOException {
+        if (compression == null) {
+            byte[] value = new byte[valueLength];
+            FileMapUtils.readRange(channel, valueOffset, valueLength).get(value);
+            return value;
+        }
+        if (compression == Compression.NONE) {
+            byte[] value = new byte[valueLength];
+            FileMapUtils.readRange(channel, valueBlockOffsets[block] + valueOffset, valueLength).get(value);
+            return value;
+        }
+        byte[] stored = new byte[valueBlockLengths[block]];
+        FileMapUtils.readRange(channel, valueBlockOffsets[block], stored.length).get(stored);
+        byte[] raw = compression.getCodec().decompress(stored, valueBlockRawLengths[block]);
+        return Arrays.copyOfRange(raw, (int) valueOffset, (int) valueOffset + valueLength);
+    }
+}
@@ -0,0 +1,118 @@
+package ru.phystech.java2.students.belousova.database.table.utils;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Раскладка ключей таблицы по файлам N.dir/M.dat.
+ *
+ * Старые таблицы выбирают файл по первому байту ключа в UTF-8, поэтому ключи с общим префиксом
+ * попадают в один файл. Новые таблицы используют хеш от всего ключа.
+ */
+public class ShardLayout {
+    public static final int MAX_COUNT = 256;
+    public static final ShardLayout LEGACY = new ShardLayout(ShardFunction.FIRST_BYTE, 16, 16);
+
+    public enum ShardFunction {
+        FIRST_BYTE("first-byte"),
+        HASH("hash");
+
+        private final String name;
+
+        private ShardFunction(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public static ShardFunction getByName(String name) {
+            for (ShardFunction function : values()) {
+                if (function.getName().equals(name)) {
+                    return function;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final ShardFunction function;
+    private final int directoriesCount;
+    private final int filesCount;
+
+    public ShardLayout(ShardFunction function, int directoriesCount, int filesCount) {
+        if (function == null) {
+            throw new IllegalArgumentException("shard function is not set");
+        }
+        if (directoriesCount <= 0 || directoriesCount > MAX_COUNT || filesCount <= 0 || filesCount > MAX_COUNT) {
+            throw new IllegalArgumentException("wrong number of shards");
+        }
+        if (function == ShardFunction.FIRST_BYTE && (directoriesCount != 16 || filesCount != 16)) {
+            throw new IllegalArgumentException("first-byte layout supports only 16x16 shards");
+        }
+        this.function = function;
+        this.directoriesCount = directoriesCount;
+        this.filesCount = filesCount;
+    }
+
+    public ShardFunction getFunction() {
+        return function;
+    }
+
+    public int getDirectoriesCount() {
+        return directoriesCount;
+    }
+
+    public int getFilesCount() {
+        return filesCount;
+    }
+
+    public int getBucketsCount() {
+        return directoriesCount * filesCount;
+    }
+
+    public int getBucketNumber(String key) {
+        if (function == ShardFunction.FIRST_BYTE) {
+            int keyByte = Math.abs(key.getBytes(StandardCharsets.UTF_8)[0]);
+            return (keyByte % 16) * filesCount + keyByte / 16 % 16;
+        }
+        return (mix(key.hashCode()) & Integer.MAX_VALUE) % getBucketsCount();
+    }
+
+    public int getDirectoryNumber(String key) {
+        return getBucketNumber(key) / filesCount;
+    }
+
+    public int getFileNumber(String key) {
+        return getBucketNumber(key) % filesCount;
+    }
+
+    private static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof ShardLayout)) {
+            return false;
+        }
+        ShardLayout layout = (ShardLayout) obj;
+        return function == layout.function && directoriesCount == layout.directoriesCount
+                && filesCount == layout.filesCount;
+    }
+
+    @Override
+    public int hashCode() {
+        return (function.hashCode() * 31 + directoriesCount) * 31 + filesCount;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + function.getName() + "," + directoriesCount + "x" + filesCount + "]";
+    }
+}
@@ -0,0 +1,317 @@
+package ru.phystech.java2.students.belousova.database.table.utils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Неизменяемый файл с записями, отсортированными по ключу. Запись - ключ и закодированная строка
+ * или отметка об удалении. В конце файла лежит разреженный индекс с ключом и смещением каждой
+ * {@link #INDEX_INTERVAL}-й записи, поэтому поиск одного ключа читает с диска не больше одного блока.
+ */
+public class SortedRunFile implements Closeable {
+    public static final byte[] TOMBSTONE = new byte[0];
+    private static final int INDEX_INTERVAL = 64;
+    private static final int FOOTER_SIZE = 16;
+    private static final int MAGIC = 0x52554e31;
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final File file;
+    private final FileChannel channel;
+    private final long dataLength;
+    private final int entriesCount;
+    private final String[] indexKeys;
+    private final long[] indexOffsets;
+
+    public SortedRunFile(File file) throws IOException {
+        this.file = file;
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long fileLength = channel.size();
+            if (fileLength < FOOTER_SIZE) {
+                throw new IOException("wrong data format");
+            }
+            ByteBuffer footer = readRange(fileLength - FOOTER_SIZE, FOOTER_SIZE);
+            dataLength = footer.getLong();
+            entriesCount = footer.getInt();
+            if (footer.getInt() != MAGIC || dataLength < 0 || dataLength > fileLength - FOOTER_SIZE) {
+                throw new IOException("wrong data format");
+            }
+            long indexLength = fileLength - FOOTER_SIZE - dataLength;
+            if (indexLength > Integer.MAX_VALUE) {
+                throw new IOException("index is too big");
+            }
+            ByteBuffer index = readRange(dataLength, (int) indexLength);
+            int indexCount = index.getInt();
+            indexKeys = new String[indexCount];
+            indexOffsets = new long[indexCount];
+            for (int i = 0; i < indexCount; i++) {
+                indexKeys[i] = readKey(index);
+                indexOffsets[i] = index.getLong();
+            }
+        } catch (IOException | RuntimeException e) {
+            FileMapUtils.closeStream(channel);
+            throw new IOException("cannot read '" + file.getName() + "'", e);
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getEntriesCount() {
+        return entriesCount;
+    }
+
+    /**
+     * @return Значение ключа, {@link #TOMBSTONE}, если ключ удалён, или null, если ключа в файле нет.
+     */
+    public byte[] get(String key) throws IOException {
+        int block = findBlock(key);
+        if (block < 0) {
+            return null;
+        }
+        long start = indexOffsets[block];
+        long end = block + 1 < indexOffsets.length ? indexOffsets[block + 1] : dataLength;
+        if (end - start > Integer.MAX_VALUE) {
+            throw new IOException("block is too big");
+        }
+        try {
+            ByteBuffer buffer = readRange(start, (int) (end - start));
+            while (buffer.hasRemaining()) {
+                String entryKey = readKey(buffer);
+                int valueLength = buffer.getInt();
+                int compare = entryKey.compareTo(key);
+                if (compare == 0) {
+                    if (valueLength < 0) {
+                        return TOMBSTONE;
+                    }
+                    byte[] value = new byte[valueLength];
+                    buffer.get(value);
+                    return value;
+                }
+                if (compare > 0) {
+                    return null;
+                }
+                if (valueLength > 0) {
+                    buffer.position(buffer.position() + valueLength);
+                }
+            }
+            return null;
+        } catch (RuntimeException e) {
+            throw new IOException("cannot read '" + file.getName() + "'", e);
+        }
+    }
+
+    private int findBlock(String key) {
+        int low = 0;
+        int high = indexKeys.length - 1;
+        int found = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (indexKeys[middle].compareTo(key) <= 0) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return found;
+    }
+
+    private ByteBuffer readRange(long position, int length) throws IOException {
+        return FileMapUtils.readRange(channel, position, length);
+    }
+
+    private static String readKey(ByteBuffer buffer) {
+        byte[] keyBytes = new byte[buffer.getInt()];
+        buffer.get(keyBytes);
+        return new String(keyBytes, StandardCharsets.UTF_8);
+    }
+
+    public Reader openReader() throws IOException {
+        return new Reader(file, dataLength);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Сливает файлы в один. Файлы передаются от нового к старому: из одинаковых ключей остаётся значение
+     * более нового файла. Отметки об удалении можно отбросить, только если сливаются все файлы таблицы.
+     */
+    public static void merge(File target, List<SortedRunFile> runs, boolean dropTombstones) throws IOException {
+        final List<Reader> readers = new ArrayList<>();
+        Writer writer = new Writer(target);
+        try {
+            PriorityQueue<Integer> queue = new PriorityQueue<>(Math.max(1, runs.size()), new Comparator<Integer>() {
+                @Override
+                public int compare(Integer first, Integer second) {
+                    int compare = readers.get(first).getKey().compareTo(readers.get(second).getKey());
+                    return compare != 0 ? compare : Integer.compare(first, second);
+                }
+            });
+            for (int i = 0; i < runs.size(); i++) {
+                Reader reader = runs.get(i).openReader();
+                readers.add(reader);
+                if (reader.next()) {
+                    queue.add(i);
+                }
+            }
+            while (!queue.isEmpty()) {
+                int newest = queue.poll();
+                Reader reader = readers.get(newest);
+                String key = reader.getKey();
+                byte[] value = reader.getValue();
+                while (!queue.isEmpty() && readers.get(queue.peek()).getKey().equals(key)) {
+                    int older = queue.poll();
+                    if (readers.get(older).next()) {
+                        queue.add(older);
+                    }
+                }
+                if (!dropTombstones || value != TOMBSTONE) {
+                    writer.add(key, value);
+                }
+                if (reader.next()) {
+                    queue.add(newest);
+                }
+            }
+            writer.finish();
+        } finally {
+            for (Reader reader : readers) {
+                FileMapUtils.closeStream(reader);
+            }
+            writer.close();
+        }
+    }
+
+    /**
+     * Последовательно читает записи файла в порядке ключей.
+     */
+    public static class Reader implements Closeable {
+        private final DataInputStream input;
+        private long remaining;
+        private String key;
+        private byte[] value;
+
+        private Reader(File file, long dataLength) throws IOException {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+            remaining = dataLength;
+        }
+
+        public boolean next() throws IOException {
+            if (remaining <= 0) {
+                key = null;
+                value = null;
+                return false;
+            }
+            byte[] keyBytes = new byte[input.readInt()];
+            input.readFully(keyBytes);
+            key = new String(keyBytes, StandardCharsets.UTF_8);
+            int valueLength = input.readInt();
+            if (valueLength < 0) {
+                value = TOMBSTONE;
+                valueLength = 0;
+            } else {
+                value = new byte[valueLength];
+                input.readFully(value);
+            }
+            remaining -= 8 + keyBytes.length + valueLength;
+            return true;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public byte[] getValue() {
+            return value;
+        }
+
+        @Override
+        public void close() throws IOException {
+            input.close();
+        }
+    }
+
+    /**
+     * Пишет новый файл. Ключи должны добавляться в возрастающем порядке. Файл появляется под своим именем
+     * только после {@link #finish()}; {@link #close()} без finish() удаляет недописанный файл.
+     */
+    public static class Writer implements Closeable {
+        private final File file;
+        private final File tmpFile;
+        private final FileOutputStream fileStream;
+        private final DataOutputStream output;
+        private final List<String> indexKeys = new ArrayList<>();
+        private final List<Long> indexOffsets = new ArrayList<>();
+        private long position = 0;
+        private int count = 0;
+        private String lastKey = null;
+        private boolean finished = false;
+
+        public Writer(File file) throws IOException {
+            this.file = file;
+            tmpFile = new File(file.getPath() + ".tmp");
+            fileStream = new FileOutputStream(tmpFile);
+            output = new DataOutputStream(new BufferedOutputStream(fileStream, BUFFER_SIZE));
+        }
+
+        public void add(String key, byte[] value) throws IOException {
+            if (lastKey != null && lastKey.compareTo(key) >= 0) {
+                throw new IllegalArgumentException("keys are not sorted");
+            }
+            if (count % INDEX_INTERVAL == 0) {
+                indexKeys.add(key);
+                indexOffsets.add(position);
+            }
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            output.writeInt(keyBytes.length);
+            output.write(keyBytes);
+            position += 8 + keyBytes.length;
+            if (value == TOMBSTONE) {
+                output.writeInt(-1);
+            } else {
+                output.writeInt(value.length);
+                output.write(value);
+                position += value.length;
+            }
+            count++;
+            lastKey = key;
+        }
+
+        public void finish() throws IOException {
+            output.writeInt(indexKeys.size());
+            for (int i = 0; i < indexKeys.size(); i++) {
+                byte[] keyBytes = indexKeys.get(i).getBytes(StandardCharsets.UTF_8);
+                output.writeInt(keyBytes.length);
+                output.write(keyBytes);
+                output.writeLong(indexOffsets.get(i));
+            }
+            output.writeLong(position);
+            output.writeInt(count);
+            output.writeInt(MAGIC);
+            output.flush();
+            fileStream.getFD().sync();
+            output.close();
+            finished = true;
+            Files.move(tmpFile.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        @Override
+        public void close() {
+            if (!finished) {
+                FileMapUtils.closeStream(output);
+                tmpFile.delete();
+            }
+        }
+    }
+}
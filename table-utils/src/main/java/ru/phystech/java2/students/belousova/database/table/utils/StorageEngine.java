@@ -0,0 +1,34 @@
+package ru.phystech.java2.students.belousova.database.table.utils;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+public enum StorageEngine {
+    SHARDS("shards"),
+    LSM("lsm");
+
+    private final String name;
+
+    private StorageEngine(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    private static final Map<String, StorageEngine> BY_NAME;
+
+    static {
+        Map<String, StorageEngine> map = new HashMap<>();
+        for (StorageEngine engine : values()) {
+            map.put(engine.getName(), engine);
+        }
+        BY_NAME = Collections.unmodifiableMap(map);
+    }
+
+    public static StorageEngine getByName(String name) {
+        return BY_NAME.get(name);
+    }
+}
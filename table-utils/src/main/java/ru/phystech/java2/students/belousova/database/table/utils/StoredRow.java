@@ -0,0 +1,38 @@
+package ru.phystech.java2.students.belousova.database.table.utils;
+
+import ru.phystech.java2.students.belousova.database.table.api.Table;
+import ru.phystech.java2.students.belousova.database.table.api.TableProvider;
+import ru.phystech.java2.students.belousova.database.table.api.TableRow;
+
+import java.text.ParseException;
+
+/**
+ * Зафиксированное значение таблицы. Хранит закодированное представление строки, в котором она
+ * пишется на диск, и декодирует его в {@link TableRow} только при первом обращении.
+ */
+public class StoredRow {
+    private final byte[] data;
+    private volatile TableRow row;
+
+    public StoredRow(byte[] data) {
+        this.data = data;
+    }
+
+    public StoredRow(byte[] data, TableRow row) {
+        this.data = data;
+        this.row = row;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public TableRow getRow(Table table, TableProvider tableProvider, RowCodec rowCodec) throws ParseException {
+        TableRow decoded = row;
+        if (decoded == null) {
+            decoded = rowCodec.decode(data, table, tableProvider);
+            row = decoded;
+        }
+        return decoded;
+    }
+}
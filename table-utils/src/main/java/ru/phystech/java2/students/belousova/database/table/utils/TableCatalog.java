@@ -0,0 +1,363 @@
+package ru.phystech.java2.students.belousova.database.table.utils;
+
+import ru.phystech.java2.students.belousova.database.table.api.TypesEnum;
+
+import java.io.*;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Каталог таблиц провайдера: имена, сигнатуры, число строк и номера непустых файлов каждой таблицы.
+ * Позволяет открыть провайдер и таблицу, не обходя директории и не проверяя существование всех файлов N.dir/M.dat.
+ * Сведения о файлах таблицы верны, только пока они совпадают с диском, поэтому перед записью файлов
+ * таблица сбрасывает их через {@link #invalidateShards(String)}, а после записи сохраняет новые.
+ * Строка каталога: имя, сигнатура, число строк, номера файлов и их суммарная длина через табуляцию,
+ * неизвестное значение - "-".
+ *
+ * С одной директорией могут работать несколько провайдеров, поэтому каждое изменение делается под
+ * блокировкой файла catalog.lock: каталог перечитывается с диска, меняется только запись нужной таблицы,
+ * а записи остальных таблиц сохраняются такими, какими их оставили другие провайдеры.
+ */
+public class TableCatalog {
+    public static final String FILE_NAME = "catalog.tsv";
+    public static final String LOCK_FILE_NAME = "catalog.lock";
+    private static final String UNKNOWN = "-";
+    private static final Map<String, Object> PROCESS_LOCKS = new HashMap<>();
+
+    private final File directory;
+    private Map<String, Entry> entries = new TreeMap<>();
+    private boolean isComplete = false;
+
+    private static class Entry {
+        private List<Class<?>> columnTypes;
+        private int rowsCount = -1;
+        private int[] shards;
+        private long dataLength = -1;
+    }
+
+    /**
+     * Изменение каталога, применяемое к свежей копии, прочитанной с диска.
+     */
+    private interface Update {
+        void apply(Map<String, Entry> entries);
+    }
+
+    private TableCatalog(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Читает каталог из директории провайдера. Если файла нет или он повреждён, возвращает пустой
+     * каталог, для которого {@link #isComplete()} ложно, и таблицы нужно найти обходом директории.
+     */
+    public static TableCatalog read(File directory) {
+        TableCatalog catalog = new TableCatalog(directory);
+        catalog.refresh();
+        return catalog;
+    }
+
+    /**
+     * Перечитывает каталог с диска, чтобы увидеть изменения других провайдеров. Если файла нет
+     * или он повреждён, оставляет то, что известно в памяти.
+     */
+    public synchronized void refresh() {
+        Map<String, Entry> diskEntries = readEntries();
+        if (diskEntries != null) {
+            entries = diskEntries;
+            isComplete = true;
+        }
+    }
+
+    /**
+     * @return Записи каталога на диске или null, если файла нет или он повреждён.
+     */
+    private Map<String, Entry> readEntries() {
+        File catalogFile = new File(directory, FILE_NAME);
+        if (!catalogFile.exists()) {
+            return null;
+        }
+        Map<String, Entry> diskEntries = new TreeMap<>();
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(catalogFile),
+                    StandardCharsets.UTF_8));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.isEmpty()) {
+                        readEntry(line, diskEntries);
+                    }
+                }
+            } finally {
+                FileMapUtils.closeStream(reader);
+            }
+            return diskEntries;
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return null;
+        }
+    }
+
+    private static void readEntry(String line, Map<String, Entry> entries) throws IOException {
+        String[] fields = line.split("\t", -1);
+        if ((fields.length != 4 && fields.length != 5) || fields[0].isEmpty()) {
+            throw new IOException(FILE_NAME + " has wrong format");
+        }
+        Entry entry = new Entry();
+        try {
+            if (!fields[1].equals(UNKNOWN)) {
+                entry.columnTypes = new ArrayList<>();
+                for (String type : fields[1].split(" ")) {
+                    TypesEnum typesEnum = TypesEnum.getBySignature(type);
+                    if (typesEnum == null) {
+                        throw new IOException(FILE_NAME + " has wrong format");
+                    }
+                    entry.columnTypes.add(typesEnum.getClazz());
+                }
+            }
+            if (!fields[2].equals(UNKNOWN) && !fields[3].equals(UNKNOWN)) {
+                entry.rowsCount = Integer.parseInt(fields[2]);
+                String[] shards = fields[3].isEmpty() ? new String[0] : fields[3].split(",");
+                entry.shards = new int[shards.length];
+                for (int i = 0; i < shards.length; i++) {
+                    entry.shards[i] = Integer.parseInt(shards[i]);
+                }
+                if (fields.length == 5 && !fields[4].equals(UNKNOWN)) {
+                    entry.dataLength = Long.parseLong(fields[4]);
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException(FILE_NAME + " has wrong format", e);
+        }
+        entries.put(fields[0], entry);
+    }
+
+    /**
+     * Применяет изменение к каталогу на диске под блокировкой директории. Блокировка файла принадлежит
+     * всему процессу, поэтому провайдеры одного процесса дополнительно упорядочиваются через PROCESS_LOCKS.
+     */
+    private void update(Update update) throws IOException {
+        synchronized (getProcessLock(directory)) {
+            RandomAccessFile lockFile = new RandomAccessFile(new File(directory, LOCK_FILE_NAME), "rw");
+            try {
+                FileLock lock = lockFile.getChannel().lock();
+                try {
+                    Map<String, Entry> diskEntries = readEntries();
+                    if (diskEntries == null) {
+                        diskEntries = new TreeMap<>(entries);
+                    }
+                    update.apply(diskEntries);
+                    write(diskEntries);
+                    entries = diskEntries;
+                    isComplete = true;
+                } finally {
+                    lock.release();
+                }
+            } finally {
+                lockFile.close();
+            }
+        }
+    }
+
+    private static Object getProcessLock(File directory) throws IOException {
+        String path = directory.getCanonicalPath();
+        synchronized (PROCESS_LOCKS) {
+            Object lock = PROCESS_LOCKS.get(path);
+            if (lock == null) {
+                lock = new Object();
+                PROCESS_LOCKS.put(path, lock);
+            }
+            return lock;
+        }
+    }
+
+    /**
+     * Записывает каталог во временный файл и переименовывает его, как {@link TableConfig#write(File)}.
+     */
+    private void write(Map<String, Entry> entries) throws IOException {
+        File tmpFile = new File(directory, FILE_NAME + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmpFile);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(fos, StandardCharsets.UTF_8));
+        try {
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                writer.write(entry.getKey());
+                writer.write('\t');
+                writer.write(writeSignature(entry.getValue().columnTypes));
+                writer.write('\t');
+                if (entry.getValue().shards == null) {
+                    writer.write(UNKNOWN + "\t" + UNKNOWN + "\t" + UNKNOWN);
+                } else {
+                    writer.write(Integer.toString(entry.getValue().rowsCount));
+                    writer.write('\t');
+                    for (int i = 0; i < entry.getValue().shards.length; i++) {
+                        if (i > 0) {
+                            writer.write(',');
+                        }
+                        writer.write(Integer.toString(entry.getValue().shards[i]));
+                    }
+                    writer.write('\t');
+                    long dataLength = entry.getValue().dataLength;
+                    writer.write(dataLength < 0 ? UNKNOWN : Long.toString(dataLength));
+                }
+                writer.write('\n');
+            }
+            writer.flush();
+            fos.getFD().sync();
+        } finally {
+            FileMapUtils.closeStream(writer);
+        }
+        Files.move(tmpFile.toPath(), new File(directory, FILE_NAME).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String writeSignature(List<Class<?>> columnTypes) {
+        if (columnTypes == null) {
+            return UNKNOWN;
+        }
+        StringBuilder signature = new StringBuilder();
+        for (Class<?> type : columnTypes) {
+            if (signature.length() > 0) {
+                signature.append(' ');
+            }
+            signature.append(TypesEnum.getByClass(type).getSignature());
+        }
+        return signature.toString();
+    }
+
+    /**
+     * Ложно, если каталог не был прочитан с диска и может знать не обо всех таблицах.
+     */
+    public synchronized boolean isComplete() {
+        return isComplete;
+    }
+
+    public synchronized Set<String> getTableNames() {
+        return new HashSet<>(entries.keySet());
+    }
+
+    /**
+     * Добавляет таблицы, найденные на диске, ничего не зная об их содержимом.
+     */
+    public synchronized void addTables(final Collection<String> names) throws IOException {
+        update(new Update() {
+            @Override
+            public void apply(Map<String, Entry> entries) {
+                for (String name : names) {
+                    if (!entries.containsKey(name)) {
+                        entries.put(name, new Entry());
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Добавляет или заменяет таблицу. rowsCount = -1 и shards = null означают, что файлы таблицы неизвестны.
+     */
+    public synchronized void putTable(final String name, List<Class<?>> columnTypes, int rowsCount,
+                                      int[] shards) throws IOException {
+        final Entry entry = new Entry();
+        entry.columnTypes = columnTypes == null ? null : new ArrayList<>(columnTypes);
+        entry.rowsCount = shards == null ? -1 : rowsCount;
+        entry.shards = shards == null ? null : shards.clone();
+        entry.dataLength = shards != null && shards.length == 0 ? 0 : -1;
+        update(new Update() {
+            @Override
+            public void apply(Map<String, Entry> entries) {
+                entries.put(name, entry);
+            }
+        });
+    }
+
+    public synchronized void removeTable(final String name) throws IOException {
+        update(new Update() {
+            @Override
+            public void apply(Map<String, Entry> entries) {
+                entries.remove(name);
+            }
+        });
+    }
+
+    public synchronized List<Class<?>> getColumnTypes(String name) {
+        Entry entry = entries.get(name);
+        if (entry == null || entry.columnTypes == null) {
+            return null;
+        }
+        return new ArrayList<>(entry.columnTypes);
+    }
+
+    public synchronized void setColumnTypes(final String name, List<Class<?>> columnTypes) throws IOException {
+        final List<Class<?>> types = new ArrayList<>(columnTypes);
+        update(new Update() {
+            @Override
+            public void apply(Map<String, Entry> entries) {
+                getOrCreateEntry(entries, name).columnTypes = types;
+            }
+        });
+    }
+
+    /**
+     * @return Число строк в файлах таблицы или -1, если оно неизвестно.
+     */
+    public synchronized int getRowsCount(String name) {
+        Entry entry = entries.get(name);
+        return entry == null || entry.shards == null ? -1 : entry.rowsCount;
+    }
+
+    /**
+     * @return Номера непустых файлов таблицы (nDirectory * filesCount + nFile) или null, если они неизвестны.
+     */
+    public synchronized int[] getShards(String name) {
+        Entry entry = entries.get(name);
+        return entry == null || entry.shards == null ? null : entry.shards.clone();
+    }
+
+    /**
+     * @return Суммарная длина файлов таблицы на момент записи в каталог или -1, если она неизвестна.
+     * Если длина файлов на диске другая, сведения каталога устарели.
+     */
+    public synchronized long getDataLength(String name) {
+        Entry entry = entries.get(name);
+        return entry == null || entry.shards == null ? -1 : entry.dataLength;
+    }
+
+    public synchronized void setShards(final String name, final int rowsCount, int[] shards,
+                                       final long dataLength) throws IOException {
+        final int[] shardNumbers = shards.clone();
+        update(new Update() {
+            @Override
+            public void apply(Map<String, Entry> entries) {
+                Entry entry = getOrCreateEntry(entries, name);
+                entry.rowsCount = rowsCount;
+                entry.shards = shardNumbers;
+                entry.dataLength = dataLength;
+            }
+        });
+    }
+
+    /**
+     * Помечает файлы таблицы как неизвестные. Вызывается до того, как таблица начнёт их перезаписывать.
+     */
+    public synchronized void invalidateShards(final String name) throws IOException {
+        update(new Update() {
+            @Override
+            public void apply(Map<String, Entry> entries) {
+                Entry entry = getOrCreateEntry(entries, name);
+                entry.rowsCount = -1;
+                entry.shards = null;
+                entry.dataLength = -1;
+            }
+        });
+    }
+
+    private static Entry getOrCreateEntry(Map<String, Entry> entries, String name) {
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            entry = new Entry();
+            entries.put(name, entry);
+        }
+        return entry;
+    }
+}
@@ -0,0 +1,178 @@
+package ru.phystech.java2.students.belousova.database.table.utils;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * Настройки хранения таблицы, записанные рядом с signature.tsv. Таблицы без файла настроек
+ * считаются созданными в старом формате.
+ */
+public class TableConfig {
+    public static final String FILE_NAME = "table.properties";
+    private static final String ROW_FORMAT = "row.format";
+    private static final String SHARDS_PRELOAD = "shards.preload";
+    private static final String SHARDS_RESIDENT_LIMIT = "shards.resident.limit";
+    private static final String SHARDS_FUNCTION = "shards.function";
+    private static final String SHARDS_DIRECTORIES = "shards.directories";
+    private static final String SHARDS_FILES = "shards.files";
+    private static final String SHARDS_LOCATION = "shards.location";
+    private static final String SHARDS_COLUMNAR = "shards.columnar";
+    private static final String STORAGE_ENGINE = "storage.engine";
+    private static final String COMPRESSION = "compression";
+    private static final String ROWS_STORAGE = "rows.storage";
+
+    private final Properties properties = new Properties();
+
+    public static TableConfig read(File directory) throws IOException {
+        TableConfig config = new TableConfig();
+        File configFile = new File(directory, FILE_NAME);
+        if (!configFile.exists()) {
+            return config;
+        }
+        Reader reader = new InputStreamReader(new FileInputStream(configFile), StandardCharsets.UTF_8);
+        try {
+            config.properties.load(reader);
+        } finally {
+            FileMapUtils.closeStream(reader);
+        }
+        try {
+            if (config.getRowFormat() == null || config.getStorageEngine() == null
+                    || config.getCompression() == null || config.getRowStorage() == null
+                    || config.getResidentShardsLimit() < 0) {
+                throw new IOException(FILE_NAME + " has wrong format");
+            }
+            config.getShardLayout();
+        } catch (IllegalArgumentException e) {
+            throw new IOException(FILE_NAME + " has wrong format", e);
+        }
+        return config;
+    }
+
+    /**
+     * Записывает настройки во временный файл и переименовывает его, поэтому после сбоя на диске
+     * остаются либо старые, либо новые настройки целиком.
+     */
+    public void write(File directory) throws IOException {
+        File tmpFile = new File(directory, FILE_NAME + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmpFile);
+        Writer writer = new OutputStreamWriter(fos, StandardCharsets.UTF_8);
+        try {
+            properties.store(writer, null);
+            writer.flush();
+            fos.getFD().sync();
+        } finally {
+            FileMapUtils.closeStream(writer);
+        }
+        Files.move(tmpFile.toPath(), new File(directory, FILE_NAME).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return Независимая копия настроек: изменения копии не затрагивают исходный объект.
+     */
+    public TableConfig copy() {
+        TableConfig copy = new TableConfig();
+        copy.properties.putAll(properties);
+        return copy;
+    }
+
+    public RowFormat getRowFormat() {
+        return RowFormat.getByName(properties.getProperty(ROW_FORMAT, RowFormat.XML.getName()));
+    }
+
+    public void setRowFormat(RowFormat rowFormat) {
+        properties.setProperty(ROW_FORMAT, rowFormat.getName());
+    }
+
+    public StorageEngine getStorageEngine() {
+        return StorageEngine.getByName(properties.getProperty(STORAGE_ENGINE, StorageEngine.SHARDS.getName()));
+    }
+
+    public void setStorageEngine(StorageEngine storageEngine) {
+        properties.setProperty(STORAGE_ENGINE, storageEngine.getName());
+    }
+
+    /**
+     * Кодек, которым сжимаются блоки значений в файлах M.dat. Уже записанные файлы читаются
+     * по кодеку из их заголовка, поэтому настройку можно менять у существующей таблицы.
+     */
+    public Compression getCompression() {
+        return Compression.getByName(properties.getProperty(COMPRESSION, Compression.NONE.getName()));
+    }
+
+    public void setCompression(Compression compression) {
+        properties.setProperty(COMPRESSION, compression.getName());
+    }
+
+    /**
+     * Где держать загруженные строки: в объектах кучи или в прямых буферах вне её.
+     */
+    public RowStorage getRowStorage() {
+        return RowStorage.getByName(properties.getProperty(ROWS_STORAGE, RowStorage.HEAP.getName()));
+    }
+
+    public void setRowStorage(RowStorage rowStorage) {
+        properties.setProperty(ROWS_STORAGE, rowStorage.getName());
+    }
+
+    public boolean isPreload() {
+        return Boolean.parseBoolean(properties.getProperty(SHARDS_PRELOAD, "false"));
+    }
+
+    public void setPreload(boolean preload) {
+        properties.setProperty(SHARDS_PRELOAD, Boolean.toString(preload));
+    }
+
+    /**
+     * Максимальное число одновременно загруженных в память файлов таблицы. 0 - без ограничения.
+     */
+    public int getResidentShardsLimit() {
+        return Integer.parseInt(properties.getProperty(SHARDS_RESIDENT_LIMIT, "0"));
+    }
+
+    public void setResidentShardsLimit(int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("negative limit");
+        }
+        properties.setProperty(SHARDS_RESIDENT_LIMIT, Integer.toString(limit));
+    }
+
+    public ShardLayout getShardLayout() {
+        ShardLayout.ShardFunction function = ShardLayout.ShardFunction.getByName(
+                properties.getProperty(SHARDS_FUNCTION, ShardLayout.ShardFunction.FIRST_BYTE.getName()));
+        int directoriesCount = Integer.parseInt(properties.getProperty(SHARDS_DIRECTORIES, "16"));
+        int filesCount = Integer.parseInt(properties.getProperty(SHARDS_FILES, "16"));
+        return new ShardLayout(function, directoriesCount, filesCount);
+    }
+
+    public void setShardLayout(ShardLayout layout) {
+        properties.setProperty(SHARDS_FUNCTION, layout.getFunction().getName());
+        properties.setProperty(SHARDS_DIRECTORIES, Integer.toString(layout.getDirectoriesCount()));
+        properties.setProperty(SHARDS_FILES, Integer.toString(layout.getFilesCount()));
+    }
+
+    /**
+     * Писать ли рядом с каждым файлом M.dat его столбцовые копии для {@link ColumnFileUtils}.
+     */
+    public boolean isColumnar() {
+        return Boolean.parseBoolean(properties.getProperty(SHARDS_COLUMNAR, "false"));
+    }
+
+    public void setColumnar(boolean columnar) {
+        properties.setProperty(SHARDS_COLUMNAR, Boolean.toString(columnar));
+    }
+
+    /**
+     * Поддиректория таблицы с файлами N.dir/M.dat. Пустая строка - сама директория таблицы.
+     */
+    public String getShardsLocation() {
+        return properties.getProperty(SHARDS_LOCATION, "");
+    }
+
+    public void setShardsLocation(String location) {
+        properties.setProperty(SHARDS_LOCATION, location);
+    }
+}
@@ -0,0 +1,149 @@
+package ru.phystech.java2.students.belousova.database.table.utils;
+
+import ru.phystech.java2.students.belousova.database.table.api.TypesEnum;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Файл выгрузки таблицы для переноса между базами: сигнатура, затем записи из ключа и строки
+ * в формате {@link BinaryRowCodec} независимо от формата хранения таблицы. Запись с пустым ключом
+ * отмечает конец файла, поэтому оборванная выгрузка не читается как полная.
+ */
+public class TableDumpFile {
+    private static final int MAGIC = 0x44554d50;
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    public static class Writer implements Closeable {
+        private final File file;
+        private final File tmpFile;
+        private final FileOutputStream fileStream;
+        private final DataOutputStream output;
+        private int count = 0;
+        private boolean finished = false;
+
+        public Writer(File file, List<Class<?>> columnTypes) throws IOException {
+            this.file = file;
+            tmpFile = new File(file.getPath() + ".tmp");
+            fileStream = new FileOutputStream(tmpFile);
+            output = new DataOutputStream(new BufferedOutputStream(fileStream, BUFFER_SIZE));
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(columnTypes.size());
+            for (Class<?> columnType : columnTypes) {
+                output.writeUTF(TypesEnum.getByClass(columnType).getSignature());
+            }
+        }
+
+        public void add(String key, byte[] row) throws IOException {
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            output.writeInt(keyBytes.length);
+            output.write(keyBytes);
+            output.writeInt(row.length);
+            output.write(row);
+            count++;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * Дописывает конец файла и переименовывает его в целевой.
+         */
+        public void finish() throws IOException {
+            output.writeInt(0);
+            output.flush();
+            fileStream.getFD().sync();
+            output.close();
+            finished = true;
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        @Override
+        public void close() {
+            if (!finished) {
+                FileMapUtils.closeStream(output);
+                tmpFile.delete();
+            }
+        }
+    }
+
+    public static class Reader implements Closeable {
+        private final DataInputStream input;
+        private final List<Class<?>> columnTypes = new ArrayList<>();
+        private String key;
+        private byte[] row;
+
+        public Reader(File file) throws IOException {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+            try {
+                if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                    throw new IOException("wrong data format");
+                }
+                int columnsCount = input.readInt();
+                if (columnsCount <= 0) {
+                    throw new IOException("wrong data format");
+                }
+                for (int i = 0; i < columnsCount; i++) {
+                    TypesEnum type = TypesEnum.getBySignature(input.readUTF());
+                    if (type == null) {
+                        throw new IOException("wrong data format");
+                    }
+                    columnTypes.add(type.getClazz());
+                }
+            } catch (IOException e) {
+                FileMapUtils.closeStream(input);
+                throw new IOException("cannot read '" + file.getName() + "'", e);
+            }
+        }
+
+        public List<Class<?>> getColumnTypes() {
+            return Collections.unmodifiableList(columnTypes);
+        }
+
+        /**
+         * Читает следующую запись.
+         *
+         * @return false, если записи кончились.
+         */
+        public boolean next() throws IOException {
+            int keyLength = input.readInt();
+            if (keyLength == 0) {
+                return false;
+            }
+            if (keyLength < 0) {
+                throw new IOException("wrong data format");
+            }
+            byte[] keyBytes = new byte[keyLength];
+            input.readFully(keyBytes);
+            int rowLength = input.readInt();
+            if (rowLength < 0) {
+                throw new IOException("wrong data format");
+            }
+            row = new byte[rowLength];
+            input.readFully(row);
+            key = new String(keyBytes, StandardCharsets.UTF_8);
+            return true;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public byte[] getRow() {
+            return row;
+        }
+
+        @Override
+        public void close() {
+            FileMapUtils.closeStream(input);
+        }
+    }
+}
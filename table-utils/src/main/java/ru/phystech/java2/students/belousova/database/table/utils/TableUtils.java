@@ -6,11 +6,20 @@ import javax.xml.stream.*;
 import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TableUtils {
+    private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newFactory();
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newFactory();
+
     public static void readSignature(File file, List<Class<?>> columnTypes) throws IOException {
         if (!file.exists()) {
             throw new IOException("signature.tsv doesn't exist");
@@ -61,19 +70,102 @@ public class TableUtils {
         return bos.toString(StandardCharsets.UTF_8.toString());
     }
 
-    public static void readTable(File file, Table table, Map<String, TableRow> dataBase,
-                                 TableProvider tableProvider) throws IOException {
-        Map<String, String> stringMap = new HashMap<>();
-        MultiFileUtils.read(file, stringMap);
+    /**
+     * Читает все файлы таблицы. Файлы, для которых storedBuckets ложно, заведомо отсутствуют и не читаются.
+     */
+    public static void readTable(final File file, final ShardLayout layout, final Map<String, StoredRow>[][] dataBase,
+                                 boolean[][] storedBuckets, final RowStorage rowStorage,
+                                 ExecutorService executor) throws IOException {
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int i = 0; i < layout.getDirectoriesCount(); i++) {
+            for (int j = 0; j < layout.getFilesCount(); j++) {
+                if (!storedBuckets[i][j]) {
+                    dataBase[i][j] = rowStorage.newBucket(0);
+                    continue;
+                }
+                final int nDirectory = i;
+                final int nFile = j;
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        dataBase[nDirectory][nFile] = readBucket(file, layout, nDirectory, nFile, rowStorage);
+                        return null;
+                    }
+                });
+            }
+        }
+        invokeAll(executor, tasks);
+    }
+
+    /**
+     * Считает строки во всех файлах таблицы и отмечает в storedBuckets непустые файлы.
+     */
+    public static int countRows(final File file, ShardLayout layout, final boolean[][] storedBuckets,
+                                ExecutorService executor) throws IOException {
+        final AtomicInteger rowsCount = new AtomicInteger(0);
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int i = 0; i < layout.getDirectoriesCount(); i++) {
+            for (int j = 0; j < layout.getFilesCount(); j++) {
+                final int nDirectory = i;
+                final int nFile = j;
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        int bucketRowsCount = MultiFileUtils.countBucket(file, nDirectory, nFile);
+                        storedBuckets[nDirectory][nFile] = bucketRowsCount > 0;
+                        rowsCount.addAndGet(bucketRowsCount);
+                        return null;
+                    }
+                });
+            }
+        }
+        invokeAll(executor, tasks);
+        return rowsCount.get();
+    }
+
+    public static Map<String, StoredRow> readBucket(File file, ShardLayout layout, int nDirectory, int nFile,
+                                                    RowStorage rowStorage) throws IOException {
+        Map<String, byte[]> bytesMap = new HashMap<>();
+        MultiFileUtils.readBucket(file, layout, nDirectory, nFile, bytesMap);
+        Map<String, StoredRow> bucket = rowStorage.newBucket(bytesMap.size());
+        for (Map.Entry<String, byte[]> entry : bytesMap.entrySet()) {
+            bucket.put(entry.getKey(), new StoredRow(entry.getValue()));
+        }
+        return bucket;
+    }
 
-        for (String key : stringMap.keySet()) {
+    public static void invokeAll(ExecutorService executor, List<? extends Callable<Void>> tasks) throws IOException {
+        List<Future<Void>> futures;
+        try {
+            futures = executor.invokeAll(tasks);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted", e);
+        }
+        Throwable failure = null;
+        for (Future<Void> future : futures) {
             try {
-                TableRow value = tableProvider.deserialize(table, stringMap.get(key));
-                dataBase.put(key, value);
-            } catch (ParseException e) {
-                throw new IOException("read error", e);
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted", e);
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause();
+                } else {
+                    failure.addSuppressed(e.getCause());
+                }
             }
         }
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure != null) {
+            throw new IOException(failure);
+        }
     }
 
     public static void writeSignature(File directory, List<Class<?>> columnTypes) throws IOException {
@@ -101,11 +193,18 @@ public class TableUtils {
         }
     }
 
+    public static List<Class<?>> getColumnTypes(Table table) {
+        List<Class<?>> columnTypes = new ArrayList<>(table.getColumnsCount());
+        for (int i = 0; i < table.getColumnsCount(); i++) {
+            columnTypes.add(table.getColumnType(i));
+        }
+        return columnTypes;
+    }
+
     public static TableRow readStorableValue(String s, Table table, TableProvider tableProvider) throws ParseException {
-        XMLInputFactory inputFactory = XMLInputFactory.newFactory();
         TableRow line = tableProvider.createFor(table);
         try {
-            XMLStreamReader reader = inputFactory.createXMLStreamReader(new StringReader(s));
+            XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(new StringReader(s));
             try {
                 if (!reader.hasNext()) {
                     throw new ParseException("input string is empty", 0);
@@ -189,10 +288,9 @@ public class TableUtils {
     }
 
     public static String writeStorableToString(TableRow tableRow, List<Class<?>> columnTypes) {
-        XMLOutputFactory outputFactory = XMLOutputFactory.newFactory();
         StringWriter stringWriter = new StringWriter();
         try {
-            XMLStreamWriter writer = outputFactory.createXMLStreamWriter(stringWriter);
+            XMLStreamWriter writer = OUTPUT_FACTORY.createXMLStreamWriter(stringWriter);
             try {
                 writer.writeStartElement("row");
                 for (int i = 0; i < columnTypes.size(); i++) {
@@ -238,13 +336,38 @@ public class TableUtils {
         }
     }
 
-    public static void writeTable(File file, Table table, Map<String, TableRow> storeableMap,
-                                  TableProvider tableProvider) throws IOException {
-        Map<String, String> stringMap = new HashMap<>();
-        for (String key : storeableMap.keySet()) {
-            stringMap.put(key, tableProvider.serialize(table, storeableMap.get(key)));
+    public static void writeTable(final File file, ShardLayout layout, final Map<String, StoredRow>[][] dataBase,
+                                  boolean[][] dirtyBuckets, final Compression compression,
+                                  ExecutorService executor) throws IOException {
+        List<Callable<Void>> tasks = new ArrayList<>();
+        boolean[] dirtyDirectories = new boolean[layout.getDirectoriesCount()];
+        for (int i = 0; i < layout.getDirectoriesCount(); i++) {
+            for (int j = 0; j < layout.getFilesCount(); j++) {
+                if (!dirtyBuckets[i][j]) {
+                    continue;
+                }
+                dirtyDirectories[i] = true;
+                final int nDirectory = i;
+                final int nFile = j;
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        Map<String, byte[]> bytesMap = new HashMap<>();
+                        for (Map.Entry<String, StoredRow> entry : dataBase[nDirectory][nFile].entrySet()) {
+                            bytesMap.put(entry.getKey(), entry.getValue().getData());
+                        }
+                        MultiFileUtils.writeBucketFile(file, nDirectory, nFile, bytesMap, compression);
+                        return null;
+                    }
+                });
+            }
+        }
+        invokeAll(executor, tasks);
+        for (int i = 0; i < layout.getDirectoriesCount(); i++) {
+            if (dirtyDirectories[i]) {
+                MultiFileUtils.deleteEmptyDirectory(file, i);
+            }
         }
-        MultiFileUtils.write(file, stringMap);
     }
 
     private static Object getValueWithType(TableRow storeable, int columnIndex,
@@ -269,6 +392,40 @@ public class TableUtils {
         }
     }
 
+    /**
+     * Проверяет ключ таблицы: он не должен быть пустым и содержать пробельные символы.
+     * Символы проверяются циклом, а не регулярным выражением, так как проверка идёт на каждое обращение.
+     */
+    public static void checkKey(String key) {
+        if (key == null) {
+            throw new IllegalArgumentException("null key");
+        }
+        if (key.trim().isEmpty()) {
+            throw new IllegalArgumentException("empty key");
+        }
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r') {
+                throw new IllegalArgumentException("key with whitespaces");
+            }
+        }
+    }
+
+    /**
+     * Проверяет значение перед записью в таблицу с указанными типами столбцов.
+     */
+    public static void checkValue(TableRow value, List<Class<?>> columnTypes) {
+        if (value == null) {
+            throw new IllegalArgumentException("null value");
+        }
+        if (value.toString().trim().isEmpty()) {
+            throw new IllegalArgumentException("empty value");
+        }
+        if (!isStorableValid(value, columnTypes)) {
+            throw new ColumnFormatException("wrong storeable format");
+        }
+    }
+
     public static boolean isStorableValid(TableRow value, List<Class<?>> columnTypes) throws ColumnFormatException {
         int columnIndex = 0;
         try {
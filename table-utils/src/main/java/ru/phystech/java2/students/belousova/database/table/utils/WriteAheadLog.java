@@ -0,0 +1,386 @@
+package ru.phystech.java2.students.belousova.database.table.utils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+public class WriteAheadLog implements Closeable {
+    private static final String SEGMENT_PREFIX = "wal.";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int HEADER_SIZE = 12;
+
+    private final File directory;
+    private final Lock lock = new ReentrantLock();
+    private final Condition syncFinished = lock.newCondition();
+
+    private FileChannel channel;
+    private long generation;
+    private long size = 0;
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private long appendedSequence = 0;
+    private long syncedSequence = 0;
+    private long syncedLength = 0;
+    private boolean syncInProgress = false;
+    private IOException failure = null;
+    private long failedSequence = 0;
+
+    public WriteAheadLog(File directory) throws IOException {
+        this.directory = directory;
+        generation = 0;
+        for (long existing : listGenerations(directory)) {
+            generation = Math.max(generation, existing + 1);
+        }
+        channel = openSegment(generation);
+    }
+
+    /**
+     * Ставит запись транзакции в очередь на запись. Порядок записей совпадает с порядком вызовов,
+     * поэтому вызывать нужно под той же блокировкой, под которой изменения применяются к таблице.
+     *
+     * @return Номер записи, который нужно передать в {@link #sync(long)}.
+     */
+    public long append(Map<String, byte[]> puts, Set<String> removes) throws IOException {
+        byte[] record = encodeRecord(puts, removes);
+        lock.lock();
+        try {
+            pending.write(record);
+            size += record.length;
+            return ++appendedSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Дожидается, пока запись с указанным номером окажется на диске. Записи, накопившиеся от разных потоков,
+     * сбрасываются одним fsync: первый пришедший поток пишет всю очередь, остальные ждут его.
+     *
+     * Если запись или fsync не удались, ждавшие этой пачки получают IOException, и пачка отбрасывается:
+     * её транзакции не применяются к таблице. Содержимое сегмента после ошибки не известно, поэтому
+     * следующая запись переносит подтверждённое начало сегмента в новый сегмент, а старый удаляет.
+     */
+    public void sync(long sequence) throws IOException {
+        lock.lock();
+        try {
+            while (syncedSequence < sequence) {
+                if (failedSequence >= sequence) {
+                    throw new IOException("cannot sync write-ahead log", failure);
+                }
+                if (syncInProgress) {
+                    syncFinished.awaitUninterruptibly();
+                    continue;
+                }
+                syncInProgress = true;
+                byte[] batch = pending.toByteArray();
+                pending.reset();
+                long batchSequence = appendedSequence;
+                FileChannel batchChannel = channel;
+                long batchGeneration = generation;
+                boolean isBroken = failure != null;
+                long validLength = syncedLength;
+                IOException error = null;
+                lock.unlock();
+                try {
+                    if (isBroken) {
+                        batchChannel = replaceSegment(batchChannel, batchGeneration, validLength, batchGeneration + 1);
+                        batchGeneration++;
+                    }
+                    writeFully(batchChannel, batch);
+                    batchChannel.force(false);
+                } catch (IOException e) {
+                    error = e;
+                } finally {
+                    lock.lock();
+                }
+                syncInProgress = false;
+                channel = batchChannel;
+                generation = batchGeneration;
+                if (error != null) {
+                    failure = error;
+                    failedSequence = batchSequence;
+                    size -= batch.length;
+                } else {
+                    failure = null;
+                    syncedSequence = batchSequence;
+                    syncedLength = validLength + batch.length;
+                }
+                syncFinished.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Закрывает текущий сегмент журнала и начинает новый.
+     *
+     * @return Поколение закрытого сегмента. После записи контрольной точки его и все более старые сегменты
+     * можно удалить с помощью {@link #deleteSegments(File, long)}.
+     */
+    public long rotate() throws IOException {
+        lock.lock();
+        try {
+            while (syncInProgress) {
+                syncFinished.awaitUninterruptibly();
+            }
+            flushPending();
+            channel.close();
+
+            long closedGeneration = generation;
+            generation++;
+            channel = openSegment(generation);
+            size = 0;
+            syncedLength = 0;
+            return closedGeneration;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            while (syncInProgress) {
+                syncFinished.awaitUninterruptibly();
+            }
+            try {
+                flushPending();
+            } finally {
+                channel.close();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Записывает очередь на диск под блокировкой журнала. После неудачной записи сначала заменяет сегмент.
+     */
+    private void flushPending() throws IOException {
+        byte[] batch = pending.toByteArray();
+        pending.reset();
+        try {
+            if (failure != null) {
+                channel = replaceSegment(channel, generation, syncedLength, generation + 1);
+                generation++;
+            }
+            writeFully(channel, batch);
+            channel.force(false);
+        } catch (IOException e) {
+            failure = e;
+            failedSequence = appendedSequence;
+            size -= batch.length;
+            syncFinished.signalAll();
+            throw e;
+        }
+        failure = null;
+        syncedSequence = appendedSequence;
+        syncedLength += batch.length;
+        syncFinished.signalAll();
+    }
+
+    /**
+     * Переносит подтверждённые первые validLength байт сломанного сегмента в новый сегмент и удаляет
+     * сломанный, чтобы неудавшаяся пачка не попала в восстановление.
+     */
+    private FileChannel replaceSegment(FileChannel brokenChannel, long brokenGeneration, long validLength,
+                                       long newGeneration) throws IOException {
+        FileMapUtils.closeStream(brokenChannel);
+        File brokenFile = getSegmentFile(brokenGeneration);
+        FileChannel newChannel = openSegment(newGeneration);
+        try {
+            InputStream is = new FileInputStream(brokenFile);
+            try {
+                byte[] buffer = new byte[65536];
+                long remaining = validLength;
+                while (remaining > 0) {
+                    int read = is.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read < 0) {
+                        throw new EOFException("'" + brokenFile.getName() + "' is shorter than its synced part");
+                    }
+                    writeFully(newChannel, Arrays.copyOf(buffer, read));
+                    remaining -= read;
+                }
+            } finally {
+                FileMapUtils.closeStream(is);
+            }
+            newChannel.force(false);
+            if (!brokenFile.delete()) {
+                throw new IOException("cannot delete '" + brokenFile.getName() + "'");
+            }
+        } catch (IOException e) {
+            FileMapUtils.closeStream(newChannel);
+            getSegmentFile(newGeneration).delete();
+            throw e;
+        }
+        return newChannel;
+    }
+
+    private File getSegmentFile(long segmentGeneration) {
+        return new File(directory, SEGMENT_PREFIX + segmentGeneration + SEGMENT_SUFFIX);
+    }
+
+    protected FileChannel openSegment(long segmentGeneration) throws IOException {
+        return FileChannel.open(getSegmentFile(segmentGeneration).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private static void writeFully(FileChannel channel, byte[] data) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static byte[] encodeRecord(Map<String, byte[]> puts, Set<String> removes) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(payload);
+        dos.writeInt(removes.size());
+        for (String key : removes) {
+            writeString(dos, key);
+        }
+        dos.writeInt(puts.size());
+        for (Map.Entry<String, byte[]> entry : puts.entrySet()) {
+            writeString(dos, entry.getKey());
+            writeBytes(dos, entry.getValue());
+        }
+        dos.flush();
+        byte[] payloadBytes = payload.toByteArray();
+
+        CRC32 crc = new CRC32();
+        crc.update(payloadBytes);
+        ByteArrayOutputStream record = new ByteArrayOutputStream(HEADER_SIZE + payloadBytes.length);
+        DataOutputStream recordStream = new DataOutputStream(record);
+        recordStream.writeInt(payloadBytes.length);
+        recordStream.writeLong(crc.getValue());
+        recordStream.write(payloadBytes);
+        recordStream.flush();
+        return record.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream dos, String s) throws IOException {
+        writeBytes(dos, s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void writeBytes(DataOutputStream dos, byte[] bytes) throws IOException {
+        dos.writeInt(bytes.length);
+        dos.write(bytes);
+    }
+
+    private static String readString(DataInputStream dis) throws IOException {
+        return new String(readBytes(dis), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readBytes(DataInputStream dis) throws IOException {
+        byte[] bytes = new byte[dis.readInt()];
+        dis.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * Читает все сегменты журнала в директории таблицы и сворачивает их в итоговый набор изменений.
+     * Недописанная или повреждённая запись в конце сегмента означает сбой во время записи и игнорируется.
+     *
+     * @return Поколение последнего прочитанного сегмента или -1, если журнал пуст.
+     */
+    public static long replay(File directory, Map<String, byte[]> puts, Set<String> removes) throws IOException {
+        long lastGeneration = -1;
+        for (long segmentGeneration : listGenerations(directory)) {
+            File segmentFile = new File(directory, SEGMENT_PREFIX + segmentGeneration + SEGMENT_SUFFIX);
+            replaySegment(segmentFile, puts, removes);
+            lastGeneration = segmentGeneration;
+        }
+        return lastGeneration;
+    }
+
+    private static void replaySegment(File segmentFile, Map<String, byte[]> puts,
+                                      Set<String> removes) throws IOException {
+        long remaining = segmentFile.length();
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(segmentFile), 65536));
+        try {
+            while (remaining >= HEADER_SIZE) {
+                int length = dis.readInt();
+                long checksum = dis.readLong();
+                remaining -= HEADER_SIZE;
+                if (length < 0 || length > remaining) {
+                    return;
+                }
+                byte[] payload = new byte[length];
+                dis.readFully(payload);
+                remaining -= length;
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if (crc.getValue() != checksum) {
+                    return;
+                }
+                applyRecord(payload, puts, removes);
+            }
+        } catch (IOException e) {
+            throw new IOException("cannot read '" + segmentFile.getName() + "'", e);
+        } finally {
+            FileMapUtils.closeStream(dis);
+        }
+    }
+
+    private static void applyRecord(byte[] payload, Map<String, byte[]> puts, Set<String> removes) throws IOException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(payload));
+        int removesCount = dis.readInt();
+        for (int i = 0; i < removesCount; i++) {
+            String key = readString(dis);
+            puts.remove(key);
+            removes.add(key);
+        }
+        int putsCount = dis.readInt();
+        for (int i = 0; i < putsCount; i++) {
+            String key = readString(dis);
+            byte[] value = readBytes(dis);
+            removes.remove(key);
+            puts.put(key, value);
+        }
+    }
+
+    public static void deleteSegments(File directory, long upToGeneration) {
+        for (long segmentGeneration : listGenerations(directory)) {
+            if (segmentGeneration <= upToGeneration) {
+                new File(directory, SEGMENT_PREFIX + segmentGeneration + SEGMENT_SUFFIX).delete();
+            }
+        }
+    }
+
+    private static List<Long> listGenerations(File directory) {
+        List<Long> generations = new ArrayList<>();
+        String[] names = directory.list();
+        if (names == null) {
+            return generations;
+        }
+        for (String name : names) {
+            if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                String number = name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length());
+                try {
+                    generations.add(Long.parseLong(number));
+                } catch (NumberFormatException e) {
+                    //not a segment
+                }
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+}
@@ -0,0 +1,21 @@
+package ru.phystech.java2.students.belousova.database.table.utils;
+
+import ru.phystech.java2.students.belousova.database.table.api.Table;
+import ru.phystech.java2.students.belousova.database.table.api.TableProvider;
+import ru.phystech.java2.students.belousova.database.table.api.TableRow;
+
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.List;
+
+public class XmlRowCodec implements RowCodec {
+    @Override
+    public byte[] encode(TableRow row, List<Class<?>> columnTypes) {
+        return TableUtils.writeStorableToString(row, columnTypes).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public TableRow decode(byte[] data, Table table, TableProvider tableProvider) throws ParseException {
+        return TableUtils.readStorableValue(new String(data, StandardCharsets.UTF_8), table, tableProvider);
+    }
+}